@@ -0,0 +1,101 @@
+package org.lastbamboo.common.sip.bootstrap.bench;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.lastbamboo.common.sip.bootstrap.ProxyLatencyTracker;
+import org.lastbamboo.common.sip.bootstrap.SipUriCandidateProvider;
+import org.lastbamboo.common.sip.stack.util.UriUtils;
+import org.lastbamboo.common.sip.stack.util.UriUtilsImpl;
+import org.littleshoot.util.CandidateProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks converting proxy addresses to candidate SIP URIs, both from a
+ * warm cache and from scratch.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CandidateProviderBenchmark {
+
+    @Param({"4", "64"})
+    public int m_proxies;
+
+    private final UriUtils m_uriUtils = new UriUtilsImpl();
+
+    private final Executor m_inline = new Executor() {
+        public void execute(final Runnable command) {
+            command.run();
+        }
+    };
+
+    private CandidateProvider<InetSocketAddress> m_addresses;
+
+    private SipUriCandidateProvider m_warm;
+
+    private ProxyLatencyTracker m_tracker;
+
+    @Setup
+    public void setUp() {
+        final List<InetSocketAddress> addresses = 
+            new ArrayList<InetSocketAddress>();
+        for (int i = 0; i < this.m_proxies; i++) {
+            addresses.add(new InetSocketAddress("10.0." + (i / 250) + "." + 
+                (i % 250 + 1), 5061));
+        }
+        this.m_addresses = new CandidateProvider<InetSocketAddress>() {
+            public InetSocketAddress getCandidate() {
+                return addresses.get(0);
+            }
+            public Collection<InetSocketAddress> getCandidates() {
+                return new ArrayList<InetSocketAddress>(addresses);
+            }
+        };
+        this.m_tracker = new ProxyLatencyTracker();
+        this.m_warm = new SipUriCandidateProvider(this.m_uriUtils, 
+            this.m_addresses, this.m_tracker, this.m_inline, 
+            TimeUnit.HOURS.toMillis(1));
+        for (final URI uri : this.m_warm.getCandidates()) {
+            this.m_tracker.recordSuccess(uri, uri.hashCode() & 0xff, 10);
+        }
+    }
+
+    @Benchmark
+    public URI warmCandidate() {
+        return this.m_warm.getCandidate();
+    }
+
+    @Benchmark
+    public Collection<URI> warmCandidates() {
+        return this.m_warm.getCandidates();
+    }
+
+    /**
+     * The cost of a cache miss: fetching, converting and ranking every
+     * address.
+     */
+    @Benchmark
+    public Collection<URI> coldCandidates() {
+        return new SipUriCandidateProvider(this.m_uriUtils, this.m_addresses,
+            this.m_tracker, this.m_inline, 0L).getCandidates();
+    }
+}
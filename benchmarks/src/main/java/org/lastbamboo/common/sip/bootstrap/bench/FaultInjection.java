@@ -0,0 +1,101 @@
+package org.lastbamboo.common.sip.bootstrap.bench;
+
+import java.util.Random;
+
+/**
+ * The faults a {@link LoopbackSipRegistrar} injects. Every setting can be
+ * changed while the registrar is running, so a test can, for example, start
+ * dropping REGISTERs half way through a run.
+ */
+public final class FaultInjection {
+
+    private final Random m_random = new Random();
+
+    private volatile long m_registerLatencyMillis;
+
+    private volatile long m_acceptDelayMillis;
+
+    private volatile double m_dropProbability;
+
+    private volatile double m_resetProbability;
+
+    /**
+     * Returns settings that inject no faults at all.
+     *
+     * @return Settings without faults.
+     */
+    public static FaultInjection none() {
+        return new FaultInjection();
+    }
+
+    /**
+     * Sets the delay before answering each REGISTER.
+     *
+     * @param millis The delay in milliseconds.
+     * @return These settings.
+     */
+    public FaultInjection setRegisterLatencyMillis(final long millis) {
+        this.m_registerLatencyMillis = millis;
+        return this;
+    }
+
+    /**
+     * Sets the delay before serving each accepted connection, simulating a
+     * proxy with a full accept backlog.
+     *
+     * @param millis The delay in milliseconds.
+     * @return These settings.
+     */
+    public FaultInjection setAcceptDelayMillis(final long millis) {
+        this.m_acceptDelayMillis = millis;
+        return this;
+    }
+
+    /**
+     * Sets the chance that a REGISTER is silently dropped.
+     *
+     * @param probability The probability, from 0 to 1.
+     * @return These settings.
+     */
+    public FaultInjection setDropProbability(final double probability) {
+        this.m_dropProbability = probability;
+        return this;
+    }
+
+    /**
+     * Sets the chance that a REGISTER is answered by resetting the
+     * connection.
+     *
+     * @param probability The probability, from 0 to 1.
+     * @return These settings.
+     */
+    public FaultInjection setResetProbability(final double probability) {
+        this.m_resetProbability = probability;
+        return this;
+    }
+
+    public long getRegisterLatencyMillis() {
+        return this.m_registerLatencyMillis;
+    }
+
+    public long getAcceptDelayMillis() {
+        return this.m_acceptDelayMillis;
+    }
+
+    boolean shouldDrop() {
+        return roll(this.m_dropProbability);
+    }
+
+    boolean shouldReset() {
+        return roll(this.m_resetProbability);
+    }
+
+    private boolean roll(final double probability) {
+        if (probability <= 0) {
+            return false;
+        }
+        synchronized (this.m_random) {
+            return this.m_random.nextDouble() < probability;
+        }
+    }
+}
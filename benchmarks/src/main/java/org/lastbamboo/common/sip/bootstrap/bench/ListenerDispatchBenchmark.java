@@ -0,0 +1,127 @@
+package org.lastbamboo.common.sip.bootstrap.bench;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.lastbamboo.common.sip.bootstrap.ProxyRegistrar;
+import org.lastbamboo.common.sip.bootstrap.ProxyRegistrarFactory;
+import org.lastbamboo.common.sip.bootstrap.RegistrarConnectionEstablisher;
+import org.lastbamboo.common.sip.client.util.ProxyRegistrationListener;
+import org.littleshoot.util.ConnectionMaintainerListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks dispatching registration events through the
+ * {@link RegistrarConnectionEstablisher} to the connection maintainer 
+ * listeners.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListenerDispatchBenchmark {
+
+    private static final URI CLIENT = URI.create("sip:1234@lastbamboo.org");
+
+    private RegistrarConnectionEstablisher m_establisher;
+
+    /**
+     * Each thread registers with its own proxy, as a gateway does.
+     */
+    @State(Scope.Thread)
+    public static class Proxy {
+
+        private static int s_next;
+
+        URI m_uri;
+
+        @Setup
+        public void setUp() {
+            synchronized (Proxy.class) {
+                this.m_uri = URI.create("sip:10.0.0." + (++s_next) + 
+                    ":5061;transport=tcp");
+            }
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        // A factory whose registrars register and unregister straight away,
+        // so all we measure is the dispatch.
+        final ProxyRegistrarFactory factory = new ProxyRegistrarFactory() {
+            public ProxyRegistrar getRegistrar(final URI client,
+                    final URI proxy, final ProxyRegistrationListener listener) {
+                return new ProxyRegistrar() {
+                    public void register() {
+                        listener.registered(client, proxy);
+                        listener.reRegistered(client, proxy);
+                        listener.unregistered(client, proxy);
+                    }
+                };
+            }
+        };
+        this.m_establisher = new RegistrarConnectionEstablisher(CLIENT, 
+            factory, new ProxyRegistrationListener() {
+                public void registered(final URI client, final URI proxy) {
+                }
+                public void reRegistered(final URI client, final URI proxy) {
+                }
+                public void registrationFailed(final URI client, 
+                    final URI proxy) {
+                }
+                public void unregistered(final URI client, final URI proxy) {
+                }
+            });
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void dispatch(final Proxy proxy, final Blackhole bh) {
+        this.m_establisher.establish(proxy.m_uri, new CountingListener(bh));
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void dispatchContended(final Proxy proxy, final Blackhole bh) {
+        this.m_establisher.establish(proxy.m_uri, new CountingListener(bh));
+    }
+
+    private static final class CountingListener 
+        implements ConnectionMaintainerListener<URI> {
+
+        private final Blackhole m_bh;
+
+        private CountingListener(final Blackhole bh) {
+            this.m_bh = bh;
+        }
+
+        public void connected(final URI server) {
+            this.m_bh.consume(server);
+        }
+
+        public void reconnected() {
+            this.m_bh.consume(1);
+        }
+
+        public void connectionFailed() {
+            this.m_bh.consume(2);
+        }
+
+        public void disconnected() {
+            this.m_bh.consume(3);
+        }
+    }
+}
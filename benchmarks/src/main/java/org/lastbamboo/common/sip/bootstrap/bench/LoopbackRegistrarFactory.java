@@ -0,0 +1,361 @@
+package org.lastbamboo.common.sip.bootstrap.bench;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.lastbamboo.common.sip.bootstrap.ProxyRegistrar;
+import org.lastbamboo.common.sip.bootstrap.ProxyRegistrarFactory;
+import org.lastbamboo.common.sip.bootstrap.StoppableProxyRegistrar;
+import org.lastbamboo.common.sip.client.util.ProxyRegistrationListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A registrar factory whose registrars connect to a 
+ * {@link LoopbackSipRegistrar} and send it a REGISTER. Registrations run on 
+ * an executor and report to their listener just as 
+ * {@link org.lastbamboo.common.sip.bootstrap.ProxyRegistrarImpl} does, 
+ * without needing the rest of the SIP stack. The proxy address is taken from
+ * the host and port of the proxy URI.
+ * <p>
+ * Persistent registrations keep their connection open and report
+ * <code>unregistered</code> when the registrar closes it, which is what 
+ * failover testing needs. One selector thread per factory watches every
+ * persistent connection.
+ * <p>
+ * This is a stand-in for {@link
+ * org.lastbamboo.common.sip.bootstrap.ProxyRegistrarFactoryImpl}, not a
+ * wrapper around it. Nothing the real registrars do with the SIP stack, such
+ * as parsing responses, running transactions or sending keepalives, is 
+ * measured through it.
+ */
+public class LoopbackRegistrarFactory implements ProxyRegistrarFactory {
+
+    private static final int TIMEOUT_MILLIS = 10 * 1000;
+
+    private final ExecutorService m_executor;
+
+    private final boolean m_persistent;
+
+    private final AtomicLong m_cseq = new AtomicLong();
+
+    /**
+     * Watches persistent connections for the registrar closing them, or
+     * <code>null</code> until the first one.
+     */
+    private ConnectionWatcher m_watcher;
+
+    /**
+     * Creates a new factory.
+     *
+     * @param executor The executor to register on.
+     * @param persistent Whether to keep connections open after registering.
+     */
+    public LoopbackRegistrarFactory(final ExecutorService executor,
+            final boolean persistent) {
+        this.m_executor = executor;
+        this.m_persistent = persistent;
+    }
+
+    public ProxyRegistrar getRegistrar(final URI client, final URI proxy,
+            final ProxyRegistrationListener listener) {
+        return new LoopbackRegistrar(client, proxy, listener);
+    }
+
+    /**
+     * A single registration. Stopping it closes its connection, and a 
+     * stopped registration reports nothing more to its listener, the way a
+     * stopped {@link org.lastbamboo.common.sip.bootstrap.ProxyRegistrarImpl}
+     * ends its client.
+     */
+    private final class LoopbackRegistrar implements StoppableProxyRegistrar {
+
+        private final URI m_client;
+
+        private final URI m_proxy;
+
+        private final ProxyRegistrationListener m_listener;
+
+        private final SocketChannel m_channel;
+
+        private final Socket m_sock;
+
+        private boolean m_stopped;
+
+        private LoopbackRegistrar(final URI client, final URI proxy,
+                final ProxyRegistrationListener listener) {
+            this.m_client = client;
+            this.m_proxy = proxy;
+            this.m_listener = listener;
+            SocketChannel channel;
+            try {
+                channel = SocketChannel.open();
+            } catch (final IOException e) {
+                channel = null;
+            }
+            this.m_channel = channel;
+            this.m_sock = channel == null ? new Socket() : channel.socket();
+        }
+
+        public void register() {
+            try {
+                m_executor.execute(new Runnable() {
+                    public void run() {
+                        registerBlocking();
+                    }
+                });
+            } catch (final RejectedExecutionException e) {
+                this.m_listener.registrationFailed(this.m_client, 
+                    this.m_proxy);
+            }
+        }
+
+        public void stop() {
+            synchronized (this) {
+                this.m_stopped = true;
+            }
+            close(this.m_sock);
+        }
+
+        private synchronized boolean isStopped() {
+            return this.m_stopped;
+        }
+
+        private void registerBlocking() {
+            try {
+                if (isStopped()) {
+                    return;
+                }
+                this.m_sock.setTcpNoDelay(true);
+                this.m_sock.connect(address(this.m_proxy), TIMEOUT_MILLIS);
+                this.m_sock.setSoTimeout(TIMEOUT_MILLIS);
+                final InputStream is = 
+                    new BufferedInputStream(this.m_sock.getInputStream());
+                LoopbackRegistrarFactory.this.register(this.m_client, 
+                    this.m_proxy, this.m_sock.getOutputStream(), is);
+                if (m_persistent) {
+                    watch();
+                } else {
+                    this.m_sock.close();
+                }
+            } catch (final IOException e) {
+                close(this.m_sock);
+                if (!isStopped()) {
+                    this.m_listener.registrationFailed(this.m_client, 
+                        this.m_proxy);
+                }
+                return;
+            }
+            if (isStopped()) {
+                close(this.m_sock);
+                return;
+            }
+            this.m_listener.registered(this.m_client, this.m_proxy);
+        }
+
+        private void watch() throws IOException {
+            if (this.m_channel == null) {
+                throw new IOException("No channel to watch");
+            }
+            this.m_channel.configureBlocking(false);
+            watcher().watch(this.m_channel, new Runnable() {
+                public void run() {
+                    close(m_sock);
+                    if (!isStopped()) {
+                        m_listener.unregistered(m_client, m_proxy);
+                    }
+                }
+            });
+        }
+    }
+
+    private synchronized ConnectionWatcher watcher() throws IOException {
+        if (this.m_watcher == null) {
+            this.m_watcher = new ConnectionWatcher();
+        }
+        return this.m_watcher;
+    }
+
+    /**
+     * Watches connections on one selector thread, and runs a callback for
+     * each when it closes or reads fail. Nothing but the end of the stream
+     * should arrive on a registered connection, so anything read is 
+     * discarded.
+     */
+    private static final class ConnectionWatcher implements Runnable {
+
+        private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+        private final Selector m_selector;
+
+        /**
+         * Registrations for the selector thread to make.
+         */
+        private final Queue<Runnable> m_pending =
+            new ConcurrentLinkedQueue<Runnable>();
+
+        private final ByteBuffer m_scratch = ByteBuffer.allocate(512);
+
+        private ConnectionWatcher() throws IOException {
+            this.m_selector = Selector.open();
+            final Thread thread = 
+                new Thread(this, "Loopback-Registration-Watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void watch(final SocketChannel channel, 
+                final Runnable onClosed) {
+            this.m_pending.add(new Runnable() {
+                public void run() {
+                    try {
+                        channel.register(m_selector, SelectionKey.OP_READ, 
+                            onClosed);
+                    } catch (final IOException e) {
+                        onClosed.run();
+                    }
+                }
+            });
+            this.m_selector.wakeup();
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    this.m_selector.select();
+                } catch (final IOException e) {
+                    return;
+                }
+                Runnable registration;
+                while ((registration = this.m_pending.poll()) != null) {
+                    registration.run();
+                }
+                final Iterator<SelectionKey> keys = 
+                    this.m_selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        read(key);
+                    }
+                }
+            }
+        }
+
+        private void read(final SelectionKey key) {
+            final SocketChannel channel = (SocketChannel) key.channel();
+            int n;
+            try {
+                this.m_scratch.clear();
+                n = channel.read(this.m_scratch);
+            } catch (final IOException e) {
+                // Treated the same as the stream ending.
+                n = -1;
+            }
+            if (n == -1) {
+                key.cancel();
+                try {
+                    ((Runnable) key.attachment()).run();
+                } catch (final RuntimeException e) {
+                    // Keep watching the other connections.
+                    m_log.warn("Error handling closed connection", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a REGISTER on an open connection and waits for the answer.
+     *
+     * @param client The URI of the client to register.
+     * @param proxy The URI of the proxy.
+     * @param os The stream to write the request to.
+     * @param is The stream to read the response from.
+     * @throws IOException If the registration fails.
+     */
+    private void register(final URI client, final URI proxy, 
+            final OutputStream os, final InputStream is) throws IOException {
+        os.write(registerRequest(client, proxy).getBytes("US-ASCII"));
+        os.flush();
+        final String status = readResponse(is);
+        if (!status.startsWith("SIP/2.0 200")) {
+            throw new IOException("Unexpected response: " + status);
+        }
+    }
+
+    private static InetSocketAddress address(final URI proxy) {
+        final String ssp = proxy.getSchemeSpecificPart();
+        final int semi = ssp.indexOf(';');
+        final String hostPort = semi == -1 ? ssp : ssp.substring(0, semi);
+        final int colon = hostPort.lastIndexOf(':');
+        return new InetSocketAddress(hostPort.substring(0, colon),
+            Integer.parseInt(hostPort.substring(colon + 1)));
+    }
+
+    private String registerRequest(final URI client, final URI proxy) {
+        final long cseq = this.m_cseq.incrementAndGet();
+        return "REGISTER " + proxy + " SIP/2.0\r\n" +
+            "Via: SIP/2.0/TCP 127.0.0.1;branch=z9hG4bK" + cseq + "\r\n" +
+            "Max-Forwards: 70\r\n" +
+            "To: <" + client + ">\r\n" +
+            "From: <" + client + ">;tag=" + cseq + "\r\n" +
+            "Call-ID: " + cseq + "@127.0.0.1\r\n" +
+            "CSeq: " + cseq + " REGISTER\r\n" +
+            "Contact: <" + client + ">\r\n" +
+            "Expires: 3600\r\n" +
+            "Content-Length: 0\r\n\r\n";
+    }
+
+    private static String readResponse(final InputStream is) 
+            throws IOException {
+        final StringBuilder status = new StringBuilder(32);
+        int lineLength = 0;
+        boolean statusLine = true;
+        int ch;
+        while ((ch = is.read()) != -1) {
+            if (ch == '\r') {
+                continue;
+            }
+            if (ch == '\n') {
+                if (lineLength == 0 && !statusLine) {
+                    return status.toString();
+                }
+                if (lineLength == 0) {
+                    // A keep alive response ahead of the message.
+                    continue;
+                }
+                statusLine = false;
+                lineLength = 0;
+                continue;
+            }
+            if (statusLine) {
+                status.append((char) ch);
+            }
+            lineLength++;
+        }
+        throw new IOException("Connection closed");
+    }
+
+    private static void close(final Socket sock) {
+        try {
+            sock.close();
+        } catch (final IOException e) {
+            // Nothing we can do.
+        }
+    }
+}
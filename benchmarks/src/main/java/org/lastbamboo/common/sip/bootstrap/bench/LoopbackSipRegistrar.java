@@ -0,0 +1,653 @@
+package org.lastbamboo.common.sip.bootstrap.bench;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A small SIP registrar and proxy listening on the loopback interface, for
+ * load and failover testing without any outside services.
+ * <p>
+ * It answers every REGISTER with a 200 OK and binds the address of record
+ * in the To header to the connection the REGISTER came in on. Other requests
+ * are forwarded over the connection bound to their request URI, and their
+ * responses are sent back over the connection the request came from,
+ * matched by Call-ID. Each double CRLF keep alive ping is answered with a
+ * single CRLF pong, as RFC 5626 describes. Latency, dropped REGISTERs,
+ * connection resets and slow accepts can be injected through
+ * {@link FaultInjection}.
+ * <p>
+ * Every connection is served by one selector thread, and injected delays run
+ * on one timer thread, so the registrar holds thousands of connections
+ * without a thread for each.
+ */
+public class LoopbackSipRegistrar {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private static final String CRLF = "\r\n";
+
+    private static final byte[] PONG = ascii(CRLF);
+
+    private final ServerSocketChannel m_serverChannel;
+
+    private final Selector m_selector;
+
+    private final ScheduledExecutorService m_timer =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                final Thread thread = 
+                    new Thread(r, "Loopback-SIP-Registrar-Timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    private final FaultInjection m_faults;
+
+    private final AtomicLong m_registrations = new AtomicLong();
+
+    /**
+     * Connections by the address of record registered on them.
+     */
+    private final Map<String, Connection> m_bindings =
+        new ConcurrentHashMap<String, Connection>();
+
+    /**
+     * The connections requests came in on, by Call-ID, for routing
+     * responses.
+     */
+    private final Map<String, Connection> m_transactions =
+        new ConcurrentHashMap<String, Connection>();
+
+    private final Set<Connection> m_connections =
+        Collections.newSetFromMap(
+            new ConcurrentHashMap<Connection, Boolean>());
+
+    /**
+     * Work for the selector thread from other threads, such as accepted
+     * connections coming back from an accept delay, or connections with
+     * writes left over.
+     */
+    private final Queue<Runnable> m_selectorTasks =
+        new ConcurrentLinkedQueue<Runnable>();
+
+    private volatile boolean m_running;
+
+    /**
+     * Creates a new registrar on an ephemeral loopback port without faults.
+     *
+     * @throws IOException If we could not bind the port.
+     */
+    public LoopbackSipRegistrar() throws IOException {
+        this(FaultInjection.none());
+    }
+
+    /**
+     * Creates a new registrar on an ephemeral loopback port.
+     *
+     * @param faults The faults to inject.
+     * @throws IOException If we could not bind the port.
+     */
+    public LoopbackSipRegistrar(final FaultInjection faults)
+        throws IOException {
+        this.m_faults = faults;
+        this.m_serverChannel = ServerSocketChannel.open();
+        this.m_serverChannel.socket().setReuseAddress(true);
+        this.m_serverChannel.socket().bind(
+            new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0),
+            1024);
+        this.m_serverChannel.configureBlocking(false);
+        this.m_selector = Selector.open();
+    }
+
+    /**
+     * Starts accepting connections.
+     */
+    public void start() {
+        this.m_running = true;
+        final Thread selector = new Thread(new Runnable() {
+            public void run() {
+                selectLoop();
+            }
+        }, "Loopback-SIP-Registrar-Selector");
+        selector.setDaemon(true);
+        selector.start();
+    }
+
+    /**
+     * Stops the registrar, closing the server socket and every connection,
+     * as a proxy restart would.
+     */
+    public void stop() {
+        this.m_running = false;
+        try {
+            this.m_serverChannel.close();
+        } catch (final IOException e) {
+            m_log.debug("Error closing server socket", e);
+        }
+        for (final Connection conn : this.m_connections) {
+            conn.close();
+        }
+        this.m_timer.shutdownNow();
+        this.m_selector.wakeup();
+    }
+
+    /**
+     * Returns the address the registrar listens on.
+     *
+     * @return The registrar's address.
+     */
+    public InetSocketAddress getAddress() {
+        return (InetSocketAddress)
+            this.m_serverChannel.socket().getLocalSocketAddress();
+    }
+
+    /**
+     * Returns the faults this registrar injects, which may be changed at any
+     * time.
+     *
+     * @return The fault settings.
+     */
+    public FaultInjection getFaults() {
+        return this.m_faults;
+    }
+
+    /**
+     * Returns the number of REGISTER requests answered so far.
+     *
+     * @return The number of registrations.
+     */
+    public long getRegistrations() {
+        return this.m_registrations.get();
+    }
+
+    /**
+     * Returns the number of open client connections.
+     *
+     * @return The number of connections.
+     */
+    public int getConnections() {
+        return this.m_connections.size();
+    }
+
+    private void selectLoop() {
+        try {
+            this.m_serverChannel.register(this.m_selector,
+                SelectionKey.OP_ACCEPT);
+            while (this.m_running) {
+                this.m_selector.select();
+                Runnable task;
+                while ((task = this.m_selectorTasks.poll()) != null) {
+                    task.run();
+                }
+                final Iterator<SelectionKey> keys =
+                    this.m_selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    final Connection conn = (Connection) key.attachment();
+                    if (key.isWritable()) {
+                        conn.flush();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        conn.read();
+                    }
+                }
+            }
+        } catch (final IOException e) {
+            if (this.m_running) {
+                m_log.warn("Error selecting", e);
+            }
+        } finally {
+            try {
+                this.m_selector.close();
+            } catch (final IOException e) {
+                m_log.debug("Error closing selector", e);
+            }
+        }
+    }
+
+    private void accept() {
+        final SocketChannel channel;
+        try {
+            channel = this.m_serverChannel.accept();
+        } catch (final IOException e) {
+            if (this.m_running) {
+                m_log.warn("Error accepting", e);
+            }
+            return;
+        }
+        if (channel == null) {
+            return;
+        }
+        final long delay = this.m_faults.getAcceptDelayMillis();
+        if (delay <= 0) {
+            serve(channel);
+            return;
+        }
+        this.m_timer.schedule(new Runnable() {
+            public void run() {
+                onSelector(new Runnable() {
+                    public void run() {
+                        serve(channel);
+                    }
+                });
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void serve(final SocketChannel channel) {
+        final Connection conn;
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            conn = new Connection(channel);
+            conn.m_key = channel.register(this.m_selector,
+                SelectionKey.OP_READ, conn);
+        } catch (final IOException e) {
+            m_log.debug("Could not set up connection", e);
+            close(channel);
+            return;
+        }
+        this.m_connections.add(conn);
+        if (!this.m_running) {
+            conn.close();
+        }
+    }
+
+    /**
+     * Runs a task on the selector thread.
+     */
+    private void onSelector(final Runnable task) {
+        this.m_selectorTasks.add(task);
+        this.m_selector.wakeup();
+    }
+
+    /**
+     * Handles one message from a connection. Called on the selector thread.
+     */
+    private void handle(final Connection conn, final Message message) {
+        if (message.isResponse()) {
+            forwardResponse(message);
+        } else if (message.m_startLine.startsWith("REGISTER ")) {
+            final long latency = this.m_faults.getRegisterLatencyMillis();
+            if (latency <= 0) {
+                register(conn, message);
+                return;
+            }
+            this.m_timer.schedule(new Runnable() {
+                public void run() {
+                    register(conn, message);
+                }
+            }, latency, TimeUnit.MILLISECONDS);
+        } else {
+            forwardRequest(conn, message);
+        }
+    }
+
+    private void register(final Connection conn, final Message message) {
+        if (this.m_faults.shouldDrop()) {
+            m_log.debug("Dropping REGISTER");
+            return;
+        }
+        if (this.m_faults.shouldReset()) {
+            m_log.debug("Resetting connection");
+            conn.reset();
+            return;
+        }
+        final String aor = addressOfRecord(message.header("To"));
+        if (aor != null) {
+            this.m_bindings.put(aor, conn);
+        }
+        conn.write(response(message, "200 OK", "Expires: 3600" + CRLF));
+        this.m_registrations.incrementAndGet();
+    }
+
+    private void forwardRequest(final Connection conn, final Message message) {
+        final String[] parts = message.m_startLine.split(" ");
+        final Connection target = parts.length < 2 ? null :
+            this.m_bindings.get(stripParams(parts[1]));
+        if (target == null) {
+            conn.write(response(message, "404 Not Found", ""));
+            return;
+        }
+        final String callId = message.header("Call-ID");
+        if (callId != null) {
+            this.m_transactions.put(callId, conn);
+        }
+        target.write(message.m_raw);
+    }
+
+    private void forwardResponse(final Message message) {
+        final String callId = message.header("Call-ID");
+        final Connection origin = callId == null ? null :
+            this.m_transactions.get(callId);
+        if (origin == null) {
+            m_log.debug("No transaction for response: {}",
+                message.m_startLine);
+            return;
+        }
+        origin.write(message.m_raw);
+    }
+
+    private static byte[] response(final Message request, final String status,
+            final String extraHeaders) {
+        final StringBuilder sb = new StringBuilder(512);
+        sb.append("SIP/2.0 ").append(status).append(CRLF);
+        for (final String line : request.m_headers) {
+            if (startsWithIgnoreCase(line, "Via:") ||
+                startsWithIgnoreCase(line, "From:") ||
+                startsWithIgnoreCase(line, "Call-ID:") ||
+                startsWithIgnoreCase(line, "CSeq:") ||
+                startsWithIgnoreCase(line, "Contact:")) {
+                sb.append(line).append(CRLF);
+            } else if (startsWithIgnoreCase(line, "To:")) {
+                sb.append(line);
+                if (line.indexOf(";tag=") == -1) {
+                    sb.append(";tag=loopback");
+                }
+                sb.append(CRLF);
+            }
+        }
+        sb.append(extraHeaders);
+        sb.append("Content-Length: 0").append(CRLF).append(CRLF);
+        return ascii(sb.toString());
+    }
+
+    private static String addressOfRecord(final String to) {
+        if (to == null) {
+            return null;
+        }
+        final int open = to.indexOf('<');
+        final int close = to.indexOf('>');
+        if (open != -1 && close > open) {
+            return stripParams(to.substring(open + 1, close));
+        }
+        return stripParams(to.trim());
+    }
+
+    private static String stripParams(final String uri) {
+        final int semi = uri.indexOf(';');
+        return semi == -1 ? uri : uri.substring(0, semi);
+    }
+
+    private static boolean startsWithIgnoreCase(final String line,
+            final String prefix) {
+        return line.regionMatches(true, 0, prefix, 0, prefix.length());
+    }
+
+    private static byte[] ascii(final String str) {
+        try {
+            return str.getBytes("US-ASCII");
+        } catch (final UnsupportedEncodingException e) {
+            throw new IllegalStateException("No ASCII?", e);
+        }
+    }
+
+    private void close(final SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            m_log.debug("Error closing channel", e);
+        }
+    }
+
+    /**
+     * A parsed SIP message.
+     */
+    private static final class Message {
+
+        private final String m_startLine;
+
+        private final String[] m_headers;
+
+        private final byte[] m_raw;
+
+        private Message(final String head, final byte[] raw) {
+            final String[] lines = head.split(CRLF);
+            this.m_startLine = lines[0];
+            this.m_headers = new String[lines.length - 1];
+            System.arraycopy(lines, 1, this.m_headers, 0,
+                this.m_headers.length);
+            this.m_raw = raw;
+        }
+
+        private boolean isResponse() {
+            return this.m_startLine.startsWith("SIP/2.0 ");
+        }
+
+        private String header(final String name) {
+            for (final String line : this.m_headers) {
+                if (startsWithIgnoreCase(line, name + ":")) {
+                    return line.substring(name.length() + 1).trim();
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * A client connection. Reads happen on the selector thread. Writes may
+     * come from the timer thread too, so they are queued under the
+     * connection's lock, and whatever the socket won't take at once is
+     * left for the selector to finish.
+     */
+    private final class Connection {
+
+        private final SocketChannel m_channel;
+
+        private final ByteBuffer m_readBuffer = ByteBuffer.allocate(8192);
+
+        /**
+         * Bytes read but not yet parsed into messages.
+         */
+        private byte[] m_inbound = new byte[0];
+
+        private final Queue<ByteBuffer> m_outbound =
+            new LinkedList<ByteBuffer>();
+
+        private SelectionKey m_key;
+
+        private Connection(final SocketChannel channel) {
+            this.m_channel = channel;
+        }
+
+        /**
+         * Reads what is available and handles every complete message.
+         * Called on the selector thread.
+         */
+        private void read() {
+            final int n;
+            try {
+                this.m_readBuffer.clear();
+                n = this.m_channel.read(this.m_readBuffer);
+            } catch (final IOException e) {
+                m_log.debug("Error reading", e);
+                close();
+                return;
+            }
+            if (n == -1) {
+                close();
+                return;
+            }
+            final byte[] inbound = new byte[this.m_inbound.length + n];
+            System.arraycopy(this.m_inbound, 0, inbound, 0,
+                this.m_inbound.length);
+            System.arraycopy(this.m_readBuffer.array(), 0, inbound,
+                this.m_inbound.length, n);
+            int offset = 0;
+            while (this.m_channel.isOpen()) {
+                final int consumed = parse(inbound, offset);
+                if (consumed == 0) {
+                    break;
+                }
+                offset += consumed;
+            }
+            this.m_inbound = new byte[inbound.length - offset];
+            System.arraycopy(inbound, offset, this.m_inbound, 0,
+                this.m_inbound.length);
+        }
+
+        /**
+         * Handles the keep alive or message at an offset.
+         *
+         * @return The number of bytes used, or 0 if more are needed.
+         */
+        private int parse(final byte[] data, final int offset) {
+            final int available = data.length - offset;
+            if (startsWithCrlf(data, offset, available)) {
+                if (available < 4) {
+                    // Could be the start of a ping.
+                    return 0;
+                }
+                if (startsWithCrlf(data, offset + 2, available - 2)) {
+                    // A double CRLF ping gets a single CRLF pong.
+                    write(PONG);
+                    return 4;
+                }
+                // A lone CRLF, such as a pong, needs no answer.
+                return 2;
+            }
+            final int headEnd = indexOf(data, offset, ascii(CRLF + CRLF));
+            if (headEnd == -1) {
+                return 0;
+            }
+            final String head;
+            try {
+                head = new String(data, offset, headEnd + 2 - offset,
+                    "US-ASCII");
+            } catch (final UnsupportedEncodingException e) {
+                throw new IllegalStateException("No ASCII?", e);
+            }
+            final int contentLength = contentLength(head);
+            final int length = headEnd + 4 - offset + contentLength;
+            if (available < length) {
+                return 0;
+            }
+            final byte[] raw = new byte[length];
+            System.arraycopy(data, offset, raw, 0, length);
+            handle(this, new Message(head, raw));
+            return length;
+        }
+
+        private void write(final byte[] data) {
+            synchronized (this) {
+                this.m_outbound.add(ByteBuffer.wrap(data));
+            }
+            if (!flush()) {
+                onSelector(new Runnable() {
+                    public void run() {
+                        if (m_key != null && m_key.isValid()) {
+                            m_key.interestOps(SelectionKey.OP_READ |
+                                SelectionKey.OP_WRITE);
+                        }
+                    }
+                });
+            }
+        }
+
+        /**
+         * Writes as much queued data as the socket takes.
+         *
+         * @return <code>true</code> if nothing is left to write.
+         */
+        private synchronized boolean flush() {
+            try {
+                while (!this.m_outbound.isEmpty()) {
+                    final ByteBuffer buf = this.m_outbound.peek();
+                    this.m_channel.write(buf);
+                    if (buf.hasRemaining()) {
+                        return false;
+                    }
+                    this.m_outbound.poll();
+                }
+            } catch (final IOException e) {
+                m_log.debug("Error writing", e);
+                close();
+                return true;
+            }
+            if (this.m_key != null && this.m_key.isValid()) {
+                this.m_key.interestOps(SelectionKey.OP_READ);
+            }
+            return true;
+        }
+
+        private void reset() {
+            try {
+                this.m_channel.socket().setSoLinger(true, 0);
+            } catch (final SocketException e) {
+                m_log.debug("Could not set linger", e);
+            }
+            close();
+        }
+
+        private void close() {
+            m_connections.remove(this);
+            m_bindings.values().removeAll(Collections.singleton(this));
+            m_transactions.values().removeAll(Collections.singleton(this));
+            LoopbackSipRegistrar.this.close(this.m_channel);
+        }
+    }
+
+    private static boolean startsWithCrlf(final byte[] data, final int offset,
+            final int available) {
+        return available >= 1 && data[offset] == '\r' &&
+            (available < 2 || data[offset + 1] == '\n');
+    }
+
+    private static int indexOf(final byte[] data, final int offset,
+            final byte[] target) {
+        outer:
+        for (int i = offset; i <= data.length - target.length; i++) {
+            for (int j = 0; j < target.length; j++) {
+                if (data[i + j] != target[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static int contentLength(final String head) {
+        for (final String line : head.split(CRLF)) {
+            if (startsWithIgnoreCase(line, "Content-Length:") ||
+                startsWithIgnoreCase(line, "l:")) {
+                return Integer.parseInt(
+                    line.substring(line.indexOf(':') + 1).trim());
+            }
+        }
+        return 0;
+    }
+}
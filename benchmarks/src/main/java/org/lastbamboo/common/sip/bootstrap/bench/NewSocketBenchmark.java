@@ -0,0 +1,187 @@
+package org.lastbamboo.common.sip.bootstrap.bench;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.lastbamboo.common.offer.answer.IceMediaStreamDesc;
+import org.lastbamboo.common.offer.answer.NoAnswerException;
+import org.lastbamboo.common.offer.answer.OfferAnswerFactory;
+import org.lastbamboo.common.offer.answer.OfferAnswerMessage;
+import org.lastbamboo.common.offer.answer.OfferAnswerTransactionListener;
+import org.lastbamboo.common.offer.answer.Offerer;
+import org.lastbamboo.common.p2p.TcpUdpSocket;
+import org.lastbamboo.common.sip.bootstrap.ConnectionAdmission;
+import org.lastbamboo.common.sip.bootstrap.MetricsRegistry;
+import org.lastbamboo.common.sip.bootstrap.PeerRouteCache;
+import org.lastbamboo.common.sip.bootstrap.PeerSocketPool;
+import org.lastbamboo.common.sip.bootstrap.ProxyRegistrar;
+import org.lastbamboo.common.sip.bootstrap.RelayWaitEstimator;
+import org.lastbamboo.common.sip.bootstrap.RobustProxyRegistrarFactory;
+import org.lastbamboo.common.sip.bootstrap.SipClientLauncher;
+import org.lastbamboo.common.sip.bootstrap.StandbySipClients;
+import org.lastbamboo.common.sip.bootstrap.TcpUdpSocketFactory;
+import org.lastbamboo.common.sip.client.SipClient;
+import org.lastbamboo.common.sip.client.SipClientTracker;
+import org.lastbamboo.common.sip.client.util.ProxyRegistrationListener;
+import org.littleshoot.util.KeyStorage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks {@link SipClientLauncher#newSocket(URI)}, both for a peer with 
+ * an idle pooled socket, the path repeated connections to hot peers take, 
+ * and for a pool miss. A miss goes through admission, the route cache and 
+ * relay wait, and sends an offer through the SIP client. The ICE exchange 
+ * that follows needs a live peer, so the client answers at once and the 
+ * socket factory hands back an unconnected socket. The miss numbers are the
+ * launcher's own overhead, not the time to reach a peer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NewSocketBenchmark {
+
+    private static final URI PEER = URI.create("sip:5678@lastbamboo.org");
+
+    /**
+     * A peer whose sockets are never pooled.
+     */
+    private static final URI MISSED_PEER = 
+        URI.create("sip:9012@lastbamboo.org");
+
+    private static final byte[] OFFER = new byte[256];
+
+    private ServerSocket m_serverSocket;
+
+    private Socket m_client;
+
+    private Socket m_server;
+
+    private SipClientLauncher m_launcher;
+
+    @Setup
+    public void setUp() throws IOException {
+        this.m_serverSocket = new ServerSocket(0, 1, 
+            InetAddress.getByName("127.0.0.1"));
+        this.m_client = new Socket();
+        this.m_client.connect(new InetSocketAddress("127.0.0.1", 
+            this.m_serverSocket.getLocalPort()));
+        this.m_server = this.m_serverSocket.accept();
+
+        this.m_launcher = new SipClientLauncher(new AnsweringTracker(), 
+            new NoOpRegistrarFactory(), null, new RelayWaitEstimator(10), 
+            new StandbySipClients(), new PeerSocketPool(), 
+            new PeerRouteCache(), null, new MetricsRegistry(), 
+            new ConnectionAdmission());
+        this.m_launcher.setSocketFactory(new OfferingSocketFactory());
+        this.m_launcher.login("1234", "password");
+        this.m_launcher.releaseSocket(PEER, this.m_client);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        this.m_client.close();
+        this.m_server.close();
+        this.m_serverSocket.close();
+    }
+
+    @Benchmark
+    public Socket pooledNewSocket() throws IOException, NoAnswerException {
+        final Socket sock = this.m_launcher.newSocket(PEER);
+        this.m_launcher.releaseSocket(PEER, sock);
+        return sock;
+    }
+
+    @Benchmark
+    public Socket missedNewSocket() throws IOException, NoAnswerException {
+        // Never released, so every call misses the pool.
+        return this.m_launcher.newSocket(MISSED_PEER);
+    }
+
+    /**
+     * Sends the offer through the SIP client, as the real exchange does, 
+     * then returns an unconnected socket in place of running ICE.
+     */
+    private static final class OfferingSocketFactory 
+        implements TcpUdpSocketFactory {
+
+        private final OfferAnswerTransactionListener m_listener = 
+            new OfferAnswerTransactionListener() {
+                public void onTransactionSucceeded(
+                    final OfferAnswerMessage message) {
+                }
+                public void onTransactionFailed(
+                    final OfferAnswerMessage message) {
+                }
+            };
+
+        public TcpUdpSocket<Socket> newTcpUdpSocket(final Offerer offerer,
+                final OfferAnswerFactory offerAnswerFactory,
+                final int relayWaitTime, final IceMediaStreamDesc desc) {
+            return new TcpUdpSocket<Socket>() {
+                public Socket newSocket(final URI uri) throws IOException {
+                    offerer.offer(uri, OFFER, m_listener, null);
+                    return new Socket();
+                }
+            };
+        }
+    }
+
+    /**
+     * Tracks a single client that answers every offer at once.
+     */
+    private static final class AnsweringTracker implements SipClientTracker {
+
+        private final SipClient m_client = new SipClient() {
+            public void connect() {
+            }
+            public void register() {
+            }
+            public void offer(final URI uri, final byte[] offer,
+                    final OfferAnswerTransactionListener listener,
+                    final KeyStorage keyStorage) {
+                listener.onTransactionSucceeded(null);
+            }
+        };
+
+        public void addSipClient(final SipClient client,
+                final ProxyRegistrationListener listener) {
+        }
+
+        public SipClient getSipClient() {
+            return this.m_client;
+        }
+    }
+
+    /**
+     * Lets the launcher log in without registering anywhere.
+     */
+    private static final class NoOpRegistrarFactory 
+        implements RobustProxyRegistrarFactory {
+
+        public ProxyRegistrar getRegistrar(final URI client,
+                final ProxyRegistrationListener listener) {
+            return new ProxyRegistrar() {
+                public void register() {
+                }
+            };
+        }
+    }
+}
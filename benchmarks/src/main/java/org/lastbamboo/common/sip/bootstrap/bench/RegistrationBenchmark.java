@@ -0,0 +1,70 @@
+package org.lastbamboo.common.sip.bootstrap.bench;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.lastbamboo.common.sip.bootstrap.ProxyRegistrar;
+import org.lastbamboo.common.sip.bootstrap.ProxyRegistrarFactoryImpl;
+import org.lastbamboo.common.sip.client.util.ProxyRegistrationListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks creating {@link ProxyRegistrarFactoryImpl} registrars.
+ * <p>
+ * Registrations themselves are not benchmarked. A real registration runs
+ * {@link org.lastbamboo.common.sip.client.SipClientImpl}, which needs the 
+ * SIP stack's message factory, TCP transport layer and transaction tracker.
+ * Applications get those from their own wiring, and this module has no way
+ * to build them, so it can't register through the real factory. Timing a 
+ * stand-in instead would only measure the stand-in.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RegistrationBenchmark {
+
+    private static final URI CLIENT = URI.create("sip:1234@lastbamboo.org");
+
+    private static final URI PROXY = 
+        URI.create("sip:127.0.0.1:5061;transport=tcp");
+
+    private ProxyRegistrarFactoryImpl m_factory;
+
+    private final ProxyRegistrationListener m_noOpListener = 
+        new ProxyRegistrationListener() {
+            public void registered(final URI client, final URI proxy) {
+            }
+            public void reRegistered(final URI client, final URI proxy) {
+            }
+            public void registrationFailed(final URI client, 
+                final URI proxy) {
+            }
+            public void unregistered(final URI client, final URI proxy) {
+            }
+        };
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        // Creating registrars never touches the SIP stack.
+        this.m_factory = new ProxyRegistrarFactoryImpl(null, null, null, null,
+            null, null, null, null, null);
+    }
+
+    @Benchmark
+    public ProxyRegistrar getRegistrar() {
+        return this.m_factory.getRegistrar(CLIENT, PROXY, this.m_noOpListener);
+    }
+}
@@ -0,0 +1,178 @@
+package org.lastbamboo.common.sip.bootstrap.bench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.lastbamboo.common.sip.bootstrap.RacePolicy;
+import org.lastbamboo.common.sip.bootstrap.RacingProxyRegistrar;
+import org.lastbamboo.common.sip.bootstrap.ReRegistrationScheduler;
+import org.lastbamboo.common.sip.bootstrap.RegistrationExecutors;
+import org.lastbamboo.common.sip.client.util.ProxyRegistrationListener;
+import org.littleshoot.util.CandidateProvider;
+
+/**
+ * Registers thousands of simulated clients with two loopback registrars,
+ * then stops the busier registrar and measures how long it takes every
+ * client on it to fail over to the other.
+ * <p>
+ * Clients register through {@link LoopbackRegistrarFactory}, so this 
+ * measures the racing, re-registration pacing and failover logic, not the
+ * real {@link org.lastbamboo.common.sip.bootstrap.ProxyRegistrarImpl} and
+ * SIP client. Registrations run on a fixed pool, and the registrars and the
+ * client connections are each served by a single selector thread, so a run
+ * is limited by file descriptors rather than threads.
+ * <p>
+ * Usage: <code>RegistrationLoadDriver [clients] [registerLatencyMillis] 
+ * [dropProbability]</code>
+ */
+public final class RegistrationLoadDriver {
+
+    /**
+     * The rate clients that lost their proxy come back at, which is what 
+     * bounds the failover time.
+     */
+    private static final double RE_REGISTRATIONS_PER_SECOND = 500;
+
+    private RegistrationLoadDriver() {
+        // Only run from main.
+    }
+
+    public static void main(final String[] args) throws IOException,
+            InterruptedException {
+        final int clients = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        final long latency = args.length > 1 ? Long.parseLong(args[1]) : 0L;
+        final double drop = args.length > 2 ? Double.parseDouble(args[2]) : 0.0;
+
+        final FaultInjection faults = FaultInjection.none()
+            .setRegisterLatencyMillis(latency).setDropProbability(drop);
+        final LoopbackSipRegistrar first = new LoopbackSipRegistrar(faults);
+        final LoopbackSipRegistrar second = new LoopbackSipRegistrar(faults);
+        first.start();
+        second.start();
+
+        final List<URI> proxies = new ArrayList<URI>();
+        proxies.add(uri(first.getAddress()));
+        proxies.add(uri(second.getAddress()));
+        final CandidateProvider<URI> candidates = new CandidateProvider<URI>() {
+            public URI getCandidate() {
+                return proxies.get(0);
+            }
+            public Collection<URI> getCandidates() {
+                return proxies;
+            }
+        };
+
+        final ExecutorService executor = 
+            RegistrationExecutors.newBoundedExecutor(64, clients * 2);
+        final ScheduledExecutorService scheduler = 
+            Executors.newScheduledThreadPool(2);
+        final LoopbackRegistrarFactory factory = 
+            new LoopbackRegistrarFactory(executor, true);
+        final RacePolicy policy = new RacePolicy(2, 250L, false);
+        final ReRegistrationScheduler reRegistration = 
+            new ReRegistrationScheduler(scheduler, 
+                ReRegistrationScheduler.DEFAULT_BASE_DELAY_MILLIS,
+                ReRegistrationScheduler.DEFAULT_MAX_DELAY_MILLIS, 
+                RE_REGISTRATIONS_PER_SECOND, clients);
+
+        final CountDownLatch registered = new CountDownLatch(clients);
+        final AtomicInteger failovers = new AtomicInteger();
+        final Tracker tracker = new Tracker(registered, proxies.get(0));
+
+        final long start = System.nanoTime();
+        for (int i = 0; i < clients; i++) {
+            final URI client = URI.create("sip:" + i + "@lastbamboo.org");
+            new RacingProxyRegistrar(client, candidates, factory, tracker,
+                scheduler, policy, reRegistration).register();
+        }
+        if (!registered.await(5, TimeUnit.MINUTES)) {
+            System.out.println("Timed out with " + registered.getCount() + 
+                " clients unregistered");
+            return;
+        }
+        final long registerMillis = 
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.println("Registered " + clients + " clients in " + 
+            registerMillis + "ms (" + 
+            (clients * 1000L / Math.max(1L, registerMillis)) + "/s)");
+
+        final int onFirst = tracker.m_onFirst.get();
+        System.out.println(onFirst + " clients on first registrar, " + 
+            (clients - onFirst) + " on second");
+        final CountDownLatch failedOver = new CountDownLatch(onFirst);
+        tracker.failover(failedOver, failovers);
+        final long stop = System.nanoTime();
+        first.stop();
+        if (!failedOver.await(5, TimeUnit.MINUTES)) {
+            System.out.println("Timed out with " + failedOver.getCount() + 
+                " clients not failed over");
+            return;
+        }
+        System.out.println("Failed over " + failovers.get() + " clients in " +
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stop) + "ms");
+        second.stop();
+        executor.shutdownNow();
+        scheduler.shutdownNow();
+    }
+
+    private static URI uri(final InetSocketAddress address) {
+        return URI.create("sip:127.0.0.1:" + address.getPort() + 
+            ";transport=tcp");
+    }
+
+    private static final class Tracker implements ProxyRegistrationListener {
+
+        private final CountDownLatch m_registered;
+
+        private final URI m_first;
+
+        private final AtomicInteger m_onFirst = new AtomicInteger();
+
+        private volatile CountDownLatch m_failedOver;
+
+        private volatile AtomicInteger m_failovers;
+
+        private Tracker(final CountDownLatch registered, final URI first) {
+            this.m_registered = registered;
+            this.m_first = first;
+        }
+
+        private void failover(final CountDownLatch failedOver,
+                final AtomicInteger failovers) {
+            this.m_failovers = failovers;
+            this.m_failedOver = failedOver;
+        }
+
+        public void registered(final URI client, final URI proxy) {
+            final CountDownLatch failedOver = this.m_failedOver;
+            if (failedOver == null) {
+                if (proxy.equals(this.m_first)) {
+                    this.m_onFirst.incrementAndGet();
+                }
+                this.m_registered.countDown();
+            } else {
+                this.m_failovers.incrementAndGet();
+                failedOver.countDown();
+            }
+        }
+
+        public void reRegistered(final URI client, final URI proxy) {
+        }
+
+        public void registrationFailed(final URI client, final URI proxy) {
+        }
+
+        public void unregistered(final URI client, final URI proxy) {
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import java.net.URI;
+
+import org.lastbamboo.common.sip.client.CrlfDelayCalculator;
+import org.lastbamboo.common.sip.client.util.ProxyRegistrationListener;
+
+/**
+ * Keepalive delays for a single client that widen while the NAT binding to
+ * its proxy keeps surviving, drawing on and adding to what a
+ * {@link KeepAliveLearner} knows about the proxy.
+ * <p>
+ * Sending a keepalive doesn't show the binding survived the wait before it,
+ * and the SIP client doesn't tell us when the CRLF reply arrives. What it 
+ * does tell us is when the proxy answers a re-REGISTER on the same flow,
+ * which proves every interval used since the last answer, so that is when
+ * an interval counts as safe and the next wider one is tried. When the 
+ * client loses its registration, which is how a reset connection shows up,
+ * the interval it was using is reported as failed.
+ */
+public final class AdaptiveCrlfDelayCalculator implements CrlfDelayCalculator {
+
+    private final KeepAliveLearner m_learner;
+
+    private final URI m_proxy;
+
+    private final long m_created = System.currentTimeMillis();
+
+    /**
+     * The interval in use. Guarded by this object's lock.
+     */
+    private int m_current;
+
+    /**
+     * The widest interval used since the proxy was last seen on the flow,
+     * or 0 if none. Guarded by this object's lock.
+     */
+    private int m_unproven;
+
+    /**
+     * Creates a new calculator.
+     *
+     * @param learner The learner for the proxy's bindings.
+     * @param proxy The proxy the client is registered with.
+     */
+    public AdaptiveCrlfDelayCalculator(final KeepAliveLearner learner,
+            final URI proxy) {
+        this.m_learner = learner;
+        this.m_proxy = proxy;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized int calculateDelay(final int lastDelay) {
+        if (lastDelay <= 0 || this.m_current <= 0) {
+            this.m_current = this.m_learner.getSafeInterval(this.m_proxy);
+        } else {
+            // We don't know yet whether the binding lived through the last
+            // delay, so keep to it until the proxy is seen on the flow.
+            this.m_unproven = Math.max(this.m_unproven, lastDelay);
+        }
+        return this.m_current;
+    }
+
+    /**
+     * Records that the proxy answered on the flow, so the binding survived
+     * every interval used since it last did, and widens the interval.
+     */
+    private void proxySeen() {
+        final int proven;
+        synchronized (this) {
+            proven = this.m_unproven;
+            if (proven <= 0) {
+                return;
+            }
+            this.m_unproven = 0;
+            this.m_current = this.m_learner.nextInterval(this.m_proxy, proven);
+        }
+        this.m_learner.succeeded(this.m_proxy, proven);
+    }
+
+    private synchronized int current() {
+        return this.m_current;
+    }
+
+    /**
+     * Wraps a listener so re-registrations on the flow are reported to the
+     * learner as successes of the intervals used since the last one, and 
+     * losing the registration as a failure of the current interval.
+     *
+     * @param delegate The listener to pass every event on to.
+     * @return The wrapping listener.
+     */
+    public ProxyRegistrationListener wrap(
+            final ProxyRegistrationListener delegate) {
+        return new ProxyRegistrationListener() {
+            public void registered(final URI client, final URI proxy) {
+                delegate.registered(client, proxy);
+            }
+
+            public void reRegistered(final URI client, final URI proxy) {
+                proxySeen();
+                delegate.reRegistered(client, proxy);
+            }
+
+            public void registrationFailed(final URI client, final URI proxy) {
+                delegate.registrationFailed(client, proxy);
+            }
+
+            public void unregistered(final URI client, final URI proxy) {
+                final int current = current();
+                if (current > 0 && m_learner.isCurrentNetwork(m_created)) {
+                    m_learner.failed(m_proxy, current);
+                }
+                delegate.unregistered(client, proxy);
+            }
+        };
+    }
+}
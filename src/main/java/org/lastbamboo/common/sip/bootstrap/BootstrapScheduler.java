@@ -0,0 +1,234 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The threads that run all background work for bootstrapping: a single
+ * timer thread for delays and periodic tasks, a bounded pool of workers
+ * for blocking work such as connecting and registering with proxies, and a
+ * single discovery thread for looking up candidate proxies. Timer tasks 
+ * should be quick and hand anything that blocks to the workers. Discovery 
+ * lookups can block for as long as the address provider takes, so they get
+ * their own thread rather than holding a worker that registrations need.
+ * <p>
+ * Factories share {@link #shared()} unless told otherwise, so the number of
+ * threads stays the same however many registrations there are. Whoever 
+ * creates a scheduler owns it and is the only one that should shut it down.
+ * Nobody owns the shared scheduler, so it refuses to shut down and its 
+ * threads are daemons that end with the process.
+ * <p>
+ * Workers can be virtual threads on JVMs that support them. Virtual threads
+ * are cheap, so then every task gets its own thread, and the worker and 
+ * queue limits don't apply.
+ */
+public final class BootstrapScheduler {
+
+    private static final Logger LOG =
+        LoggerFactory.getLogger(BootstrapScheduler.class);
+
+    /**
+     * The most discovery lookups that may wait for the discovery thread.
+     */
+    private static final int DISCOVERY_QUEUE_SIZE = 16;
+
+    private static BootstrapScheduler s_shared;
+
+    private final ScheduledExecutorService m_timers;
+
+    private final ExecutorService m_workers;
+
+    private final ExecutorService m_discovery = discovery();
+
+    private final boolean m_shared;
+
+    /**
+     * Creates a new scheduler with the default bounds and platform threads.
+     */
+    public BootstrapScheduler() {
+        this(RegistrationExecutors.DEFAULT_THREADS,
+            RegistrationExecutors.DEFAULT_QUEUE_SIZE, false);
+    }
+
+    /**
+     * Creates a new scheduler.
+     *
+     * @param workers The maximum number of platform thread workers.
+     * @param queueSize The maximum number of tasks that may wait for a
+     * platform thread worker. Tasks submitted beyond that are rejected.
+     * @param virtualThreads Whether to run each task on its own virtual 
+     * thread. If the JVM doesn't support them, we use a bounded pool of
+     * platform threads instead.
+     */
+    public BootstrapScheduler(final int workers, final int queueSize,
+            final boolean virtualThreads) {
+        this(timers(), virtualThreads ? virtualWorkers() : null, workers, 
+            queueSize, false);
+    }
+
+    /**
+     * Creates a new scheduler with workers from the given thread factory.
+     *
+     * @param workers The maximum number of workers.
+     * @param queueSize The maximum number of tasks that may wait for a
+     * worker. Tasks submitted beyond that are rejected.
+     * @param workerFactory The factory for creating workers.
+     */
+    public BootstrapScheduler(final int workers, final int queueSize,
+            final ThreadFactory workerFactory) {
+        this.m_timers = timers();
+        this.m_workers = RegistrationExecutors.newBoundedExecutor(workers,
+            queueSize, workerFactory);
+        this.m_shared = false;
+    }
+
+    private BootstrapScheduler(final ScheduledExecutorService timers,
+            final ExecutorService virtualWorkers, final int workers,
+            final int queueSize, final boolean shared) {
+        this.m_timers = timers;
+        if (virtualWorkers != null) {
+            this.m_workers = virtualWorkers;
+        } else {
+            this.m_workers = RegistrationExecutors.newBoundedExecutor(
+                workers, queueSize, 
+                new RegistrationExecutors.DaemonThreadFactory(
+                    "SIP-Registration-Thread-"));
+        }
+        this.m_shared = shared;
+    }
+
+    /**
+     * Returns the scheduler shared by every factory that isn't given one,
+     * creating it with the default settings the first time. It can't be 
+     * shut down.
+     *
+     * @return The shared scheduler.
+     */
+    public static synchronized BootstrapScheduler shared() {
+        if (s_shared == null) {
+            s_shared = new BootstrapScheduler(timers(), null, 
+                RegistrationExecutors.DEFAULT_THREADS,
+                RegistrationExecutors.DEFAULT_QUEUE_SIZE, true);
+        }
+        return s_shared;
+    }
+
+    /**
+     * Returns an executor with one thread for discovery lookups. Refreshes
+     * are never run more than one at a time, so the queue only needs to 
+     * hold a few.
+     */
+    private static ExecutorService discovery() {
+        return RegistrationExecutors.newBoundedExecutor(1, 
+            DISCOVERY_QUEUE_SIZE, 
+            new RegistrationExecutors.DaemonThreadFactory(
+                "SIP-Discovery-Thread-"));
+    }
+
+    private static ScheduledExecutorService timers() {
+        final ScheduledThreadPoolExecutor timers =
+            new ScheduledThreadPoolExecutor(1,
+                new RegistrationExecutors.DaemonThreadFactory(
+                    "SIP-Bootstrap-Thread-"));
+        timers.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        return timers;
+    }
+
+    /**
+     * Returns a factory for named virtual threads, if the JVM supports them.
+     * This looks the API up reflectively so we still run on older JVMs.
+     *
+     * @param prefix The prefix for thread names.
+     * @return The factory, or <code>null</code> if there are no virtual
+     * threads.
+     */
+    public static ThreadFactory virtualThreadFactory(final String prefix) {
+        try {
+            final Object builder =
+                Thread.class.getMethod("ofVirtual").invoke(null);
+            final Class<?> builderClass =
+                Class.forName("java.lang.Thread$Builder");
+            final Method name =
+                builderClass.getMethod("name", String.class, Long.TYPE);
+            final Object named = name.invoke(builder, prefix, Long.valueOf(1));
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(
+                named);
+        } catch (final Exception e) {
+            LOG.debug("No virtual threads", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns an executor that runs every task on a new virtual thread, or
+     * <code>null</code> if the JVM doesn't support them.
+     */
+    private static ExecutorService virtualWorkers() {
+        final ThreadFactory factory =
+            virtualThreadFactory("SIP-Registration-Thread-");
+        if (factory != null) {
+            try {
+                return (ExecutorService) Executors.class.getMethod(
+                    "newThreadPerTaskExecutor", ThreadFactory.class).invoke(
+                        null, factory);
+            } catch (final Exception e) {
+                LOG.debug("No thread per task executor", e);
+            }
+        }
+        LOG.info("Virtual threads not supported -- using platform threads");
+        return null;
+    }
+
+    /**
+     * Returns the timer for delays and periodic tasks.
+     *
+     * @return The timer.
+     */
+    public ScheduledExecutorService getTimers() {
+        return this.m_timers;
+    }
+
+    /**
+     * Returns the workers for blocking tasks.
+     *
+     * @return The workers.
+     */
+    public ExecutorService getWorkers() {
+        return this.m_workers;
+    }
+
+    /**
+     * Returns the executor for looking up candidate proxies, which may 
+     * block for a long time.
+     *
+     * @return The discovery executor.
+     */
+    public ExecutorService getDiscovery() {
+        return this.m_discovery;
+    }
+
+    /**
+     * Stops the timer, the workers and discovery. Tasks already running 
+     * finish, but delayed and queued tasks are dropped. Only the creator of
+     * a scheduler should call this.
+     *
+     * @throws IllegalStateException If this is the shared scheduler, which
+     * other factories in the process may be using.
+     */
+    public void shutdown() {
+        if (this.m_shared) {
+            throw new IllegalStateException(
+                "The shared scheduler can't be shut down");
+        }
+        this.m_timers.shutdownNow();
+        this.m_workers.shutdownNow();
+        this.m_discovery.shutdownNow();
+    }
+}
@@ -0,0 +1,233 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits how many outgoing connections we set up at once. A setup needs a
+ * permit, and callers wait for one in a bounded queue. Once the queue is
+ * full, or a caller has waited too long, the setup is refused straight away
+ * with a "busy" error rather than joining a pile of offers that would all
+ * time out together.
+ * <p>
+ * Callers that can reuse what another setup to the same peer leaves behind,
+ * such as a pooled socket, may coalesce: they wait for a setup already in
+ * progress to that peer and kind of connection before starting their own.
+ * A setup to a slow peer can take far longer than we'd queue for a permit,
+ * so waiting for the peer has its own, longer limit, after which the caller
+ * stops waiting and sets up on its own. The permit wait only starts once
+ * the caller is done waiting for the peer. Callers that don't coalesce run
+ * alongside any other setups to the same peer, limited only by the permits.
+ */
+public final class ConnectionAdmission {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The default number of setups that may run at once.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT = 16;
+
+    /**
+     * The default number of callers that may wait for a permit.
+     */
+    public static final int DEFAULT_MAX_WAITING = 64;
+
+    /**
+     * The default longest time to wait before giving up as busy.
+     */
+    public static final long DEFAULT_MAX_WAIT_MILLIS = 5 * 1000;
+
+    /**
+     * The default longest time a coalescing caller waits for another setup
+     * to the same peer.
+     */
+    public static final long DEFAULT_MAX_PEER_WAIT_MILLIS = 60 * 1000;
+
+    private final Semaphore m_permits;
+
+    private final int m_maxWaiting;
+
+    private final long m_maxWaitMillis;
+
+    private final long m_maxPeerWaitMillis;
+
+    private final AtomicInteger m_waiting = new AtomicInteger();
+
+    /**
+     * The coalescing setup in progress for each peer, released when it 
+     * finishes.
+     */
+    private final ConcurrentMap<String, CountDownLatch> m_inFlight =
+        new ConcurrentHashMap<String, CountDownLatch>();
+
+    /**
+     * Creates a new limiter with the default settings.
+     */
+    public ConnectionAdmission() {
+        this(DEFAULT_MAX_CONCURRENT, DEFAULT_MAX_WAITING,
+            DEFAULT_MAX_WAIT_MILLIS);
+    }
+
+    /**
+     * Creates a new limiter.
+     *
+     * @param maxConcurrent The number of setups that may run at once.
+     * @param maxWaiting The number of callers that may wait for a permit.
+     * @param maxWaitMillis The longest time a caller waits for a permit
+     * before giving up as busy.
+     */
+    public ConnectionAdmission(final int maxConcurrent, final int maxWaiting,
+            final long maxWaitMillis) {
+        this(maxConcurrent, maxWaiting, maxWaitMillis, 
+            DEFAULT_MAX_PEER_WAIT_MILLIS);
+    }
+
+    /**
+     * Creates a new limiter.
+     *
+     * @param maxConcurrent The number of setups that may run at once.
+     * @param maxWaiting The number of callers that may wait for a permit.
+     * @param maxWaitMillis The longest time a caller waits for a permit
+     * before giving up as busy.
+     * @param maxPeerWaitMillis The longest time a coalescing caller waits 
+     * for another setup to the same peer to finish before setting up on its
+     * own. This should be at least as long as a setup usually takes.
+     */
+    public ConnectionAdmission(final int maxConcurrent, final int maxWaiting,
+            final long maxWaitMillis, final long maxPeerWaitMillis) {
+        this.m_permits = new Semaphore(maxConcurrent);
+        this.m_maxWaiting = maxWaiting;
+        this.m_maxWaitMillis = maxWaitMillis;
+        this.m_maxPeerWaitMillis = maxPeerWaitMillis;
+    }
+
+    /**
+     * Waits until a setup for the given peer may start. Every successful
+     * call must be followed by a call to {@link #release(String, boolean)} 
+     * with the same key and the value this returned.
+     *
+     * @param key The peer and kind of connection.
+     * @param coalesce Whether to wait for a coalescing setup already in
+     * progress to the same peer before starting.
+     * @return Whether this setup holds the peer, so later coalescing callers
+     * wait for it.
+     * @throws IOException If we are too busy to start the setup.
+     */
+    public boolean acquire(final String key, final boolean coalesce) 
+        throws IOException {
+        final CountDownLatch mine = coalesce ? waitForPeer(key) : null;
+        if (this.m_permits.tryAcquire()) {
+            return mine != null;
+        }
+        final long deadline = System.currentTimeMillis() + this.m_maxWaitMillis;
+        boolean acquired = false;
+        try {
+            if (this.m_waiting.incrementAndGet() > this.m_maxWaiting) {
+                throw busy(key);
+            }
+            acquired = this.m_permits.tryAcquire(remaining(deadline),
+                TimeUnit.MILLISECONDS);
+            if (!acquired) {
+                throw busy(key);
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for " +
+                key);
+        } finally {
+            this.m_waiting.decrementAndGet();
+            if (!acquired && mine != null) {
+                finish(key, mine);
+            }
+        }
+        return mine != null;
+    }
+
+    /**
+     * Waits for any coalescing setup in progress to a peer, then takes the
+     * peer for ourselves.
+     *
+     * @param key The peer and kind of connection.
+     * @return The latch later callers wait on, or <code>null</code> if we 
+     * gave up waiting and don't hold the peer.
+     * @throws InterruptedIOException If interrupted while waiting.
+     */
+    private CountDownLatch waitForPeer(final String key) 
+        throws InterruptedIOException {
+        final long peerDeadline = 
+            System.currentTimeMillis() + this.m_maxPeerWaitMillis;
+        final CountDownLatch mine = new CountDownLatch(1);
+        while (true) {
+            final CountDownLatch other = this.m_inFlight.putIfAbsent(key, mine);
+            if (other == null) {
+                return mine;
+            }
+            m_log.debug("Waiting for setup in progress to {}", key);
+            if (!await(other, peerDeadline)) {
+                m_log.info("Setup in progress to {} is taking too long -- " +
+                    "setting up alongside it", key);
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Ends a setup, freeing its permit and, if it held the peer, letting the
+     * next coalescing caller for the same peer go ahead.
+     *
+     * @param key The key passed to {@link #acquire(String, boolean)}.
+     * @param holdsPeer The value {@link #acquire(String, boolean)} returned.
+     */
+    public void release(final String key, final boolean holdsPeer) {
+        this.m_permits.release();
+        if (holdsPeer) {
+            final CountDownLatch latch = this.m_inFlight.remove(key);
+            if (latch != null) {
+                latch.countDown();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of callers waiting for a permit.
+     *
+     * @return The number of waiting callers.
+     */
+    public int getWaiting() {
+        return this.m_waiting.get();
+    }
+
+    private void finish(final String key, final CountDownLatch latch) {
+        this.m_inFlight.remove(key, latch);
+        latch.countDown();
+    }
+
+    private boolean await(final CountDownLatch latch, final long deadline)
+        throws InterruptedIOException {
+        try {
+            return latch.await(remaining(deadline), TimeUnit.MILLISECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for setup");
+        }
+    }
+
+    private static long remaining(final long deadline) {
+        return Math.max(0L, deadline - System.currentTimeMillis());
+    }
+
+    private IOException busy(final String key) {
+        m_log.info("Too busy to connect to {}", key);
+        return new IOException("Too many connections in progress -- busy");
+    }
+}
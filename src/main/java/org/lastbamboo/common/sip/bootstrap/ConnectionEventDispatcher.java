@@ -0,0 +1,205 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadFactory;
+
+import org.lastbamboo.common.p2p.P2PConnectionEvent;
+import org.lastbamboo.common.p2p.P2PConnectionListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers connectivity events to {@link P2PConnectionListener}s on a
+ * dedicated thread, so a slow listener never holds up the registration or
+ * signaling thread that raised the event. Events queued while listeners are
+ * busy are coalesced: for each id and direction only the latest state is
+ * delivered, so a burst of flapping collapses into where it ended up.
+ * <p>
+ * Stopping the dispatcher lets its thread exit once it has delivered what is
+ * already queued. Events after that, such as sockets closing after a 
+ * logout, are still delivered, each burst on a thread that exits once it is
+ * done, until the dispatcher is started again.
+ */
+public final class ConnectionEventDispatcher {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private final List<P2PConnectionListener> m_listeners =
+        new CopyOnWriteArrayList<P2PConnectionListener>();
+
+    private final ThreadFactory m_threadFactory;
+
+    /**
+     * The latest undelivered state for each id and direction, in the order
+     * they first changed. Guarded by this dispatcher's lock.
+     */
+    private final Map<String, Pending> m_pending =
+        new LinkedHashMap<String, Pending>();
+
+    /**
+     * The dispatch thread, or <code>null</code> if none is running. Guarded
+     * by this dispatcher's lock.
+     */
+    private Thread m_thread;
+
+    /**
+     * Whether the dispatch thread should exit once the queue is empty.
+     * Guarded by this dispatcher's lock.
+     */
+    private boolean m_stopped;
+
+    /**
+     * Creates a new dispatcher with a daemon dispatch thread.
+     */
+    public ConnectionEventDispatcher() {
+        this(new RegistrationExecutors.DaemonThreadFactory(
+            "P2P-Connection-Event-Dispatcher-"));
+    }
+
+    /**
+     * Creates a new dispatcher.
+     *
+     * @param threadFactory The factory for the dispatch thread, which is
+     * only started once there is a listener.
+     */
+    public ConnectionEventDispatcher(final ThreadFactory threadFactory) {
+        this.m_threadFactory = threadFactory;
+    }
+
+    /**
+     * Adds a listener for connectivity events.
+     *
+     * @param listener The listener to add.
+     */
+    public void addListener(final P2PConnectionListener listener) {
+        this.m_listeners.add(listener);
+        synchronized (this) {
+            if (!this.m_stopped) {
+                startThread();
+            }
+        }
+    }
+
+    /**
+     * Keeps the dispatch thread waiting for events again after a stop.
+     */
+    public synchronized void start() {
+        this.m_stopped = false;
+    }
+
+    /**
+     * Lets the dispatch thread exit once it has delivered the events already
+     * queued.
+     */
+    public synchronized void stop() {
+        this.m_stopped = true;
+        notifyAll();
+    }
+
+    /**
+     * Returns whether a dispatch thread is running.
+     *
+     * @return <code>true</code> if a dispatch thread is running.
+     */
+    public synchronized boolean isRunning() {
+        return this.m_thread != null;
+    }
+
+    private void startThread() {
+        // Called holding this dispatcher's lock.
+        if (this.m_thread != null) {
+            return;
+        }
+        this.m_thread = this.m_threadFactory.newThread(new Runnable() {
+            public void run() {
+                dispatchLoop();
+            }
+        });
+        this.m_thread.start();
+    }
+
+    /**
+     * Queues an event for delivery. This never blocks on listeners.
+     *
+     * @param id The user or peer the event is about.
+     * @param incoming Whether the connection is incoming.
+     * @param connected Whether the connection is now up.
+     */
+    public void dispatch(final String id, final boolean incoming,
+            final boolean connected) {
+        if (this.m_listeners.isEmpty()) {
+            return;
+        }
+        final String key = (incoming ? "in:" : "out:") + id;
+        synchronized (this) {
+            final Pending pending = this.m_pending.get(key);
+            if (pending == null) {
+                this.m_pending.put(key,
+                    new Pending(id, incoming, connected));
+            } else {
+                m_log.debug("Coalescing event for {}", key);
+                pending.m_connected = connected;
+            }
+            startThread();
+            notifyAll();
+        }
+    }
+
+    private void dispatchLoop() {
+        while (true) {
+            final List<Pending> batch;
+            synchronized (this) {
+                while (this.m_pending.isEmpty()) {
+                    if (this.m_stopped) {
+                        m_log.debug("Dispatcher stopped");
+                        this.m_thread = null;
+                        return;
+                    }
+                    try {
+                        wait();
+                    } catch (final InterruptedException e) {
+                        m_log.debug("Dispatcher interrupted");
+                        this.m_thread = null;
+                        return;
+                    }
+                }
+                batch = new ArrayList<Pending>(this.m_pending.values());
+                this.m_pending.clear();
+            }
+            for (final Pending pending : batch) {
+                final P2PConnectionEvent event = new P2PConnectionEvent(
+                    pending.m_id, pending.m_incoming, pending.m_connected);
+                for (final P2PConnectionListener listener : this.m_listeners) {
+                    try {
+                        listener.onConnectivityEvent(event);
+                    } catch (final RuntimeException e) {
+                        m_log.warn("Listener threw on " + pending.m_id, e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * An event waiting for delivery.
+     */
+    private static final class Pending {
+
+        private final String m_id;
+
+        private final boolean m_incoming;
+
+        private boolean m_connected;
+
+        private Pending(final String id, final boolean incoming,
+                final boolean connected) {
+            this.m_id = id;
+            this.m_incoming = incoming;
+            this.m_connected = connected;
+        }
+    }
+}
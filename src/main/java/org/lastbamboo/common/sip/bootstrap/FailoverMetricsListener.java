@@ -0,0 +1,75 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import java.net.URI;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.lastbamboo.common.sip.client.util.ProxyRegistrationListener;
+
+/**
+ * Measures how long a client goes without any registration. The gap starts
+ * when the client's last registered proxy unregisters and ends when any
+ * proxy registers it again.
+ */
+final class FailoverMetricsListener implements ProxyRegistrationListener {
+
+    private final ProxyRegistrationListener m_delegate;
+
+    private final MetricsRegistry m_metrics;
+
+    private final Set<URI> m_registered = new HashSet<URI>();
+
+    /**
+     * When the current gap started, or 0 if there is no gap.
+     */
+    private long m_lostAt;
+
+    /**
+     * Creates a new listener.
+     * 
+     * @param delegate The listener to pass every event on to.
+     * @param metrics The registry to record gaps in.
+     */
+    FailoverMetricsListener(final ProxyRegistrationListener delegate,
+            final MetricsRegistry metrics) {
+        this.m_delegate = delegate;
+        this.m_metrics = metrics;
+    }
+
+    public void registered(final URI client, final URI proxy) {
+        final long lostAt;
+        synchronized (this) {
+            this.m_registered.add(proxy);
+            lostAt = this.m_lostAt;
+            this.m_lostAt = 0L;
+        }
+        if (lostAt != 0L) {
+            this.m_metrics.timer("registration.failover.gap").updateSince(
+                lostAt);
+        }
+        this.m_delegate.registered(client, proxy);
+    }
+
+    public void reRegistered(final URI client, final URI proxy) {
+        this.m_delegate.reRegistered(client, proxy);
+    }
+
+    public void registrationFailed(final URI client, final URI proxy) {
+        this.m_delegate.registrationFailed(client, proxy);
+    }
+
+    public void unregistered(final URI client, final URI proxy) {
+        final boolean lost;
+        synchronized (this) {
+            lost = this.m_registered.remove(proxy) && 
+                this.m_registered.isEmpty();
+            if (lost) {
+                this.m_lostAt = System.nanoTime();
+            }
+        }
+        if (lost) {
+            this.m_metrics.counter("registration.lost").increment();
+        }
+        this.m_delegate.unregistered(client, proxy);
+    }
+}
@@ -0,0 +1,316 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import java.io.File;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Learns how long the NAT bindings on the path to each proxy live, so
+ * clients send CRLF keepalives no more often than they need to. For each
+ * proxy we keep the longest interval known to be safe, and the shortest
+ * interval that lost a binding. Clients probe wider intervals up to that
+ * ceiling, and the ceiling is forgotten after a while in case the path has
+ * changed. What we learn is saved in a small properties file.
+ * <p>
+ * Intervals are in seconds, as for
+ * {@link org.lastbamboo.common.sip.client.CrlfDelayCalculator}.
+ */
+public final class KeepAliveLearner {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The shortest interval we ever use.
+     */
+    public static final int MIN_INTERVAL = 20;
+
+    /**
+     * The interval we start with for a proxy we know nothing about.
+     */
+    public static final int INITIAL_INTERVAL = 30;
+
+    /**
+     * The longest interval we ever use.
+     */
+    public static final int MAX_INTERVAL = 540;
+
+    /**
+     * How long a failed interval stops us probing beyond it.
+     */
+    public static final long CEILING_TTL_MILLIS = 6 * 60 * 60 * 1000L;
+
+    private final PropertiesFile m_file;
+
+    private final Executor m_writeExecutor;
+
+    private final ConcurrentMap<URI, Binding> m_bindings =
+        new ConcurrentHashMap<URI, Binding>();
+
+    private final AtomicBoolean m_savePending = new AtomicBoolean();
+
+    /**
+     * When the local network last changed.
+     */
+    private volatile long m_networkChanged;
+
+    /**
+     * Creates a new learner.
+     *
+     * @param file The file to keep what we learn in, or <code>null</code>
+     * to forget it all when we exit.
+     * @param writeExecutor The executor to write the file on.
+     */
+    public KeepAliveLearner(final File file, final Executor writeExecutor) {
+        this.m_file = file == null ? null :
+            new PropertiesFile(file, "SIP keepalive intervals");
+        this.m_writeExecutor = writeExecutor;
+    }
+
+    /**
+     * Returns the usual place for the learner's file, in the LittleShoot 
+     * directory under the user's home directory. Nothing is stored unless a
+     * factory is given this or another file.
+     *
+     * @return The usual file.
+     */
+    public static File defaultFile() {
+        return PropertiesFile.inLittleShootDir("sipKeepAlives.properties");
+    }
+
+    /**
+     * Reads the file, replacing anything learned so far.
+     */
+    public void load() {
+        if (this.m_file == null) {
+            return;
+        }
+        final Properties props = this.m_file.load();
+        this.m_bindings.clear();
+        for (final String key : props.stringPropertyNames()) {
+            final Binding binding = Binding.parse(props.getProperty(key));
+            if (binding == null) {
+                m_log.debug("Ignoring bad entry for {}", key);
+                continue;
+            }
+            try {
+                this.m_bindings.put(new URI(key), binding);
+            } catch (final URISyntaxException e) {
+                m_log.debug("Ignoring bad proxy URI: {}", key);
+            }
+        }
+        m_log.debug("Loaded keepalive intervals for {} proxies",
+            this.m_bindings.size());
+    }
+
+    /**
+     * Returns a calculator for a new client registered with a proxy.
+     *
+     * @param proxy The proxy.
+     * @return The calculator.
+     */
+    public AdaptiveCrlfDelayCalculator newCalculator(final URI proxy) {
+        return new AdaptiveCrlfDelayCalculator(this, proxy);
+    }
+
+    /**
+     * Returns the interval to start a new client on.
+     *
+     * @param proxy The proxy.
+     * @return The longest interval known to be safe.
+     */
+    public int getSafeInterval(final URI proxy) {
+        return binding(proxy).getSafe();
+    }
+
+    /**
+     * Returns the next interval to probe, wider than the given one but
+     * short of any interval known to fail.
+     *
+     * @param proxy The proxy.
+     * @param interval The interval that just worked.
+     * @return The interval to try next.
+     */
+    public int nextInterval(final URI proxy, final int interval) {
+        return binding(proxy).widen(interval);
+    }
+
+    /**
+     * Records that a binding survived an interval.
+     *
+     * @param proxy The proxy.
+     * @param interval The interval.
+     */
+    public void succeeded(final URI proxy, final int interval) {
+        if (binding(proxy).succeeded(interval)) {
+            saveInBackground();
+        }
+    }
+
+    /**
+     * Records that a binding was lost while keeping it alive at an interval.
+     *
+     * @param proxy The proxy.
+     * @param interval The interval.
+     */
+    public void failed(final URI proxy, final int interval) {
+        m_log.debug("Lost binding to {} at {} seconds", proxy, interval);
+        binding(proxy).failed(interval);
+        saveInBackground();
+    }
+
+    /**
+     * Records that the local network changed. Clients registered before 
+     * then lose their registrations with the old network, which says 
+     * nothing about how long bindings last, so those losses are ignored.
+     */
+    public void networkChanged() {
+        this.m_networkChanged = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns whether a client that started at the given time is on the
+     * current network.
+     *
+     * @param started When the client started.
+     * @return Whether the network has changed since.
+     */
+    boolean isCurrentNetwork(final long started) {
+        return started >= this.m_networkChanged;
+    }
+
+    private Binding binding(final URI proxy) {
+        final Binding existing = this.m_bindings.get(proxy);
+        if (existing != null) {
+            return existing;
+        }
+        final Binding created = new Binding(INITIAL_INTERVAL, MAX_INTERVAL, 0L);
+        final Binding raced = this.m_bindings.putIfAbsent(proxy, created);
+        return raced == null ? created : raced;
+    }
+
+    private void saveInBackground() {
+        if (this.m_file == null) {
+            return;
+        }
+        if (!this.m_savePending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            this.m_writeExecutor.execute(new Runnable() {
+                public void run() {
+                    m_savePending.set(false);
+                    save();
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            m_log.debug("Could not schedule save", e);
+            this.m_savePending.set(false);
+        }
+    }
+
+    private void save() {
+        final Properties props = new Properties();
+        for (final Map.Entry<URI, Binding> entry :
+            this.m_bindings.entrySet()) {
+            props.setProperty(entry.getKey().toString(),
+                entry.getValue().toString());
+        }
+        this.m_file.store(props);
+    }
+
+    /**
+     * What we know about the bindings to a single proxy, stored as
+     * <code>safe,ceiling,ceilingSetAt</code>.
+     */
+    private static final class Binding {
+
+        private int m_safe;
+
+        private int m_ceiling;
+
+        private long m_ceilingSetAt;
+
+        private Binding(final int safe, final int ceiling,
+                final long ceilingSetAt) {
+            this.m_safe = safe;
+            this.m_ceiling = ceiling;
+            this.m_ceilingSetAt = ceilingSetAt;
+        }
+
+        private synchronized int getSafe() {
+            return this.m_safe;
+        }
+
+        private synchronized int widen(final int interval) {
+            expireCeiling();
+            final int wider = Math.max(interval + 1, interval * 5 / 4);
+            // Stay a margin short of the interval that failed before.
+            final int limit = this.m_ceiling < MAX_INTERVAL ?
+                this.m_ceiling * 9 / 10 : MAX_INTERVAL;
+            return Math.max(MIN_INTERVAL,
+                Math.max(this.m_safe, Math.min(wider, limit)));
+        }
+
+        private synchronized boolean succeeded(final int interval) {
+            if (interval <= this.m_safe) {
+                return false;
+            }
+            this.m_safe = Math.min(interval, MAX_INTERVAL);
+            if (this.m_safe >= this.m_ceiling) {
+                // The path has changed for the better.
+                this.m_ceiling = MAX_INTERVAL;
+            }
+            return true;
+        }
+
+        private synchronized void failed(final int interval) {
+            this.m_ceiling = Math.max(MIN_INTERVAL,
+                Math.min(this.m_ceiling, interval));
+            this.m_ceilingSetAt = System.currentTimeMillis();
+            // We can't tell a lost binding from a proxy restart, so back off
+            // below the failed interval rather than all the way down.
+            this.m_safe = Math.max(MIN_INTERVAL,
+                Math.min(this.m_safe, interval * 4 / 5));
+        }
+
+        private void expireCeiling() {
+            if (this.m_ceiling < MAX_INTERVAL && System.currentTimeMillis() -
+                this.m_ceilingSetAt > CEILING_TTL_MILLIS) {
+                this.m_ceiling = MAX_INTERVAL;
+            }
+        }
+
+        private static Binding parse(final String value) {
+            final String[] parts = value.split(",");
+            if (parts.length != 3) {
+                return null;
+            }
+            try {
+                final int safe = Integer.parseInt(parts[0].trim());
+                final int ceiling = Integer.parseInt(parts[1].trim());
+                return new Binding(
+                    Math.max(MIN_INTERVAL, Math.min(safe, MAX_INTERVAL)),
+                    Math.max(MIN_INTERVAL, Math.min(ceiling, MAX_INTERVAL)),
+                    Long.parseLong(parts[2].trim()));
+            } catch (final NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return this.m_safe + "," + this.m_ceiling + "," +
+                this.m_ceilingSetAt;
+        }
+    }
+}
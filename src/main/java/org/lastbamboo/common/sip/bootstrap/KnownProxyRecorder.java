@@ -0,0 +1,52 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import java.net.URI;
+
+import org.lastbamboo.common.sip.client.util.ProxyRegistrationListener;
+
+/**
+ * Records each proxy a client registers with in a {@link KnownProxyStore},
+ * along with the latency tracker's estimate for it, before passing the 
+ * event on.
+ */
+final class KnownProxyRecorder implements ProxyRegistrationListener {
+
+    private final ProxyRegistrationListener m_delegate;
+
+    private final KnownProxyStore m_store;
+
+    private final ProxyLatencyTracker m_latencyTracker;
+
+    /**
+     * Creates a new recorder.
+     * 
+     * @param delegate The listener to pass every event on to.
+     * @param store The store to record proxies in.
+     * @param latencyTracker The tracker to take latencies from.
+     */
+    KnownProxyRecorder(final ProxyRegistrationListener delegate,
+            final KnownProxyStore store, 
+            final ProxyLatencyTracker latencyTracker) {
+        this.m_delegate = delegate;
+        this.m_store = store;
+        this.m_latencyTracker = latencyTracker;
+    }
+
+    public void registered(final URI client, final URI proxy) {
+        this.m_store.record(proxy, 
+            this.m_latencyTracker.getEstimateMillis(proxy));
+        this.m_delegate.registered(client, proxy);
+    }
+
+    public void reRegistered(final URI client, final URI proxy) {
+        this.m_delegate.reRegistered(client, proxy);
+    }
+
+    public void registrationFailed(final URI client, final URI proxy) {
+        this.m_delegate.registrationFailed(client, proxy);
+    }
+
+    public void unregistered(final URI client, final URI proxy) {
+        this.m_delegate.unregistered(client, proxy);
+    }
+}
@@ -0,0 +1,211 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import java.io.File;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Remembers the proxies we most recently registered with, and how long
+ * registering with them took, in a small properties file. On the next start
+ * these proxies can be tried straight away while discovery runs in the
+ * background.
+ */
+public final class KnownProxyStore {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The default number of proxies to remember.
+     */
+    public static final int DEFAULT_MAX_PROXIES = 8;
+
+    private final PropertiesFile m_file;
+
+    private final int m_maxProxies;
+
+    private final Executor m_writeExecutor;
+
+    /**
+     * The proxies we know about, each with its latency and when it was last
+     * active. Guarded by this store's lock.
+     */
+    private final Map<URI, Entry> m_entries = new HashMap<URI, Entry>();
+
+    private final AtomicBoolean m_savePending = new AtomicBoolean();
+
+    /**
+     * Creates a new store.
+     *
+     * @param file The file to keep the proxies in.
+     * @param maxProxies The number of proxies to remember.
+     * @param writeExecutor The executor to write the file on.
+     */
+    public KnownProxyStore(final File file, final int maxProxies,
+            final Executor writeExecutor) {
+        this.m_file = new PropertiesFile(file, "Recently active SIP proxies");
+        this.m_maxProxies = maxProxies;
+        this.m_writeExecutor = writeExecutor;
+    }
+
+    /**
+     * Returns the usual place for the store, in the LittleShoot directory 
+     * under the user's home directory. Nothing is stored unless a factory is
+     * given this or another file.
+     *
+     * @return The usual file.
+     */
+    public static File defaultFile() {
+        return PropertiesFile.inLittleShootDir("sipProxies.properties");
+    }
+
+    /**
+     * Reads the file, replacing anything recorded so far.
+     *
+     * @return The remembered proxies, most recently active first, each with
+     * its latency in milliseconds or -1 if the latency is unknown.
+     */
+    public Map<URI, Long> load() {
+        final Properties props = this.m_file.load();
+        synchronized (this) {
+            this.m_entries.clear();
+            for (final String key : props.stringPropertyNames()) {
+                final Entry entry = Entry.parse(props.getProperty(key));
+                if (entry == null) {
+                    m_log.debug("Ignoring bad entry for {}", key);
+                    continue;
+                }
+                try {
+                    this.m_entries.put(new URI(key), entry);
+                } catch (final URISyntaxException e) {
+                    m_log.debug("Ignoring bad proxy URI: {}", key);
+                }
+            }
+            final Map<URI, Long> proxies = new LinkedHashMap<URI, Long>();
+            for (final Map.Entry<URI, Entry> entry : sorted()) {
+                proxies.put(entry.getKey(),
+                    Long.valueOf(entry.getValue().m_latencyMillis));
+            }
+            m_log.debug("Loaded known proxies: {}", proxies);
+            return proxies;
+        }
+    }
+
+    /**
+     * Records that we registered with a proxy, and saves the store in the
+     * background.
+     *
+     * @param proxy The proxy.
+     * @param latencyMillis How long registering with it takes, or -1 if we
+     * don't know.
+     */
+    public void record(final URI proxy, final long latencyMillis) {
+        synchronized (this) {
+            this.m_entries.put(proxy,
+                new Entry(latencyMillis, System.currentTimeMillis()));
+            // Forget the proxies we were active with longest ago.
+            final List<Map.Entry<URI, Entry>> sorted = sorted();
+            for (int i = this.m_maxProxies; i < sorted.size(); i++) {
+                this.m_entries.remove(sorted.get(i).getKey());
+            }
+        }
+        saveInBackground();
+    }
+
+    private void saveInBackground() {
+        if (!this.m_savePending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            this.m_writeExecutor.execute(new Runnable() {
+                public void run() {
+                    // Clear the flag first so a record during the save
+                    // schedules another.
+                    m_savePending.set(false);
+                    save();
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            m_log.debug("Could not schedule save", e);
+            this.m_savePending.set(false);
+        }
+    }
+
+    private void save() {
+        final Properties props = new Properties();
+        synchronized (this) {
+            for (final Map.Entry<URI, Entry> entry :
+                this.m_entries.entrySet()) {
+                props.setProperty(entry.getKey().toString(),
+                    entry.getValue().toString());
+            }
+        }
+        this.m_file.store(props);
+    }
+
+    /**
+     * Returns the entries, most recently active first. Called holding this
+     * store's lock.
+     */
+    private List<Map.Entry<URI, Entry>> sorted() {
+        final List<Map.Entry<URI, Entry>> sorted =
+            new ArrayList<Map.Entry<URI, Entry>>(this.m_entries.entrySet());
+        Collections.sort(sorted, new Comparator<Map.Entry<URI, Entry>>() {
+            public int compare(final Map.Entry<URI, Entry> e1,
+                    final Map.Entry<URI, Entry> e2) {
+                final long a1 = e1.getValue().m_lastActive;
+                final long a2 = e2.getValue().m_lastActive;
+                return a1 > a2 ? -1 : (a1 == a2 ? 0 : 1);
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * What we remember about a single proxy, stored as
+     * <code>latency,lastActive</code>.
+     */
+    private static final class Entry {
+
+        private final long m_latencyMillis;
+
+        private final long m_lastActive;
+
+        private Entry(final long latencyMillis, final long lastActive) {
+            this.m_latencyMillis = latencyMillis;
+            this.m_lastActive = lastActive;
+        }
+
+        private static Entry parse(final String value) {
+            final int comma = value.indexOf(',');
+            if (comma == -1) {
+                return null;
+            }
+            try {
+                return new Entry(
+                    Long.parseLong(value.substring(0, comma).trim()),
+                    Long.parseLong(value.substring(comma + 1).trim()));
+            } catch (final NumberFormatException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return this.m_latencyMillis + "," + this.m_lastActive;
+        }
+    }
+}
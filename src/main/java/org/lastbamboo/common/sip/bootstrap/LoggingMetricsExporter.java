@@ -0,0 +1,21 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Exports metrics by logging them at info level.
+ */
+public final class LoggingMetricsExporter implements MetricsExporter {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * {@inheritDoc}
+     */
+    public void export(final Map<String, Number> values) {
+        m_log.info("SIP bootstrap metrics: {}", values);
+    }
+}
@@ -0,0 +1,17 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import java.util.Map;
+
+/**
+ * Receives snapshots of a {@link MetricsRegistry}, for sending them on to a
+ * monitoring system.
+ */
+public interface MetricsExporter {
+
+    /**
+     * Exports a snapshot of the metrics.
+     * 
+     * @param values The value of every metric, sorted by name.
+     */
+    void export(Map<String, Number> values);
+}
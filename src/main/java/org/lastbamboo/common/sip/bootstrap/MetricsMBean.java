@@ -0,0 +1,104 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+
+/**
+ * Publishes a {@link MetricsRegistry} over JMX. Every value in the
+ * registry's snapshot is a read only attribute, so new metrics show up
+ * without any changes here.
+ */
+final class MetricsMBean implements DynamicMBean {
+
+    private final MetricsRegistry m_registry;
+
+    /**
+     * Creates a new MBean for a registry.
+     * 
+     * @param registry The registry to publish.
+     */
+    MetricsMBean(final MetricsRegistry registry) {
+        this.m_registry = registry;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object getAttribute(final String attribute)
+        throws AttributeNotFoundException {
+        final Number value = this.m_registry.snapshot().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public AttributeList getAttributes(final String[] attributes) {
+        final Map<String, Number> values = this.m_registry.snapshot();
+        final AttributeList list = new AttributeList();
+        for (final String name : attributes) {
+            final Number value = values.get(name);
+            if (value != null) {
+                list.add(new Attribute(name, value));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public MBeanInfo getMBeanInfo() {
+        final List<MBeanAttributeInfo> attributes = 
+            new ArrayList<MBeanAttributeInfo>();
+        for (final Map.Entry<String, Number> entry : 
+            this.m_registry.snapshot().entrySet()) {
+            attributes.add(new MBeanAttributeInfo(entry.getKey(), 
+                entry.getValue().getClass().getName(), entry.getKey(), 
+                true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), 
+            "SIP bootstrap metrics", 
+            attributes.toArray(new MBeanAttributeInfo[attributes.size()]), 
+            null, new MBeanOperationInfo[0], null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Object invoke(final String actionName, final Object[] params,
+        final String[] signature) throws MBeanException, ReflectionException {
+        throw new ReflectionException(
+            new NoSuchMethodException(actionName));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void setAttribute(final Attribute attribute)
+        throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Read only: " + 
+            attribute.getName());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public AttributeList setAttributes(final AttributeList attributes) {
+        return new AttributeList();
+    }
+}
@@ -0,0 +1,307 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Named counters, histograms and timers for registrations and socket setup.
+ * Metrics are created the first time they are asked for, and updating them
+ * never blocks. A registry can be published over JMX, and can be handed to
+ * any number of {@link MetricsExporter}s on a schedule.
+ */
+public final class MetricsRegistry {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The JMX name the registry is published under by default.
+     */
+    public static final String DEFAULT_OBJECT_NAME =
+        "org.lastbamboo.common.sip.bootstrap:type=Metrics";
+
+    private final ConcurrentMap<String, Counter> m_counters =
+        new ConcurrentHashMap<String, Counter>();
+
+    private final ConcurrentMap<String, Histogram> m_histograms =
+        new ConcurrentHashMap<String, Histogram>();
+
+    private final ConcurrentMap<String, Timer> m_timers =
+        new ConcurrentHashMap<String, Timer>();
+
+    /**
+     * Returns the counter with the given name, creating it if need be.
+     *
+     * @param name The name of the counter.
+     * @return The counter.
+     */
+    public Counter counter(final String name) {
+        final Counter existing = this.m_counters.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        final Counter created = new Counter();
+        final Counter raced = this.m_counters.putIfAbsent(name, created);
+        return raced == null ? created : raced;
+    }
+
+    /**
+     * Returns the histogram with the given name, creating it if need be.
+     *
+     * @param name The name of the histogram.
+     * @return The histogram.
+     */
+    public Histogram histogram(final String name) {
+        final Histogram existing = this.m_histograms.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        final Histogram created = new Histogram();
+        final Histogram raced = this.m_histograms.putIfAbsent(name, created);
+        return raced == null ? created : raced;
+    }
+
+    /**
+     * Returns the timer with the given name, creating it if need be.
+     *
+     * @param name The name of the timer.
+     * @return The timer.
+     */
+    public Timer timer(final String name) {
+        final Timer existing = this.m_timers.get(name);
+        if (existing != null) {
+            return existing;
+        }
+        final Timer created = new Timer();
+        final Timer raced = this.m_timers.putIfAbsent(name, created);
+        return raced == null ? created : raced;
+    }
+
+    /**
+     * Returns the current value of every metric, sorted by name. Counters
+     * appear under their own name. Histograms and timers appear as several
+     * values with suffixes such as <code>.count</code>, <code>.mean</code>
+     * and <code>.p95</code>, with timer values in milliseconds.
+     *
+     * @return The values by name.
+     */
+    public Map<String, Number> snapshot() {
+        final Map<String, Number> values = new TreeMap<String, Number>();
+        for (final Map.Entry<String, Counter> entry :
+            this.m_counters.entrySet()) {
+            values.put(entry.getKey(), Long.valueOf(entry.getValue().get()));
+        }
+        for (final Map.Entry<String, Histogram> entry :
+            this.m_histograms.entrySet()) {
+            entry.getValue().snapshot(entry.getKey(), values);
+        }
+        for (final Map.Entry<String, Timer> entry : this.m_timers.entrySet()) {
+            entry.getValue().m_millis.snapshot(entry.getKey(), values);
+        }
+        return values;
+    }
+
+    /**
+     * Publishes the registry with the platform MBean server.
+     *
+     * @param objectName The JMX name to publish under.
+     * @throws JMException If the registry could not be published.
+     */
+    public void registerMBean(final String objectName) throws JMException {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(new MetricsMBean(this),
+            new ObjectName(objectName));
+    }
+
+    /**
+     * Hands a snapshot of the registry to an exporter at a fixed rate.
+     *
+     * @param exporter The exporter.
+     * @param scheduler The scheduler to export on.
+     * @param periodMillis The time between exports.
+     * @return The scheduled export, for cancelling it.
+     */
+    public ScheduledFuture<?> scheduleExport(final MetricsExporter exporter,
+            final ScheduledExecutorService scheduler, final long periodMillis) {
+        return scheduler.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                try {
+                    exporter.export(snapshot());
+                } catch (final RuntimeException e) {
+                    m_log.warn("Could not export metrics", e);
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A count that only goes up.
+     */
+    public static final class Counter {
+
+        private final AtomicLong m_count = new AtomicLong();
+
+        private Counter() {
+        }
+
+        /**
+         * Adds one to the count.
+         */
+        public void increment() {
+            this.m_count.incrementAndGet();
+        }
+
+        /**
+         * Returns the count.
+         *
+         * @return The count.
+         */
+        public long get() {
+            return this.m_count.get();
+        }
+    }
+
+    /**
+     * The distribution of a value, kept in exponential buckets so updates
+     * are a couple of atomic adds. Percentiles are the upper bound of the
+     * bucket they fall in.
+     */
+    public static final class Histogram {
+
+        /**
+         * The upper bounds of the buckets. Values above the last bound go
+         * in one more bucket.
+         */
+        private static final long[] BOUNDS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000,
+            20000, 50000, 100000
+        };
+
+        private final AtomicLongArray m_buckets =
+            new AtomicLongArray(BOUNDS.length + 1);
+
+        private final AtomicLong m_count = new AtomicLong();
+
+        private final AtomicLong m_sum = new AtomicLong();
+
+        private final AtomicLong m_max = new AtomicLong();
+
+        private Histogram() {
+        }
+
+        /**
+         * Records a value.
+         *
+         * @param value The value, which should not be negative.
+         */
+        public void update(final long value) {
+            int bucket = 0;
+            while (bucket < BOUNDS.length && value > BOUNDS[bucket]) {
+                bucket++;
+            }
+            this.m_buckets.incrementAndGet(bucket);
+            this.m_count.incrementAndGet();
+            this.m_sum.addAndGet(value);
+            long max = this.m_max.get();
+            while (value > max && !this.m_max.compareAndSet(max, value)) {
+                max = this.m_max.get();
+            }
+        }
+
+        /**
+         * Returns the number of values recorded.
+         *
+         * @return The number of values.
+         */
+        public long getCount() {
+            return this.m_count.get();
+        }
+
+        /**
+         * Returns an estimate of a percentile of the recorded values.
+         *
+         * @param percentile The percentile, from 0 to 1.
+         * @return The estimate, or 0 if nothing was recorded.
+         */
+        public long getPercentile(final double percentile) {
+            final long count = this.m_count.get();
+            if (count == 0) {
+                return 0L;
+            }
+            final long rank = (long) Math.ceil(count * percentile);
+            long seen = 0;
+            for (int i = 0; i < BOUNDS.length; i++) {
+                seen += this.m_buckets.get(i);
+                if (seen >= rank) {
+                    return BOUNDS[i];
+                }
+            }
+            return this.m_max.get();
+        }
+
+        private void snapshot(final String name,
+                final Map<String, Number> values) {
+            final long count = this.m_count.get();
+            values.put(name + ".count", Long.valueOf(count));
+            values.put(name + ".mean", Double.valueOf(count == 0 ? 0.0 :
+                (double) this.m_sum.get() / count));
+            values.put(name + ".max", Long.valueOf(this.m_max.get()));
+            values.put(name + ".p50", Long.valueOf(getPercentile(0.50)));
+            values.put(name + ".p95", Long.valueOf(getPercentile(0.95)));
+            values.put(name + ".p99", Long.valueOf(getPercentile(0.99)));
+        }
+    }
+
+    /**
+     * A histogram of durations, in milliseconds.
+     */
+    public static final class Timer {
+
+        private final Histogram m_millis = new Histogram();
+
+        private Timer() {
+        }
+
+        /**
+         * Records the time since a start time.
+         *
+         * @param startNanos The start time, from {@link System#nanoTime()}.
+         */
+        public void updateSince(final long startNanos) {
+            update(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Records a duration.
+         *
+         * @param duration The duration.
+         * @param unit The unit of the duration.
+         */
+        public void update(final long duration, final TimeUnit unit) {
+            this.m_millis.update(Math.max(0L, unit.toMillis(duration)));
+        }
+
+        /**
+         * Returns the durations recorded, in milliseconds.
+         *
+         * @return The histogram of durations.
+         */
+        public Histogram getHistogram() {
+            return this.m_millis;
+        }
+    }
+}
@@ -0,0 +1,480 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.lastbamboo.common.sip.client.util.ProxyRegistrationListener;
+import org.littleshoot.util.CandidateProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maintains registrations for many user URIs at once, as a gateway fronting
+ * many users does. Instead of a connection maintainer and its thread per
+ * user, every user shares one pacing task: users waiting to register sit in
+ * a queue, and each tick starts registrations for at most one batch of
+ * them. New users are added to the queue after a random delay within the
+ * spread window, so a gateway start is spread out over time, and users that
+ * lose their registration come back through the re-registration scheduler,
+ * so a proxy restart is too.
+ */
+public final class MultiUserRegistrar implements NetworkChangeListener {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The default number of registrations started per tick.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 50;
+
+    /**
+     * The default time between ticks.
+     */
+    public static final long DEFAULT_BATCH_INTERVAL_MILLIS = 100;
+
+    /**
+     * The default window that registrations are spread over.
+     */
+    public static final long DEFAULT_SPREAD_MILLIS = 10 * 1000;
+
+    private final ProxyRegistrarFactory m_registrarFactory;
+
+    private final CandidateProvider<URI> m_candidateProvider;
+
+    private final ScheduledExecutorService m_scheduler;
+
+    private final Executor m_workers;
+
+    /**
+     * Whether a batch is being started, so ticks don't pile up behind a 
+     * slow one.
+     */
+    private final AtomicBoolean m_draining = new AtomicBoolean();
+
+    private final ProxyRegistrationListener m_listener;
+
+    private final int m_batchSize;
+
+    private final long m_batchIntervalMillis;
+
+    private final long m_spreadMillis;
+
+    private final ReRegistrationScheduler m_reRegistration;
+
+    private final ConcurrentMap<URI, User> m_users = 
+        new ConcurrentHashMap<URI, User>();
+
+    private final Queue<User> m_pending = new ConcurrentLinkedQueue<User>();
+
+    private final Random m_random = new Random();
+
+    /**
+     * The monitor to hear about network changes from while we have users, 
+     * or <code>null</code> if someone else tells us about them.
+     */
+    private final NetworkChangeMonitor m_networkMonitor;
+
+    private ScheduledFuture<?> m_pacer;
+
+    /**
+     * Counts network changes, so events from registrations started on an
+     * earlier network can be dropped.
+     */
+    private volatile int m_network;
+
+    /**
+     * Creates a new registrar for many users.
+     *
+     * @param registrarFactory The factory for single registrations.
+     * @param candidateProvider The provider of candidate proxies, best first.
+     * @param scheduler The scheduler to run the pacing task on.
+     * @param listener The listener to notify of every user's registration
+     * events.
+     * @param batchSize The maximum number of registrations to start per
+     * tick.
+     * @param batchIntervalMillis The time between ticks.
+     * @param spreadMillis The window to spread new users' registrations 
+     * over.
+     * @param reRegistration The scheduler that backs off and rate limits 
+     * users coming back after losing their registration.
+     */
+    public MultiUserRegistrar(final ProxyRegistrarFactory registrarFactory,
+            final CandidateProvider<URI> candidateProvider,
+            final ScheduledExecutorService scheduler,
+            final ProxyRegistrationListener listener, final int batchSize,
+            final long batchIntervalMillis, final long spreadMillis,
+            final ReRegistrationScheduler reRegistration) {
+        this(registrarFactory, candidateProvider, scheduler, 
+            BootstrapScheduler.shared().getWorkers(), listener, batchSize,
+            batchIntervalMillis, spreadMillis, reRegistration);
+    }
+
+    /**
+     * Creates a new registrar for many users that starts its batches on the
+     * given workers, keeping the timer free for pacing.
+     *
+     * @param registrarFactory The factory for single registrations.
+     * @param candidateProvider The provider of candidate proxies, best first.
+     * @param scheduler The scheduler to run the pacing task on.
+     * @param workers The executor to look up candidates and start each 
+     * batch of registrations on.
+     * @param listener The listener to notify of every user's registration
+     * events.
+     * @param batchSize The maximum number of registrations to start per
+     * tick.
+     * @param batchIntervalMillis The time between ticks.
+     * @param spreadMillis The window to spread new users' registrations 
+     * over.
+     * @param reRegistration The scheduler that backs off and rate limits 
+     * users coming back after losing their registration.
+     */
+    public MultiUserRegistrar(final ProxyRegistrarFactory registrarFactory,
+            final CandidateProvider<URI> candidateProvider,
+            final ScheduledExecutorService scheduler, final Executor workers,
+            final ProxyRegistrationListener listener, final int batchSize,
+            final long batchIntervalMillis, final long spreadMillis,
+            final ReRegistrationScheduler reRegistration) {
+        this(registrarFactory, candidateProvider, scheduler, workers, 
+            listener, batchSize, batchIntervalMillis, spreadMillis, 
+            reRegistration, null);
+    }
+
+    /**
+     * Creates a new registrar for many users that listens to the given 
+     * monitor from when the first user is added until every user is 
+     * removed.
+     */
+    MultiUserRegistrar(final ProxyRegistrarFactory registrarFactory,
+            final CandidateProvider<URI> candidateProvider,
+            final ScheduledExecutorService scheduler, final Executor workers,
+            final ProxyRegistrationListener listener, final int batchSize,
+            final long batchIntervalMillis, final long spreadMillis,
+            final ReRegistrationScheduler reRegistration,
+            final NetworkChangeMonitor networkMonitor) {
+        this.m_networkMonitor = networkMonitor;
+        this.m_workers = workers;
+        this.m_reRegistration = reRegistration;
+        this.m_registrarFactory = registrarFactory;
+        this.m_candidateProvider = candidateProvider;
+        this.m_scheduler = scheduler;
+        this.m_listener = listener;
+        this.m_batchSize = batchSize;
+        this.m_batchIntervalMillis = batchIntervalMillis;
+        this.m_spreadMillis = spreadMillis;
+    }
+
+    /**
+     * Starts maintaining a registration for a user. Adding a user that is
+     * already registered does nothing.
+     *
+     * @param user The user's SIP URI.
+     */
+    public void add(final URI user) {
+        final User state = new User(user);
+        if (this.m_users.putIfAbsent(user, state) != null) {
+            m_log.debug("Already registering {}", user);
+            return;
+        }
+        if (startPacer() && this.m_networkMonitor != null) {
+            this.m_networkMonitor.start();
+        }
+        enqueueLater(state);
+    }
+
+    /**
+     * Stops maintaining a user's registration. The current registration, if
+     * any, is left to expire.
+     *
+     * @param user The user's SIP URI.
+     */
+    public void remove(final URI user) {
+        final User state = this.m_users.remove(user);
+        if (state != null) {
+            state.m_removed = true;
+        }
+    }
+
+    /**
+     * Stops maintaining every user's registration, and stops the pacing 
+     * task.
+     */
+    public void removeAll() {
+        for (final URI user : getUsers()) {
+            remove(user);
+        }
+        synchronized (this) {
+            if (this.m_pacer != null) {
+                this.m_pacer.cancel(false);
+                this.m_pacer = null;
+            }
+            if (this.m_networkMonitor != null) {
+                this.m_networkMonitor.removeListener(this);
+            }
+        }
+        this.m_pending.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Every user's registration is dropped, since its binding went with the
+     * old network, and every user goes back in the queue. The pacing task
+     * then re-registers them from the new address in batches, without 
+     * waiting out any backoff.
+     */
+    public void networkChanged(final Set<InetAddress> addresses) {
+        this.m_network++;
+        m_log.info("Network changed -- re-registering {} users", 
+            this.m_users.size());
+        for (final User user : this.m_users.values()) {
+            final URI proxy = user.m_proxy;
+            user.m_proxy = null;
+            user.m_attempts = 0;
+            if (proxy != null) {
+                this.m_listener.unregistered(user.m_uri, proxy);
+            }
+            this.m_reRegistration.succeeded(user.m_uri, null);
+            queue(user);
+        }
+    }
+
+    /**
+     * Returns the users we are maintaining registrations for.
+     *
+     * @return The users.
+     */
+    public List<URI> getUsers() {
+        return new ArrayList<URI>(this.m_users.keySet());
+    }
+
+    /**
+     * Returns whether we are maintaining a registration for a user.
+     *
+     * @param user The user's SIP URI.
+     * @return <code>true</code> if the user has been added and not removed.
+     */
+    public boolean isRegistering(final URI user) {
+        return this.m_users.containsKey(user);
+    }
+
+    /**
+     * Returns the proxy a user is registered with.
+     *
+     * @param user The user's SIP URI.
+     * @return The proxy, or <code>null</code> if the user is not currently
+     * registered.
+     */
+    public URI getProxy(final URI user) {
+        final User state = this.m_users.get(user);
+        return state == null ? null : state.m_proxy;
+    }
+
+    /**
+     * Starts the pacing task if it isn't running, and starts listening 
+     * for network changes along with it.
+     * 
+     * @return <code>true</code> if this started it.
+     */
+    private synchronized boolean startPacer() {
+        if (this.m_pacer != null) {
+            return false;
+        }
+        final Runnable batch = new Runnable() {
+            public void run() {
+                try {
+                    drain();
+                } catch (final RuntimeException e) {
+                    m_log.warn("Error starting registrations", e);
+                } finally {
+                    m_draining.set(false);
+                }
+            }
+        };
+        this.m_pacer = this.m_scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                if (m_pending.isEmpty() || 
+                    !m_draining.compareAndSet(false, true)) {
+                    return;
+                }
+                try {
+                    m_workers.execute(batch);
+                } catch (final RejectedExecutionException e) {
+                    m_log.debug("Could not start batch", e);
+                    m_draining.set(false);
+                }
+            }
+        }, this.m_batchIntervalMillis, this.m_batchIntervalMillis,
+            TimeUnit.MILLISECONDS);
+        if (this.m_networkMonitor != null) {
+            this.m_networkMonitor.addListener(this);
+        }
+        return true;
+    }
+
+    private void enqueueLater(final User user) {
+        final long delay;
+        synchronized (this.m_random) {
+            delay = this.m_spreadMillis <= 0 ? 0L :
+                (long) (this.m_random.nextDouble() * this.m_spreadMillis);
+        }
+        this.m_scheduler.schedule(new Runnable() {
+            public void run() {
+                queue(user);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void retryLater(final User user) {
+        if (user.m_removed) {
+            return;
+        }
+        this.m_reRegistration.failed(user.m_uri, null);
+        this.m_reRegistration.schedule(user.m_uri, null, new Runnable() {
+            public void run() {
+                queue(user);
+            }
+        });
+    }
+
+    /**
+     * Adds a user to the queue unless it is already there.
+     */
+    private void queue(final User user) {
+        if (!user.m_removed && user.m_queued.compareAndSet(false, true)) {
+            this.m_pending.add(user);
+        }
+    }
+
+    private void drain() {
+        final List<URI> candidates =
+            new ArrayList<URI>(this.m_candidateProvider.getCandidates());
+        for (int i = 0; i < this.m_batchSize; i++) {
+            final User user = this.m_pending.poll();
+            if (user == null) {
+                return;
+            }
+            user.m_queued.set(false);
+            if (user.m_removed) {
+                continue;
+            }
+            if (candidates.isEmpty()) {
+                m_log.warn("No candidate proxies for {}", user.m_uri);
+                enqueueLater(user);
+                continue;
+            }
+            // Each failure moves the user on to the next candidate.
+            final URI proxy = 
+                candidates.get(user.m_attempts % candidates.size());
+            user.m_attempts++;
+            try {
+                this.m_registrarFactory.getRegistrar(user.m_uri, proxy, 
+                    new Attempt(user, this.m_network)).register();
+            } catch (final RuntimeException e) {
+                m_log.warn("Could not start registration for " + user.m_uri,
+                    e);
+                user.registrationFailed(user.m_uri, proxy);
+            }
+        }
+    }
+
+    /**
+     * The registration state of a single user. Each user is its own
+     * registration listener.
+     */
+    private final class User implements ProxyRegistrationListener {
+
+        private final URI m_uri;
+
+        private volatile URI m_proxy;
+
+        private volatile int m_attempts;
+
+        private volatile boolean m_removed;
+
+        private final AtomicBoolean m_queued = new AtomicBoolean();
+
+        private User(final URI uri) {
+            this.m_uri = uri;
+        }
+
+        public void registered(final URI client, final URI proxy) {
+            this.m_proxy = proxy;
+            this.m_attempts = 0;
+            m_reRegistration.succeeded(client, null);
+            m_listener.registered(client, proxy);
+        }
+
+        public void reRegistered(final URI client, final URI proxy) {
+            m_listener.reRegistered(client, proxy);
+        }
+
+        public void registrationFailed(final URI client, final URI proxy) {
+            m_listener.registrationFailed(client, proxy);
+            retryLater(this);
+        }
+
+        public void unregistered(final URI client, final URI proxy) {
+            this.m_proxy = null;
+            m_listener.unregistered(client, proxy);
+            retryLater(this);
+        }
+    }
+
+    /**
+     * The listener for a single registration attempt, which passes events
+     * on to its user only while the network it started on is current.
+     */
+    private final class Attempt implements ProxyRegistrationListener {
+
+        private final User m_user;
+
+        private final int m_attemptNetwork;
+
+        private Attempt(final User user, final int network) {
+            this.m_user = user;
+            this.m_attemptNetwork = network;
+        }
+
+        private boolean isCurrent() {
+            return this.m_attemptNetwork == m_network;
+        }
+
+        public void registered(final URI client, final URI proxy) {
+            if (isCurrent()) {
+                this.m_user.registered(client, proxy);
+            }
+        }
+
+        public void reRegistered(final URI client, final URI proxy) {
+            if (isCurrent()) {
+                this.m_user.reRegistered(client, proxy);
+            }
+        }
+
+        public void registrationFailed(final URI client, final URI proxy) {
+            if (isCurrent()) {
+                this.m_user.registrationFailed(client, proxy);
+            }
+        }
+
+        public void unregistered(final URI client, final URI proxy) {
+            if (isCurrent()) {
+                this.m_user.unregistered(client, proxy);
+            }
+        }
+    }
+}
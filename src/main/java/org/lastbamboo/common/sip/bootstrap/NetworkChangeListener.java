@@ -0,0 +1,19 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import java.net.InetAddress;
+import java.util.Set;
+
+/**
+ * Listener for changes to the local network addresses.
+ */
+public interface NetworkChangeListener {
+
+    /**
+     * Called when the addresses our connections go out from change, for 
+     * example after moving to another Wi-Fi network. Anything bound to the
+     * old addresses should be assumed lost.
+     *
+     * @param addresses The new local addresses, never empty.
+     */
+    void networkChanged(Set<InetAddress> addresses);
+}
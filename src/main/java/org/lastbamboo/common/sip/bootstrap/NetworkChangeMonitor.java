@@ -0,0 +1,353 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the local network so we can re-register as soon as the addresses
+ * our registrations use change, rather than waiting for keepalives to fail
+ * on a dead binding. Addresses are polled, since Java has no notification
+ * for this. Platforms that hear about changes directly can call 
+ * {@link #checkNow()}.
+ * <p>
+ * Connections to proxies go out through the default route, so the 
+ * addresses that matter are the ones the default route for each address 
+ * family leaves from. Listeners hear about a change when the IPv4 default
+ * route moves to another address, or when an address the default route 
+ * used goes away. Addresses coming and going elsewhere, such as a VPN or
+ * container bridge that doesn't take the default route, or IPv6 temporary
+ * addresses rotating while the old ones stay assigned, don't touch existing
+ * registrations and are ignored.
+ * <p>
+ * A change is only reported once two polls in a row agree on it, and only
+ * once we have an address again, so a handoff that settles within a poll 
+ * or two starts a single round of registrations rather than several that
+ * can only fail.
+ */
+public final class NetworkChangeMonitor {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The default time between polls.
+     */
+    public static final long DEFAULT_PERIOD_MILLIS = 2 * 1000;
+
+    /**
+     * Addresses to look up the default routes with, from the ranges set 
+     * aside for documentation. Nothing is sent to them.
+     */
+    private static final InetAddress IPV4_ROUTE_PROBE = 
+        address(new byte[] {(byte) 198, 51, 100, 1});
+
+    private static final InetAddress IPV6_ROUTE_PROBE = 
+        address(new byte[] {0x20, 0x01, 0x0d, (byte) 0xb8, 0, 0, 0, 0,
+            0, 0, 0, 0, 0, 0, 0, 1});
+
+    private final ScheduledExecutorService m_timers;
+
+    private final Executor m_workers;
+
+    private final long m_periodMillis;
+
+    private final CopyOnWriteArrayList<NetworkChangeListener> m_listeners =
+        new CopyOnWriteArrayList<NetworkChangeListener>();
+
+    private final Runnable m_check = new Runnable() {
+        public void run() {
+            try {
+                check();
+            } catch (final RuntimeException e) {
+                m_log.warn("Could not check network addresses", e);
+            }
+        }
+    };
+
+    /**
+     * The network as we last accepted it. Guarded by this monitor's lock.
+     */
+    private Snapshot m_current;
+
+    /**
+     * A change seen on the last poll that we haven't reported yet, or 
+     * <code>null</code> if none. Guarded by this monitor's lock.
+     */
+    private Snapshot m_pending;
+
+    private ScheduledFuture<?> m_poller;
+
+    /**
+     * Creates a new monitor on the given scheduler.
+     *
+     * @param scheduler The scheduler to poll on.
+     */
+    public NetworkChangeMonitor(final BootstrapScheduler scheduler) {
+        this(scheduler.getTimers(), scheduler.getWorkers(),
+            DEFAULT_PERIOD_MILLIS);
+    }
+
+    /**
+     * Creates a new monitor.
+     *
+     * @param timers The timer for polling.
+     * @param workers The executor to read the addresses on.
+     * @param periodMillis The time between polls.
+     */
+    public NetworkChangeMonitor(final ScheduledExecutorService timers,
+            final Executor workers, final long periodMillis) {
+        this.m_timers = timers;
+        this.m_workers = workers;
+        this.m_periodMillis = periodMillis;
+    }
+
+    /**
+     * Adds a listener for address changes. Listeners are told in the order
+     * they were added, and adding a listener twice does nothing.
+     *
+     * @param listener The listener.
+     */
+    public void addListener(final NetworkChangeListener listener) {
+        this.m_listeners.addIfAbsent(listener);
+    }
+
+    /**
+     * Removes a listener for address changes.
+     *
+     * @param listener The listener.
+     */
+    public void removeListener(final NetworkChangeListener listener) {
+        this.m_listeners.remove(listener);
+    }
+
+    /**
+     * Starts polling. Starting a monitor that is already running does
+     * nothing.
+     */
+    public synchronized void start() {
+        if (this.m_poller != null) {
+            return;
+        }
+        this.m_current = read();
+        this.m_pending = null;
+        m_log.debug("Local network: {}", this.m_current);
+        this.m_poller = this.m_timers.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                checkNow();
+            }
+        }, this.m_periodMillis, this.m_periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops polling.
+     */
+    public synchronized void stop() {
+        if (this.m_poller != null) {
+            this.m_poller.cancel(false);
+            this.m_poller = null;
+        }
+    }
+
+    /**
+     * Checks the addresses in the background straight away.
+     */
+    public void checkNow() {
+        try {
+            this.m_workers.execute(this.m_check);
+        } catch (final RejectedExecutionException e) {
+            m_log.debug("Could not schedule network check", e);
+        }
+    }
+
+    private void check() {
+        final Snapshot current = read();
+        synchronized (this) {
+            if (this.m_poller == null || current.m_addresses.isEmpty()) {
+                return;
+            }
+            if (!current.invalidates(this.m_current)) {
+                // Nothing our registrations use has changed.
+                this.m_current = current;
+                this.m_pending = null;
+                return;
+            }
+            if (!current.equals(this.m_pending)) {
+                // Wait for the next poll to confirm the network has 
+                // settled.
+                m_log.debug("Local network changing to {}", current);
+                this.m_pending = current;
+                return;
+            }
+            m_log.info("Local network changed from {} to {}",
+                this.m_current, current);
+            this.m_current = current;
+            this.m_pending = null;
+        }
+        final Set<InetAddress> addresses =
+            Collections.unmodifiableSet(current.m_addresses);
+        for (final NetworkChangeListener listener : this.m_listeners) {
+            try {
+                listener.networkChanged(addresses);
+            } catch (final RuntimeException e) {
+                m_log.warn("Listener threw on network change", e);
+            }
+        }
+    }
+
+    private Snapshot read() {
+        return new Snapshot(readAddresses(), routeSource(IPV4_ROUTE_PROBE),
+            routeSource(IPV6_ROUTE_PROBE));
+    }
+
+    /**
+     * Returns the local address the default route to the given address 
+     * leaves from, or <code>null</code> if there is no route. Connecting a
+     * datagram socket only looks up the route, so nothing is sent.
+     */
+    private InetAddress routeSource(final InetAddress probe) {
+        if (probe == null) {
+            return null;
+        }
+        DatagramSocket socket = null;
+        try {
+            socket = new DatagramSocket();
+            socket.connect(probe, 9);
+            final InetAddress local = socket.getLocalAddress();
+            return local == null || local.isAnyLocalAddress() ? null : local;
+        } catch (final SocketException e) {
+            return null;
+        } catch (final RuntimeException e) {
+            // Newer JVMs report a missing route this way.
+            return null;
+        } finally {
+            if (socket != null) {
+                socket.close();
+            }
+        }
+    }
+
+    private static InetAddress address(final byte[] bytes) {
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (final UnknownHostException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the addresses of the interfaces that are up, leaving out
+     * loopback and link local addresses, which don't reach proxies.
+     */
+    private Set<InetAddress> readAddresses() {
+        final Set<InetAddress> addresses = new HashSet<InetAddress>();
+        final Enumeration<NetworkInterface> interfaces;
+        try {
+            interfaces = NetworkInterface.getNetworkInterfaces();
+        } catch (final SocketException e) {
+            m_log.debug("Could not list network interfaces", e);
+            return addresses;
+        }
+        if (interfaces == null) {
+            return addresses;
+        }
+        while (interfaces.hasMoreElements()) {
+            final NetworkInterface ni = interfaces.nextElement();
+            try {
+                if (!ni.isUp() || ni.isLoopback()) {
+                    continue;
+                }
+            } catch (final SocketException e) {
+                continue;
+            }
+            final Enumeration<InetAddress> inets = ni.getInetAddresses();
+            while (inets.hasMoreElements()) {
+                final InetAddress address = inets.nextElement();
+                if (!address.isLoopbackAddress() &&
+                    !address.isLinkLocalAddress()) {
+                    addresses.add(address);
+                }
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * The local addresses and the sources of the default routes at one
+     * moment.
+     */
+    private static final class Snapshot {
+
+        private final Set<InetAddress> m_addresses;
+
+        private final InetAddress m_ipv4Route;
+
+        private final InetAddress m_ipv6Route;
+
+        private Snapshot(final Set<InetAddress> addresses,
+                final InetAddress ipv4Route, final InetAddress ipv6Route) {
+            this.m_addresses = addresses;
+            this.m_ipv4Route = ipv4Route;
+            this.m_ipv6Route = ipv6Route;
+        }
+
+        /**
+         * Returns whether registrations made on an earlier network are 
+         * likely lost on this one.
+         */
+        private boolean invalidates(final Snapshot earlier) {
+            if (earlier == null) {
+                return false;
+            }
+            if (this.m_ipv4Route != null && 
+                !this.m_ipv4Route.equals(earlier.m_ipv4Route)) {
+                return true;
+            }
+            return gone(earlier.m_ipv4Route) || gone(earlier.m_ipv6Route);
+        }
+
+        private boolean gone(final InetAddress address) {
+            return address != null && !this.m_addresses.contains(address);
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Snapshot)) {
+                return false;
+            }
+            final Snapshot other = (Snapshot) obj;
+            return this.m_addresses.equals(other.m_addresses) &&
+                same(this.m_ipv4Route, other.m_ipv4Route) &&
+                same(this.m_ipv6Route, other.m_ipv6Route);
+        }
+
+        @Override
+        public int hashCode() {
+            return this.m_addresses.hashCode();
+        }
+
+        private static boolean same(final InetAddress a, final InetAddress b) {
+            return a == null ? b == null : a.equals(b);
+        }
+
+        @Override
+        public String toString() {
+            return this.m_addresses + " via " + this.m_ipv4Route + ", " + 
+                this.m_ipv6Route;
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A socket that passes everything through to another socket, and runs a
+ * callback the first time it is closed. The offer/answer exchange hands us
+ * sockets we didn't create, so wrapping them is the only way to hear when
+ * callers are done with them.
+ * <p>
+ * Closing either stream closes the socket, as it does for plain sockets,
+ * but only closing through this socket runs the callback.
+ */
+final class NotifyingSocket extends Socket {
+
+    private final Socket m_socket;
+
+    private final Runnable m_onClose;
+
+    private final AtomicBoolean m_closed = new AtomicBoolean();
+
+    /**
+     * Creates a new socket.
+     *
+     * @param socket The socket to pass everything through to.
+     * @param onClose The callback to run when this socket is first closed.
+     */
+    NotifyingSocket(final Socket socket, final Runnable onClose) {
+        this.m_socket = socket;
+        this.m_onClose = onClose;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            this.m_socket.close();
+        } finally {
+            if (this.m_closed.compareAndSet(false, true)) {
+                this.m_onClose.run();
+            }
+        }
+    }
+
+    @Override
+    public boolean isClosed() {
+        return this.m_closed.get() || this.m_socket.isClosed();
+    }
+
+    @Override
+    public void connect(final SocketAddress endpoint) throws IOException {
+        this.m_socket.connect(endpoint);
+    }
+
+    @Override
+    public void connect(final SocketAddress endpoint, final int timeout)
+        throws IOException {
+        this.m_socket.connect(endpoint, timeout);
+    }
+
+    @Override
+    public void bind(final SocketAddress bindpoint) throws IOException {
+        this.m_socket.bind(bindpoint);
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return this.m_socket.getInetAddress();
+    }
+
+    @Override
+    public InetAddress getLocalAddress() {
+        return this.m_socket.getLocalAddress();
+    }
+
+    @Override
+    public int getPort() {
+        return this.m_socket.getPort();
+    }
+
+    @Override
+    public int getLocalPort() {
+        return this.m_socket.getLocalPort();
+    }
+
+    @Override
+    public SocketAddress getRemoteSocketAddress() {
+        return this.m_socket.getRemoteSocketAddress();
+    }
+
+    @Override
+    public SocketAddress getLocalSocketAddress() {
+        return this.m_socket.getLocalSocketAddress();
+    }
+
+    @Override
+    public SocketChannel getChannel() {
+        return this.m_socket.getChannel();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return this.m_socket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return this.m_socket.getOutputStream();
+    }
+
+    @Override
+    public void setTcpNoDelay(final boolean on) throws SocketException {
+        this.m_socket.setTcpNoDelay(on);
+    }
+
+    @Override
+    public boolean getTcpNoDelay() throws SocketException {
+        return this.m_socket.getTcpNoDelay();
+    }
+
+    @Override
+    public void setSoLinger(final boolean on, final int linger)
+        throws SocketException {
+        this.m_socket.setSoLinger(on, linger);
+    }
+
+    @Override
+    public int getSoLinger() throws SocketException {
+        return this.m_socket.getSoLinger();
+    }
+
+    @Override
+    public void sendUrgentData(final int data) throws IOException {
+        this.m_socket.sendUrgentData(data);
+    }
+
+    @Override
+    public void setOOBInline(final boolean on) throws SocketException {
+        this.m_socket.setOOBInline(on);
+    }
+
+    @Override
+    public boolean getOOBInline() throws SocketException {
+        return this.m_socket.getOOBInline();
+    }
+
+    @Override
+    public void setSoTimeout(final int timeout) throws SocketException {
+        this.m_socket.setSoTimeout(timeout);
+    }
+
+    @Override
+    public int getSoTimeout() throws SocketException {
+        return this.m_socket.getSoTimeout();
+    }
+
+    @Override
+    public void setSendBufferSize(final int size) throws SocketException {
+        this.m_socket.setSendBufferSize(size);
+    }
+
+    @Override
+    public int getSendBufferSize() throws SocketException {
+        return this.m_socket.getSendBufferSize();
+    }
+
+    @Override
+    public void setReceiveBufferSize(final int size) throws SocketException {
+        this.m_socket.setReceiveBufferSize(size);
+    }
+
+    @Override
+    public int getReceiveBufferSize() throws SocketException {
+        return this.m_socket.getReceiveBufferSize();
+    }
+
+    @Override
+    public void setKeepAlive(final boolean on) throws SocketException {
+        this.m_socket.setKeepAlive(on);
+    }
+
+    @Override
+    public boolean getKeepAlive() throws SocketException {
+        return this.m_socket.getKeepAlive();
+    }
+
+    @Override
+    public void setTrafficClass(final int tc) throws SocketException {
+        this.m_socket.setTrafficClass(tc);
+    }
+
+    @Override
+    public int getTrafficClass() throws SocketException {
+        return this.m_socket.getTrafficClass();
+    }
+
+    @Override
+    public void setReuseAddress(final boolean on) throws SocketException {
+        this.m_socket.setReuseAddress(on);
+    }
+
+    @Override
+    public boolean getReuseAddress() throws SocketException {
+        return this.m_socket.getReuseAddress();
+    }
+
+    @Override
+    public void shutdownInput() throws IOException {
+        this.m_socket.shutdownInput();
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+        this.m_socket.shutdownOutput();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return this.m_socket.isConnected();
+    }
+
+    @Override
+    public boolean isBound() {
+        return this.m_socket.isBound();
+    }
+
+    @Override
+    public boolean isInputShutdown() {
+        return this.m_socket.isInputShutdown();
+    }
+
+    @Override
+    public boolean isOutputShutdown() {
+        return this.m_socket.isOutputShutdown();
+    }
+
+    @Override
+    public void setPerformancePreferences(final int connectionTime,
+            final int latency, final int bandwidth) {
+        this.m_socket.setPerformancePreferences(connectionTime, latency,
+            bandwidth);
+    }
+
+    @Override
+    public String toString() {
+        return this.m_socket.toString();
+    }
+}
@@ -0,0 +1,139 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers which path the last successful connection to each peer took, so
+ * that peers we already know need a relay don't wait out the direct connect
+ * window on every connection. Entries expire so that a peer whose network
+ * changes gets another chance at a direct connection.
+ * <p>
+ * Only the route is kept, not the transport. The offer/answer exchange 
+ * picks TCP or UDP inside the socket factory, and doesn't say which.
+ */
+public final class PeerRouteCache {
+
+    /**
+     * The path a connection took.
+     */
+    public enum Route {
+
+        /**
+         * A direct TCP or UDP connection to the peer.
+         */
+        DIRECT,
+
+        /**
+         * A connection through a relay.
+         */
+        RELAY
+    }
+
+    /**
+     * The default time we trust a cached route.
+     */
+    public static final long DEFAULT_TTL_MILLIS = 10 * 60 * 1000;
+
+    /**
+     * The default maximum number of peers to remember.
+     */
+    public static final int DEFAULT_MAX_PEERS = 1024;
+
+    private final long m_ttlMillis;
+
+    private final Map<URI, Outcome> m_outcomes;
+
+    /**
+     * Creates a new cache with the default limits.
+     */
+    public PeerRouteCache() {
+        this(DEFAULT_TTL_MILLIS, DEFAULT_MAX_PEERS);
+    }
+
+    /**
+     * Creates a new cache.
+     *
+     * @param ttlMillis The time we trust a cached route.
+     * @param maxPeers The maximum number of peers to remember. The least
+     * recently used peers are forgotten first.
+     */
+    public PeerRouteCache(final long ttlMillis, final int maxPeers) {
+        this.m_ttlMillis = ttlMillis;
+        this.m_outcomes = new LinkedHashMap<URI, Outcome>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    final Map.Entry<URI, Outcome> eldest) {
+                return size() > maxPeers;
+            }
+        };
+    }
+
+    /**
+     * Records a successful connection to a peer.
+     *
+     * @param peer The URI of the peer.
+     * @param route The path the connection took.
+     */
+    public synchronized void record(final URI peer, final Route route) {
+        this.m_outcomes.put(peer, new Outcome(route, 
+            System.currentTimeMillis()));
+    }
+
+    /**
+     * Forgets what we know about a peer, typically because connecting to it
+     * failed.
+     *
+     * @param peer The URI of the peer.
+     */
+    public synchronized void forget(final URI peer) {
+        this.m_outcomes.remove(peer);
+    }
+
+    /**
+     * Forgets every peer. Routes learned on one network say little about
+     * another.
+     */
+    public synchronized void clear() {
+        this.m_outcomes.clear();
+    }
+
+    /**
+     * Returns the route the last connection to a peer took.
+     *
+     * @param peer The URI of the peer.
+     * @return The route, or <code>null</code> if we don't know it or it has
+     * expired.
+     */
+    public synchronized Route getRoute(final URI peer) {
+        final Outcome outcome = this.m_outcomes.get(peer);
+        if (outcome == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - outcome.m_time > this.m_ttlMillis) {
+            this.m_outcomes.remove(peer);
+            return null;
+        }
+        return outcome.m_route;
+    }
+
+    private static final class Outcome {
+
+        private final Route m_route;
+
+        private final long m_time;
+
+        private Outcome(final Route route, final long time) {
+            this.m_route = route;
+            this.m_time = time;
+        }
+
+        @Override
+        public String toString() {
+            return this.m_route.toString();
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of idle, already established sockets keyed by the SIP URI of the
+ * peer on the other end. Sockets handed back to the pool can be reused for
+ * the same peer without another offer/answer exchange through the proxy.
+ * <p>
+ * Sockets are checked on the way in and on the way out, but only with the
+ * checks that never block. A socket the peer has closed while it sat idle
+ * will not be detected until the caller uses it, as with any socket pool.
+ */
+public final class PeerSocketPool {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The default maximum number of idle sockets to keep per peer.
+     */
+    public static final int DEFAULT_MAX_PER_PEER = 2;
+
+    /**
+     * The default time a socket can sit idle before it is closed.
+     */
+    public static final long DEFAULT_MAX_IDLE_MILLIS = 30 * 1000;
+
+    /**
+     * The idle sockets for each peer that has any. Each list is guarded by
+     * its own lock, and is removed from the map holding that lock once it
+     * empties.
+     */
+    private final ConcurrentMap<URI, LinkedList<IdleSocket>> m_idle =
+        new ConcurrentHashMap<URI, LinkedList<IdleSocket>>();
+
+    private final int m_maxPerPeer;
+
+    private final long m_maxIdleMillis;
+
+    private volatile long m_lastSweep = System.currentTimeMillis();
+
+    /**
+     * Creates a new pool with the default limits.
+     */
+    public PeerSocketPool() {
+        this(DEFAULT_MAX_PER_PEER, DEFAULT_MAX_IDLE_MILLIS);
+    }
+
+    /**
+     * Creates a new pool.
+     *
+     * @param maxPerPeer The maximum number of idle sockets to keep per peer.
+     * @param maxIdleMillis The time a socket can sit idle before it is
+     * closed.
+     */
+    public PeerSocketPool(final int maxPerPeer, final long maxIdleMillis) {
+        this.m_maxPerPeer = maxPerPeer;
+        this.m_maxIdleMillis = maxIdleMillis;
+    }
+
+    /**
+     * Takes an idle socket for a peer out of the pool.
+     *
+     * @param peer The URI of the peer.
+     * @return A healthy idle socket, or <code>null</code> if there is none.
+     */
+    public Socket borrow(final URI peer) {
+        final LinkedList<IdleSocket> sockets = this.m_idle.get(peer);
+        if (sockets == null) {
+            return null;
+        }
+        final long now = System.currentTimeMillis();
+        synchronized (sockets) {
+            while (!sockets.isEmpty()) {
+                // Most recently used first, as it's the most likely to be
+                // alive.
+                final IdleSocket idle = sockets.removeLast();
+                if (idle.isReusable(now)) {
+                    m_log.debug("Reusing socket for {}", peer);
+                    removeIfEmpty(peer, sockets);
+                    return idle.m_socket;
+                }
+                close(idle.m_socket);
+            }
+            removeIfEmpty(peer, sockets);
+        }
+        return null;
+    }
+
+    /**
+     * Hands a socket the caller is done with back to the pool. The socket is
+     * closed instead if it's unhealthy or the peer already has the maximum
+     * number of idle sockets.
+     *
+     * @param peer The URI of the peer.
+     * @param socket The socket.
+     * @return <code>true</code> if the socket was pooled, otherwise
+     * <code>false</code>.
+     */
+    public boolean release(final URI peer, final Socket socket) {
+        final long now = System.currentTimeMillis();
+        if (now - this.m_lastSweep > this.m_maxIdleMillis) {
+            this.m_lastSweep = now;
+            evictIdle();
+        }
+        if (!isHealthy(socket)) {
+            close(socket);
+            return false;
+        }
+        while (true) {
+            LinkedList<IdleSocket> sockets = this.m_idle.get(peer);
+            if (sockets == null) {
+                final LinkedList<IdleSocket> created = 
+                    new LinkedList<IdleSocket>();
+                sockets = this.m_idle.putIfAbsent(peer, created);
+                if (sockets == null) {
+                    sockets = created;
+                }
+            }
+            synchronized (sockets) {
+                if (this.m_idle.get(peer) != sockets) {
+                    // The list emptied and was removed after we looked it 
+                    // up, so anything added to it would never be seen.
+                    continue;
+                }
+                if (sockets.size() >= this.m_maxPerPeer) {
+                    close(socket);
+                    return false;
+                }
+                sockets.addLast(new IdleSocket(socket, now));
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Closes every socket that has been idle for too long or is no longer
+     * healthy.
+     */
+    public void evictIdle() {
+        final long now = System.currentTimeMillis();
+        for (final Map.Entry<URI, LinkedList<IdleSocket>> entry : 
+            this.m_idle.entrySet()) {
+            final LinkedList<IdleSocket> sockets = entry.getValue();
+            synchronized (sockets) {
+                for (final Iterator<IdleSocket> iter = sockets.iterator();
+                    iter.hasNext();) {
+                    final IdleSocket idle = iter.next();
+                    if (!idle.isReusable(now)) {
+                        iter.remove();
+                        close(idle.m_socket);
+                    }
+                }
+                removeIfEmpty(entry.getKey(), sockets);
+            }
+        }
+    }
+
+    /**
+     * Closes every idle socket in the pool.
+     */
+    public void clear() {
+        for (final Map.Entry<URI, LinkedList<IdleSocket>> entry : 
+            this.m_idle.entrySet()) {
+            final LinkedList<IdleSocket> sockets = entry.getValue();
+            synchronized (sockets) {
+                for (final IdleSocket idle : sockets) {
+                    close(idle.m_socket);
+                }
+                sockets.clear();
+                removeIfEmpty(entry.getKey(), sockets);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of peers with idle sockets in the pool.
+     *
+     * @return The number of peers.
+     */
+    public int getPeerCount() {
+        return this.m_idle.size();
+    }
+
+    /**
+     * Drops a peer's list once it has no sockets left, so peers we stop 
+     * connecting to don't stay in the map. Called holding the list's lock.
+     */
+    private void removeIfEmpty(final URI peer, 
+            final LinkedList<IdleSocket> sockets) {
+        if (sockets.isEmpty()) {
+            this.m_idle.remove(peer, sockets);
+        }
+    }
+
+    private static boolean isHealthy(final Socket socket) {
+        return socket.isConnected() && !socket.isClosed() &&
+            !socket.isInputShutdown() && !socket.isOutputShutdown();
+    }
+
+    private void close(final Socket socket) {
+        try {
+            socket.close();
+        } catch (final IOException e) {
+            m_log.debug("Error closing pooled socket", e);
+        }
+    }
+
+    private final class IdleSocket {
+
+        private final Socket m_socket;
+
+        private final long m_since;
+
+        private IdleSocket(final Socket socket, final long since) {
+            this.m_socket = socket;
+            this.m_since = since;
+        }
+
+        private boolean isReusable(final long now) {
+            return now - this.m_since <= m_maxIdleMillis &&
+                isHealthy(this.m_socket);
+        }
+    }
+}
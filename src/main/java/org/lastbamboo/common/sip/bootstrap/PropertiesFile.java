@@ -0,0 +1,117 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A small properties file for state we remember across runs. Problems
+ * reading or writing the file are logged and otherwise ignored, since this
+ * state is only ever a shortcut.
+ */
+final class PropertiesFile {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private final File m_file;
+
+    private final String m_comment;
+
+    /**
+     * Creates a new properties file.
+     *
+     * @param file The file.
+     * @param comment The comment to write at the top of the file.
+     */
+    PropertiesFile(final File file, final String comment) {
+        this.m_file = file;
+        this.m_comment = comment;
+    }
+
+    /**
+     * Returns a file in the LittleShoot directory under the user's home
+     * directory.
+     *
+     * @param name The name of the file.
+     * @return The file.
+     */
+    static File inLittleShootDir(final String name) {
+        return new File(new File(System.getProperty("user.home"),
+            ".littleshoot"), name);
+    }
+
+    /**
+     * Reads the file.
+     *
+     * @return The properties, which are empty if the file doesn't exist or
+     * can't be read.
+     */
+    Properties load() {
+        final Properties props = new Properties();
+        if (!this.m_file.isFile()) {
+            return props;
+        }
+        InputStream is = null;
+        try {
+            is = new FileInputStream(this.m_file);
+            props.load(is);
+        } catch (final IOException e) {
+            m_log.warn("Could not read " + this.m_file, e);
+        } finally {
+            close(is);
+        }
+        return props;
+    }
+
+    /**
+     * Replaces the file with the given properties.
+     *
+     * @param props The properties to write.
+     */
+    void store(final Properties props) {
+        final File dir = this.m_file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            m_log.warn("Could not create {}", dir);
+            return;
+        }
+        // Write to a temporary file and rename it, so a crash mid write
+        // never leaves a truncated file behind.
+        final File temp = new File(dir, this.m_file.getName() + ".tmp");
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(temp);
+            props.store(os, this.m_comment);
+        } catch (final IOException e) {
+            m_log.warn("Could not write " + temp, e);
+            return;
+        } finally {
+            close(os);
+        }
+        if (!temp.renameTo(this.m_file)) {
+            // Some platforms won't rename over an existing file.
+            this.m_file.delete();
+            if (!temp.renameTo(this.m_file)) {
+                m_log.warn("Could not replace {}", this.m_file);
+            }
+        }
+    }
+
+    private void close(final Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (final IOException e) {
+            m_log.debug("Error closing " + this.m_file, e);
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Listener for changes to the set of candidate SIP proxies.
+ */
+public interface ProxyCandidateListener {
+
+    /**
+     * Called when a refresh finds a different set of proxies than the last
+     * one did. This is not called when a refresh finds the same proxies.
+     * 
+     * @param current The current candidates, in discovery order.
+     * @param added The candidates that were not in the previous set.
+     * @param removed The candidates that are no longer in the set.
+     */
+    void candidatesChanged(List<URI> current, Collection<URI> added,
+        Collection<URI> removed);
+}
@@ -0,0 +1,275 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a circuit breaker for each SIP proxy. After a number of failed
+ * registrations in a row, a proxy's circuit opens and we stop trying it.
+ * Once the circuit has been open for a while, it goes half open and lets a
+ * single probe registration through. If the probe succeeds the circuit
+ * closes, and if it fails the circuit opens again.
+ */
+public final class ProxyCircuitBreaker {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The states a proxy's circuit can be in.
+     */
+    public enum State {
+
+        /**
+         * Registrations go through as normal.
+         */
+        CLOSED,
+
+        /**
+         * The proxy has been failing, and registrations are skipped.
+         */
+        OPEN,
+
+        /**
+         * A probe registration is in flight to see if the proxy is back.
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * The default number of failures in a row that opens a circuit.
+     */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+
+    /**
+     * The default time a circuit stays open before allowing a probe.
+     */
+    public static final long DEFAULT_OPEN_MILLIS = 30 * 1000;
+
+    private final int m_failureThreshold;
+
+    private final long m_openMillis;
+
+    private final ConcurrentMap<URI, Circuit> m_circuits =
+        new ConcurrentHashMap<URI, Circuit>();
+
+    /**
+     * The number of circuits that are not closed, so callers can skip
+     * filtering entirely in the common case.
+     */
+    private final AtomicInteger m_tripped = new AtomicInteger();
+
+    /**
+     * Creates a new circuit breaker with the default settings.
+     */
+    public ProxyCircuitBreaker() {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS);
+    }
+
+    /**
+     * Creates a new circuit breaker.
+     *
+     * @param failureThreshold The number of failures in a row that opens a
+     * circuit.
+     * @param openMillis How long a circuit stays open before allowing a
+     * probe. A probe that never reports back is given up on after the same
+     * time.
+     */
+    public ProxyCircuitBreaker(final int failureThreshold,
+            final long openMillis) {
+        this.m_failureThreshold = failureThreshold;
+        this.m_openMillis = openMillis;
+    }
+
+    /**
+     * Asks to start a registration with a proxy. A half open circuit lets
+     * only the first caller through as its probe.
+     *
+     * @param proxy The proxy.
+     * @return <code>true</code> if the registration may go ahead.
+     */
+    public boolean allowRequest(final URI proxy) {
+        final Circuit circuit = this.m_circuits.get(proxy);
+        if (circuit == null) {
+            return true;
+        }
+        synchronized (circuit) {
+            final long now = System.currentTimeMillis();
+            if (circuit.m_state == State.CLOSED) {
+                return true;
+            }
+            // Open circuits wait out the open time, and half open ones give
+            // their probe the same time to report back.
+            if (now - circuit.m_since < this.m_openMillis) {
+                return false;
+            }
+            m_log.debug("Probing {}", proxy);
+            circuit.m_state = State.HALF_OPEN;
+            circuit.m_since = now;
+            return true;
+        }
+    }
+
+    /**
+     * Returns whether a proxy is worth offering as a candidate, which it is
+     * unless its circuit is open and not yet due for a probe. This does not
+     * start a probe.
+     *
+     * @param proxy The proxy.
+     * @return <code>true</code> if the proxy may be tried.
+     */
+    public boolean isAvailable(final URI proxy) {
+        final Circuit circuit = this.m_circuits.get(proxy);
+        if (circuit == null) {
+            return true;
+        }
+        synchronized (circuit) {
+            return circuit.m_state == State.CLOSED ||
+                System.currentTimeMillis() - circuit.m_since >=
+                    this.m_openMillis;
+        }
+    }
+
+    /**
+     * Returns whether any circuit is open or half open.
+     *
+     * @return <code>true</code> if any circuit is not closed.
+     */
+    public boolean isAnyTripped() {
+        return this.m_tripped.get() > 0;
+    }
+
+    /**
+     * Records a successful registration, closing the proxy's circuit.
+     *
+     * @param proxy The proxy.
+     */
+    public void recordSuccess(final URI proxy) {
+        final Circuit circuit = this.m_circuits.get(proxy);
+        if (circuit == null) {
+            return;
+        }
+        synchronized (circuit) {
+            circuit.m_failures = 0;
+            if (circuit.m_state != State.CLOSED) {
+                m_log.info("Closing circuit for {}", proxy);
+                circuit.m_state = State.CLOSED;
+                this.m_tripped.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Records a failed registration. This opens the proxy's circuit if it
+     * was a probe or if the proxy has now failed too many times in a row.
+     *
+     * @param proxy The proxy.
+     */
+    public void recordFailure(final URI proxy) {
+        final Circuit circuit = circuit(proxy);
+        synchronized (circuit) {
+            if (circuit.m_forgotten) {
+                return;
+            }
+            circuit.m_failures++;
+            final boolean open = circuit.m_state == State.HALF_OPEN ||
+                (circuit.m_state == State.CLOSED &&
+                    circuit.m_failures >= this.m_failureThreshold);
+            if (!open) {
+                return;
+            }
+            m_log.info("Opening circuit for {} after {} failures", proxy,
+                circuit.m_failures);
+            if (circuit.m_state == State.CLOSED) {
+                this.m_tripped.incrementAndGet();
+            }
+            circuit.m_state = State.OPEN;
+            circuit.m_since = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Drops a proxy's circuit, such as when discovery no longer offers the
+     * proxy, so a circuit left open doesn't count as tripped forever.
+     *
+     * @param proxy The proxy.
+     */
+    public void forget(final URI proxy) {
+        final Circuit circuit = this.m_circuits.remove(proxy);
+        if (circuit == null) {
+            return;
+        }
+        synchronized (circuit) {
+            if (circuit.m_state != State.CLOSED) {
+                this.m_tripped.decrementAndGet();
+            }
+            circuit.m_state = State.CLOSED;
+            circuit.m_forgotten = true;
+        }
+    }
+
+    /**
+     * Returns the state of a proxy's circuit.
+     *
+     * @param proxy The proxy.
+     * @return The state.
+     */
+    public State getState(final URI proxy) {
+        final Circuit circuit = this.m_circuits.get(proxy);
+        if (circuit == null) {
+            return State.CLOSED;
+        }
+        synchronized (circuit) {
+            return circuit.m_state;
+        }
+    }
+
+    /**
+     * Returns the state of every circuit we have seen a failure on.
+     *
+     * @return The states by proxy.
+     */
+    public Map<URI, State> getStates() {
+        final Map<URI, State> states = new HashMap<URI, State>();
+        for (final Map.Entry<URI, Circuit> entry : this.m_circuits.entrySet()) {
+            synchronized (entry.getValue()) {
+                states.put(entry.getKey(), entry.getValue().m_state);
+            }
+        }
+        return states;
+    }
+
+    private Circuit circuit(final URI proxy) {
+        final Circuit existing = this.m_circuits.get(proxy);
+        if (existing != null) {
+            return existing;
+        }
+        final Circuit created = new Circuit();
+        final Circuit raced = this.m_circuits.putIfAbsent(proxy, created);
+        return raced == null ? created : raced;
+    }
+
+    /**
+     * The circuit for a single proxy. Guarded by its own lock.
+     */
+    private static final class Circuit {
+
+        private State m_state = State.CLOSED;
+
+        private int m_failures;
+
+        private long m_since;
+
+        /**
+         * Whether the circuit was dropped, so late failures recorded on it
+         * are ignored.
+         */
+        private boolean m_forgotten;
+    }
+}
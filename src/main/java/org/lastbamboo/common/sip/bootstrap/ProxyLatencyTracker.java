@@ -0,0 +1,187 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of how long it takes to connect and register with each proxy
+ * and ranks proxies accordingly. Each proxy's estimate is an exponentially
+ * weighted moving average of its connect plus REGISTER round trip times,
+ * where a failed registration counts as a sample of 
+ * {@link #FAILURE_PENALTY_MILLIS}.
+ */
+public final class ProxyLatencyTracker {
+
+    /**
+     * The sample recorded when a registration fails.
+     */
+    public static final long FAILURE_PENALTY_MILLIS = 10 * 1000;
+
+    /**
+     * The weight given to each new sample.
+     */
+    private static final double ALPHA = 0.3;
+
+    private final ConcurrentMap<URI, Estimate> m_estimates =
+        new ConcurrentHashMap<URI, Estimate>();
+
+    /**
+     * Incremented on every sample so callers can cache rankings.
+     */
+    private final AtomicLong m_version = new AtomicLong();
+
+    /**
+     * Records a successful registration.
+     * 
+     * @param proxy The proxy we registered with.
+     * @param connectMillis The time it took to connect.
+     * @param registerMillis The time the REGISTER took.
+     */
+    public void recordSuccess(final URI proxy, final long connectMillis,
+            final long registerMillis) {
+        estimate(proxy).update(connectMillis + registerMillis);
+        this.m_version.incrementAndGet();
+    }
+
+    /**
+     * Records a failed connection or registration.
+     * 
+     * @param proxy The proxy we failed to register with.
+     */
+    public void recordFailure(final URI proxy) {
+        estimate(proxy).update(FAILURE_PENALTY_MILLIS);
+        this.m_version.incrementAndGet();
+    }
+
+    /**
+     * Gives a proxy a starting estimate, such as one remembered from an
+     * earlier run. This does nothing if we already have an estimate.
+     * 
+     * @param proxy The proxy.
+     * @param millis The estimated connect and register time.
+     */
+    public void seed(final URI proxy, final long millis) {
+        if (estimate(proxy).seed(millis)) {
+            this.m_version.incrementAndGet();
+        }
+    }
+
+    /**
+     * Drops the estimate for a proxy, such as when discovery no longer 
+     * offers the proxy.
+     * 
+     * @param proxy The proxy.
+     */
+    public void forget(final URI proxy) {
+        if (this.m_estimates.remove(proxy) != null) {
+            this.m_version.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns a number that changes whenever any estimate changes. A ranking
+     * computed at one version stays valid until the version changes.
+     * 
+     * @return The current version of the estimates.
+     */
+    public long getVersion() {
+        return this.m_version.get();
+    }
+
+    /**
+     * Returns the current estimate for a proxy.
+     * 
+     * @param proxy The proxy.
+     * @return The estimated connect and register time in milliseconds, or
+     * -1 if we have never tried the proxy.
+     */
+    public long getEstimateMillis(final URI proxy) {
+        final Estimate estimate = this.m_estimates.get(proxy);
+        if (estimate == null) {
+            return -1L;
+        }
+        return Math.round(estimate.get());
+    }
+
+    /**
+     * Sorts proxies from fastest to slowest. Proxies we have never tried 
+     * come first so that every proxy gets measured, and ties keep their 
+     * original order.
+     * 
+     * @param proxies The proxies to rank.
+     * @return A new list of the proxies in ranked order.
+     */
+    public List<URI> rank(final Collection<URI> proxies) {
+        final List<URI> ranked = new ArrayList<URI>(proxies);
+        if (this.m_estimates.isEmpty()) {
+            return ranked;
+        }
+        // Snapshot the scores so concurrent updates can't reorder proxies
+        // in the middle of the sort.
+        final Map<URI, Double> scores = new HashMap<URI, Double>();
+        for (final URI proxy : ranked) {
+            scores.put(proxy, Double.valueOf(score(proxy)));
+        }
+        Collections.sort(ranked, new Comparator<URI>() {
+            public int compare(final URI uri1, final URI uri2) {
+                return scores.get(uri1).compareTo(scores.get(uri2));
+            }
+        });
+        return ranked;
+    }
+
+    private double score(final URI proxy) {
+        final Estimate estimate = this.m_estimates.get(proxy);
+        if (estimate == null) {
+            return 0.0;
+        }
+        return estimate.get();
+    }
+
+    private Estimate estimate(final URI proxy) {
+        final Estimate existing = this.m_estimates.get(proxy);
+        if (existing != null) {
+            return existing;
+        }
+        final Estimate created = new Estimate();
+        final Estimate raced = this.m_estimates.putIfAbsent(proxy, created);
+        return raced == null ? created : raced;
+    }
+
+    /**
+     * The moving average for a single proxy.
+     */
+    private static final class Estimate {
+
+        private double m_value = -1.0;
+
+        private synchronized void update(final long sample) {
+            if (this.m_value < 0) {
+                this.m_value = sample;
+            } else {
+                this.m_value = ALPHA * sample + (1 - ALPHA) * this.m_value;
+            }
+        }
+
+        private synchronized boolean seed(final long sample) {
+            if (this.m_value >= 0) {
+                return false;
+            }
+            this.m_value = sample;
+            return true;
+        }
+
+        private synchronized double get() {
+            return this.m_value;
+        }
+    }
+}
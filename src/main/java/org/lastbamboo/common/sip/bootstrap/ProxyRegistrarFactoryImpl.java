@@ -1,7 +1,9 @@
 package org.lastbamboo.common.sip.bootstrap;
 
+import java.io.File;
 import java.net.InetSocketAddress;
 import java.net.URI;
+import java.util.concurrent.ExecutorService;
 
 import org.lastbamboo.common.offer.answer.OfferAnswerFactory;
 import org.lastbamboo.common.sip.client.SipClientTracker;
@@ -36,10 +38,25 @@ public final class ProxyRegistrarFactoryImpl implements ProxyRegistrarFactory {
     private final SessionSocketListener callSocketListener;
 
     private final InetSocketAddress serverAddress;
+
+    private final BootstrapScheduler m_scheduler;
+
+    private final ExecutorService m_registrationExecutor;
+
+    private final ProxyLatencyTracker m_latencyTracker;
+
+    private final StandbySipClients m_standbys;
+
+    private final MetricsRegistry m_metrics;
+
+    private final KeepAliveLearner m_keepAlives;
     
     /**
      * Creates a new factory for creating classes for registering with 
-     * registrars.
+     * registrars. Keepalive intervals are learned afresh each run, so
+     * nothing is written to disk. Registrations run on the shared 
+     * {@link BootstrapScheduler}, which can't be shut down; pass a 
+     * scheduler of your own to control its lifetime.
      * 
      * @param messageFactory The factory for creating SIP messages.
      * @param transportLayer The transport layer for actually writing messages.
@@ -60,6 +77,52 @@ public final class ProxyRegistrarFactoryImpl implements ProxyRegistrarFactory {
             final InetSocketAddress serverAddress,
             final SessionSocketListener callSocketListener,
             final IdleSipSessionListener idleSipSessionListener) {
+        this(messageFactory, transportLayer, transactionTracker, 
+            clientTracker, uriUtils, offerAnswerFactory, serverAddress,
+            callSocketListener, idleSipSessionListener,
+            BootstrapScheduler.shared(), 
+            new ProxyLatencyTracker(), new StandbySipClients(), 
+            new MetricsRegistry(), null);
+    }
+
+    /**
+     * Creates a new factory for creating classes for registering with 
+     * registrars, running registrations on the given scheduler.
+     * 
+     * @param messageFactory The factory for creating SIP messages.
+     * @param transportLayer The transport layer for actually writing messages.
+     * @param transactionTracker The class for keeping track of SIP 
+     * transactions.
+     * @param clientTracker The class for keeping track of SIP clients.
+     * @param uriUtils The class for manipulating SIP URIs.
+     * @param offerAnswerFactory The class for creating classes capable of
+     * processing offers and answers for an offer/answer protocol.
+     * @param serverAddress Listener for incoming sockets.
+     * @param idleSipSessionListener Listener for idle SIP sessions.
+     * @param scheduler The threads that run the blocking connect and 
+     * REGISTER for each registration, and save what we learn about 
+     * keepalives.
+     * @param latencyTracker The tracker for recording how long it takes to
+     * register with each proxy.
+     * @param standbys Keeps track of all registered clients so one can take
+     * over when the tracked client is lost.
+     * @param metrics The registry to record registration attempts, outcomes
+     * and times in.
+     * @param keepAlivesFile The file to remember how long NAT bindings to
+     * each proxy last in, or <code>null</code> to learn it afresh each run.
+     */
+    public ProxyRegistrarFactoryImpl(final SipMessageFactory messageFactory,
+            final SipTcpTransportLayer transportLayer,
+            final SipTransactionTracker transactionTracker,
+            final SipClientTracker clientTracker, final UriUtils uriUtils,
+            final OfferAnswerFactory offerAnswerFactory,
+            final InetSocketAddress serverAddress,
+            final SessionSocketListener callSocketListener,
+            final IdleSipSessionListener idleSipSessionListener,
+            final BootstrapScheduler scheduler,
+            final ProxyLatencyTracker latencyTracker,
+            final StandbySipClients standbys, final MetricsRegistry metrics,
+            final File keepAlivesFile) {
         this.m_messageFactory = messageFactory;
         this.m_transportLayer = transportLayer;
         this.m_transactionTracker = transactionTracker;
@@ -69,17 +132,76 @@ public final class ProxyRegistrarFactoryImpl implements ProxyRegistrarFactory {
         this.serverAddress = serverAddress;
         this.callSocketListener = callSocketListener;
         this.m_idleSipSessionListener = idleSipSessionListener;
+        this.m_scheduler = scheduler;
+        this.m_registrationExecutor = scheduler.getWorkers();
+        this.m_latencyTracker = latencyTracker;
+        this.m_standbys = standbys;
+        this.m_metrics = metrics;
+        this.m_keepAlives = 
+            new KeepAliveLearner(keepAlivesFile, this.m_registrationExecutor);
+        this.m_keepAlives.load();
+    }
+
+    /**
+     * Returns the threads registrars created by this factory run on.
+     * 
+     * @return The scheduler.
+     */
+    public BootstrapScheduler getScheduler() {
+        return this.m_scheduler;
+    }
+
+    /**
+     * Returns the tracker that registrars created by this factory record
+     * connect and REGISTER times with.
+     * 
+     * @return The latency tracker.
+     */
+    public ProxyLatencyTracker getLatencyTracker() {
+        return this.m_latencyTracker;
+    }
+
+    /**
+     * Returns the registry that registrars created by this factory record
+     * their metrics in.
+     * 
+     * @return The metrics registry.
+     */
+    public MetricsRegistry getMetrics() {
+        return this.m_metrics;
+    }
+
+    /**
+     * Returns what registrars created by this factory have learned about
+     * the interval between keepalives to each proxy.
+     * 
+     * @return The keepalive learner.
+     */
+    public KeepAliveLearner getKeepAliveLearner() {
+        return this.m_keepAlives;
+    }
+
+    /**
+     * Returns the registered clients that can take over from the tracked
+     * client.
+     * 
+     * @return The standby clients.
+     */
+    public StandbySipClients getStandbyClients() {
+        return this.m_standbys;
     }
 
     /**
      * {@inheritDoc}
      */
-    public ProxyRegistrar getRegistrar(final URI client, final URI proxy,
+    public ProxyRegistrarImpl getRegistrar(final URI client, final URI proxy,
             final ProxyRegistrationListener listener) {
         return (new ProxyRegistrarImpl(this.m_uriUtils, client, proxy,
                 listener, this.m_messageFactory, this.m_transportLayer,
                 this.m_transactionTracker, this.m_offerAnswerFactory,
                 this.serverAddress, this.callSocketListener, 
-                this.m_sipClientTracker, this.m_idleSipSessionListener));
+                this.m_sipClientTracker, this.m_idleSipSessionListener,
+                this.m_registrationExecutor, this.m_latencyTracker,
+                this.m_standbys, this.m_metrics, this.m_keepAlives));
     }
 }
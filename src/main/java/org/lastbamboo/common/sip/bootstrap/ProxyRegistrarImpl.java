@@ -3,11 +3,15 @@ package org.lastbamboo.common.sip.bootstrap;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.URI;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import org.lastbamboo.common.offer.answer.OfferAnswer;
 import org.lastbamboo.common.offer.answer.OfferAnswerFactory;
-import org.lastbamboo.common.sip.client.CrlfDelayCalculator;
-import org.lastbamboo.common.sip.client.DefaultCrlfDelayCalculator;
 import org.lastbamboo.common.sip.client.SipClient;
 import org.lastbamboo.common.sip.client.SipClientImpl;
 import org.lastbamboo.common.sip.client.SipClientTracker;
@@ -22,9 +26,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * An implementation of the proxy registrar interface.
+ * An implementation of the proxy registrar interface. Stopping the 
+ * registrar ends its registration: a client that is already registered is
+ * unregistered and closed, and one still registering is ended as soon as it
+ * finishes, without ever being handed out.
  */
-public final class ProxyRegistrarImpl implements ProxyRegistrar {
+public final class ProxyRegistrarImpl implements StoppableProxyRegistrar {
     /**
      * The log for this class.
      */
@@ -64,6 +71,42 @@ public final class ProxyRegistrarImpl implements ProxyRegistrar {
 
     private final InetSocketAddress serverAddress;
 
+    /**
+     * The executor that runs the blocking connect and REGISTER.
+     */
+    private final ExecutorService m_executor;
+
+    /**
+     * Records how long connecting and registering with the proxy takes.
+     */
+    private final ProxyLatencyTracker m_latencyTracker;
+
+    /**
+     * The registered clients that can stand in for the tracked client.
+     */
+    private final StandbySipClients m_standbys;
+
+    /**
+     * The registry for registration attempts, outcomes and times.
+     */
+    private final MetricsRegistry m_metrics;
+
+    /**
+     * What we know about how long NAT bindings to each proxy last.
+     */
+    private final KeepAliveLearner m_keepAlives;
+
+    /**
+     * Whether we've been told to stop. Guarded by this object's lock.
+     */
+    private boolean m_stopped;
+
+    /**
+     * The registered client, or <code>null</code> if we haven't registered.
+     * Guarded by this object's lock.
+     */
+    private SipClient m_registered;
+
     /**
      * Creates a new class for registering with an individual SIP proxy.
      * 
@@ -84,6 +127,14 @@ public final class ProxyRegistrarImpl implements ProxyRegistrar {
      * answerer side.
      * @param clientTracker The class for keeping track of SIP clients.
      * @param idleSipSessionListener Listener for idle SIP sessions.
+     * @param executor The executor that runs the connect and REGISTER off of
+     * the caller's thread.
+     * @param latencyTracker The tracker to record connect and REGISTER
+     * times with.
+     * @param standbys The registered clients to add this client to once it
+     * registers.
+     * @param metrics The registry to record attempts, outcomes and times in.
+     * @param keepAlives The learner for the interval between keepalives.
      */
     public ProxyRegistrarImpl(final UriUtils uriUtils, final URI client,
             final URI proxy, final ProxyRegistrationListener listener,
@@ -94,10 +145,14 @@ public final class ProxyRegistrarImpl implements ProxyRegistrar {
             final InetSocketAddress serverAddress,
             final SessionSocketListener callSocketListener,
             final SipClientTracker clientTracker,
-            final IdleSipSessionListener idleSipSessionListener) {
+            final IdleSipSessionListener idleSipSessionListener,
+            final ExecutorService executor,
+            final ProxyLatencyTracker latencyTracker,
+            final StandbySipClients standbys, final MetricsRegistry metrics,
+            final KeepAliveLearner keepAlives) {
         this.m_client = client;
         this.m_proxy = proxy;
-        this.m_listener = listener;
+        this.m_listener = standbys.track(listener);
         this.m_uriUtils = uriUtils;
         this.m_messageFactory = messageFactory;
         this.m_offerAnswerFactory = offerAnswerFactory;
@@ -107,29 +162,185 @@ public final class ProxyRegistrarImpl implements ProxyRegistrar {
         this.m_transactionTracker = transactionTracker;
         this.m_transportLayer = transportLayer;
         this.m_idleSipSessionListener = idleSipSessionListener;
+        this.m_executor = executor;
+        this.m_latencyTracker = latencyTracker;
+        this.m_standbys = standbys;
+        this.m_metrics = metrics;
+        this.m_keepAlives = keepAlives;
     }
 
+    /**
+     * {@inheritDoc}
+     */
     public void register() {
-        final CrlfDelayCalculator calculator = new DefaultCrlfDelayCalculator();
+        registerAsync();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The client is unregistered and closed on the registration executor.
+     */
+    public void stop() {
+        final SipClient client;
+        synchronized (this) {
+            if (this.m_stopped) {
+                return;
+            }
+            this.m_stopped = true;
+            client = this.m_registered;
+        }
+        if (client == null) {
+            // Ended when the registration finishes, if it does.
+            return;
+        }
+        try {
+            this.m_executor.execute(new Runnable() {
+                public void run() {
+                    end(client);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            end(client);
+        }
+    }
+
+    /**
+     * Unregisters and closes a client we no longer want.
+     */
+    private void end(final SipClient client) {
+        LOG.debug("Ending registration with {}", this.m_proxy);
+        this.m_standbys.remove(this.m_client, this.m_proxy);
+        SipClientClosers.end(client);
+        count("registration.ended");
+    }
+
+    /**
+     * Connects and registers with the proxy on the registration executor.
+     * The listener is notified of the outcome just as with {@link #register()}.
+     * If the executor is saturated, the registration fails immediately and
+     * the returned future is cancelled.
+     * 
+     * @return The future for the registered client. Its <code>get</code>
+     * method throws an {@link java.util.concurrent.ExecutionException} 
+     * wrapping the {@link IOException} if registration fails.
+     */
+    public Future<SipClient> registerAsync() {
+        final FutureTask<SipClient> task = 
+            new FutureTask<SipClient>(new Callable<SipClient>() {
+                public SipClient call() throws IOException {
+                    return registerBlocking();
+                }
+            });
         try {
-            final SipClient client = new SipClientImpl(this.m_client,
+            this.m_executor.execute(task);
+        } catch (final RejectedExecutionException e) {
+            LOG.warn("Too many pending registrations -- failing " + 
+                this.m_proxy);
+            task.cancel(false);
+            this.m_listener.registrationFailed(this.m_client, this.m_proxy);
+        }
+        return task;
+    }
+
+    private SipClient registerBlocking() throws IOException {
+        final AdaptiveCrlfDelayCalculator calculator =
+            this.m_keepAlives.newCalculator(this.m_proxy);
+        TimelineRecorder.Span span = null;
+        final SipClient client;
+        final long start;
+        final long connected;
+        final long registered;
+        try {
+            client = new SipClientImpl(this.m_client,
                 this.m_proxy, this.m_messageFactory,
                 this.m_transactionTracker, this.m_offerAnswerFactory,
                 this.serverAddress, this.callSocketListener, this.m_uriUtils,
                 this.m_transportLayer, this.m_sipClientTracker, calculator,
                 this.m_idleSipSessionListener);
 
+            count("registration.attempts");
+            start = System.nanoTime();
+            span = Timelines.begin(TimelineRecorder.Kind.REGISTRATION,
+                "connect", this.m_client, this.m_proxy);
             client.connect();
+            span.end("connected");
+            connected = System.nanoTime();
+            span = Timelines.begin(TimelineRecorder.Kind.REGISTRATION,
+                "register", this.m_client, this.m_proxy);
             client.register();
-
-            LOG.debug("Adding SIP client!!");
-            this.m_sipClientTracker.addSipClient(client, this.m_listener);
-            this.m_listener.registered(this.m_client, this.m_proxy);
+            span.end("registered");
+            registered = System.nanoTime();
         } catch (final IOException e) {
             // This will frequently happen when, for example, the user has
             // lost his or her network connection.
             LOG.debug("Could not register!!", e);
-            this.m_listener.registrationFailed(this.m_client, this.m_proxy);
+            failed(span);
+            throw e;
+        } catch (final RuntimeException e) {
+            // The future would swallow this, so make sure whoever is 
+            // waiting on the registration hears that it failed.
+            LOG.warn("Error registering with " + this.m_proxy, e);
+            failed(span);
+            throw e;
+        }
+        this.m_latencyTracker.recordSuccess(this.m_proxy,
+            (connected - start) / 1000000L, 
+            (registered - connected) / 1000000L);
+        count("registration.successes");
+        time("registration.connect", connected - start);
+        time("registration.register", registered - connected);
+
+        final boolean stopped;
+        synchronized (this) {
+            stopped = this.m_stopped;
+            if (!stopped) {
+                this.m_registered = client;
+            }
+        }
+        if (stopped) {
+            LOG.debug("Stopped while registering with {}", this.m_proxy);
+            end(client);
+            return client;
+        }
+        LOG.debug("Adding SIP client!!");
+        final ProxyRegistrationListener listener =
+            calculator.wrap(this.m_listener);
+        this.m_sipClientTracker.addSipClient(client, listener);
+        this.m_standbys.add(this.m_client, this.m_proxy, client, listener);
+        this.m_listener.registered(this.m_client, this.m_proxy);
+        return client;
+    }
+
+    /**
+     * Records a failed registration and tells the listener.
+     * 
+     * @param span The span in progress when the registration failed, or
+     * <code>null</code> if there was none.
+     */
+    private void failed(final TimelineRecorder.Span span) {
+        if (span != null) {
+            span.end("failed");
         }
+        this.m_latencyTracker.recordFailure(this.m_proxy);
+        count("registration.failures");
+        this.m_listener.registrationFailed(this.m_client, this.m_proxy);
+    }
+
+    /**
+     * Counts an event both overall and for this proxy.
+     */
+    private void count(final String name) {
+        this.m_metrics.counter(name).increment();
+        this.m_metrics.counter(name + "[" + this.m_proxy + "]").increment();
+    }
+
+    /**
+     * Records a time both overall and for this proxy.
+     */
+    private void time(final String name, final long nanos) {
+        this.m_metrics.timer(name).update(nanos, TimeUnit.NANOSECONDS);
+        this.m_metrics.timer(name + "[" + this.m_proxy + "]").update(nanos,
+            TimeUnit.NANOSECONDS);
     }
 }
@@ -0,0 +1,71 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+/**
+ * Settings for racing registrations against several proxies at once.
+ */
+public final class RacePolicy {
+
+    private final int m_parallelism;
+
+    private final long m_staggerMillis;
+
+    private final boolean m_keepStandbys;
+
+    /**
+     * Creates a new race policy.
+     * 
+     * @param parallelism The number of proxies to race. A value of 1 or less
+     * disables racing.
+     * @param staggerMillis The delay between starting successive attempts.
+     * @param keepStandbys Whether to keep starting the remaining attempts
+     * after the first registration succeeds so that they serve as warm 
+     * standbys.
+     */
+    public RacePolicy(final int parallelism, final long staggerMillis,
+            final boolean keepStandbys) {
+        if (staggerMillis < 0) {
+            throw new IllegalArgumentException("Negative stagger: " + 
+                staggerMillis);
+        }
+        this.m_parallelism = parallelism;
+        this.m_staggerMillis = staggerMillis;
+        this.m_keepStandbys = keepStandbys;
+    }
+
+    /**
+     * Returns a policy that registers with one proxy at a time.
+     * 
+     * @return A policy with racing disabled.
+     */
+    public static RacePolicy disabled() {
+        return new RacePolicy(1, 0L, false);
+    }
+
+    /**
+     * Returns whether racing is enabled.
+     * 
+     * @return <code>true</code> if more than one proxy is raced.
+     */
+    public boolean isEnabled() {
+        return this.m_parallelism > 1;
+    }
+
+    public int getParallelism() {
+        return this.m_parallelism;
+    }
+
+    public long getStaggerMillis() {
+        return this.m_staggerMillis;
+    }
+
+    public boolean isKeepStandbys() {
+        return this.m_keepStandbys;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " [parallelism=" + 
+            this.m_parallelism + ", staggerMillis=" + this.m_staggerMillis + 
+            ", keepStandbys=" + this.m_keepStandbys + "]";
+    }
+}
@@ -0,0 +1,451 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.lastbamboo.common.sip.client.util.ProxyRegistrationListener;
+import org.littleshoot.util.CandidateProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A proxy registrar that races registrations against several candidate 
+ * proxies, happy eyeballs style. Attempts start a stagger interval apart, and
+ * a failed attempt starts the next candidate right away. The first proxy to
+ * register becomes the active proxy. When the active proxy unregisters, any
+ * other registered proxy takes over, and otherwise a new race starts.
+ * <p>
+ * Unless the policy keeps standbys, the winner stops every attempt still in
+ * flight, and an attempt that registers anyway is ended rather than kept,
+ * so each race leaves a single registration behind. Attempts are stopped
+ * through {@link StoppableProxyRegistrar} where the registrar supports it.
+ */
+public final class RacingProxyRegistrar implements StoppableProxyRegistrar,
+        NetworkChangeListener {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    private final URI m_client;
+
+    private final CandidateProvider<URI> m_candidateProvider;
+
+    private final ProxyRegistrarFactory m_registrarFactory;
+
+    private final ProxyRegistrationListener m_listener;
+
+    private final ScheduledExecutorService m_scheduler;
+
+    private final RacePolicy m_policy;
+
+    private final ReRegistrationScheduler m_reRegistration;
+
+    /**
+     * The proxies we are currently registered with, in registration order.
+     */
+    private final Set<URI> m_registered = new LinkedHashSet<URI>();
+
+    private URI m_active;
+
+    private Race m_race;
+
+    private boolean m_stopped;
+
+    /**
+     * Counts network changes, so events from races on an earlier network
+     * can be told apart.
+     */
+    private int m_network;
+
+    /**
+     * Creates a new racing registrar.
+     * 
+     * @param client The client to register.
+     * @param candidateProvider The provider of candidate proxies, best first.
+     * @param registrarFactory The factory for single registrations.
+     * @param listener The listener to notify of registration events.
+     * @param scheduler The scheduler for staggering attempts.
+     * @param policy The settings for the race.
+     */
+    public RacingProxyRegistrar(final URI client,
+            final CandidateProvider<URI> candidateProvider,
+            final ProxyRegistrarFactory registrarFactory,
+            final ProxyRegistrationListener listener,
+            final ScheduledExecutorService scheduler, final RacePolicy policy) {
+        this(client, candidateProvider, registrarFactory, listener, scheduler,
+            policy, new ReRegistrationScheduler(scheduler));
+    }
+
+    /**
+     * Creates a new racing registrar that paces its races with the given
+     * scheduler.
+     * 
+     * @param client The client to register.
+     * @param candidateProvider The provider of candidate proxies, best first.
+     * @param registrarFactory The factory for single registrations.
+     * @param listener The listener to notify of registration events.
+     * @param scheduler The scheduler for staggering attempts.
+     * @param policy The settings for the race.
+     * @param reRegistration The scheduler that backs off and rate limits
+     * new races after every candidate failed or the last registration was
+     * lost.
+     */
+    public RacingProxyRegistrar(final URI client,
+            final CandidateProvider<URI> candidateProvider,
+            final ProxyRegistrarFactory registrarFactory,
+            final ProxyRegistrationListener listener,
+            final ScheduledExecutorService scheduler, final RacePolicy policy,
+            final ReRegistrationScheduler reRegistration) {
+        this.m_reRegistration = reRegistration;
+        this.m_client = client;
+        this.m_candidateProvider = candidateProvider;
+        this.m_registrarFactory = registrarFactory;
+        this.m_listener = listener;
+        this.m_scheduler = scheduler;
+        this.m_policy = policy;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void register() {
+        startRace();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void stop() {
+        final List<ProxyRegistrar> inFlight;
+        synchronized (this) {
+            this.m_stopped = true;
+            inFlight = cancelRace();
+            this.m_registered.clear();
+            this.m_active = null;
+        }
+        stopAll(inFlight);
+        m_log.debug("Stopped registering {}", this.m_client);
+    }
+
+    /**
+     * Cancels the current race, if any. Called holding this registrar's 
+     * lock.
+     * 
+     * @return The race's attempts still in flight, to stop once the lock is
+     * released.
+     */
+    private List<ProxyRegistrar> cancelRace() {
+        if (this.m_race == null) {
+            return Collections.emptyList();
+        }
+        return this.m_race.cancel();
+    }
+
+    private void stopAll(final Collection<ProxyRegistrar> registrars) {
+        for (final ProxyRegistrar registrar : registrars) {
+            stopAttempt(registrar);
+        }
+    }
+
+    private void stopAttempt(final ProxyRegistrar registrar) {
+        if (registrar instanceof StoppableProxyRegistrar) {
+            ((StoppableProxyRegistrar) registrar).stop();
+        } else if (registrar != null) {
+            m_log.debug("Can't stop registration attempt {}", registrar);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Every registration is dropped, since its binding went with the old
+     * network, and a new race starts straight away from the new address.
+     */
+    public void networkChanged(final Set<InetAddress> addresses) {
+        final List<URI> lost;
+        final List<ProxyRegistrar> inFlight;
+        synchronized (this) {
+            if (this.m_stopped) {
+                return;
+            }
+            inFlight = cancelRace();
+            this.m_network++;
+            lost = new ArrayList<URI>(this.m_registered);
+            this.m_registered.clear();
+            this.m_active = null;
+        }
+        stopAll(inFlight);
+        m_log.debug("Network changed -- racing again from {}", addresses);
+        for (final URI proxy : lost) {
+            this.m_listener.unregistered(this.m_client, proxy);
+        }
+        this.m_reRegistration.succeeded(this.m_client, null);
+        startRace();
+    }
+
+    /**
+     * Returns the proxy that won the most recent race, or that took over from
+     * it.
+     * 
+     * @return The active proxy, or <code>null</code> if there is none.
+     */
+    public synchronized URI getActiveProxy() {
+        return this.m_active;
+    }
+
+    private void startRace() {
+        final Collection<URI> candidates = 
+            new LinkedList<URI>(this.m_candidateProvider.getCandidates());
+        final Race race;
+        final List<ProxyRegistrar> inFlight;
+        synchronized (this) {
+            if (this.m_stopped) {
+                return;
+            }
+            inFlight = cancelRace();
+            candidates.removeAll(this.m_registered);
+            race = new Race(candidates);
+            this.m_race = race;
+        }
+        stopAll(inFlight);
+        m_log.debug("Racing registrations against: {}", candidates);
+        race.start();
+    }
+
+    /**
+     * Races again once the re-registration backoff allows. Races are not
+     * for any one proxy, so they back off per client.
+     */
+    private void scheduleRetry() {
+        this.m_reRegistration.failed(this.m_client, null);
+        this.m_reRegistration.schedule(this.m_client, null, new Runnable() {
+            public void run() {
+                startRace();
+            }
+        });
+    }
+
+    /**
+     * A single race across a snapshot of the candidate proxies. Each attempt
+     * reports back to the race that started it, so events from attempts in
+     * an abandoned race never start new attempts.
+     */
+    private final class Race implements ProxyRegistrationListener {
+
+        private final Queue<URI> m_pending;
+
+        private final List<ScheduledFuture<?>> m_scheduled =
+            new LinkedList<ScheduledFuture<?>>();
+
+        /**
+         * The attempts that have started but not yet finished, by proxy.
+         */
+        private final Map<URI, ProxyRegistrar> m_attempts =
+            new HashMap<URI, ProxyRegistrar>();
+
+        private int m_outstanding;
+
+        private boolean m_won;
+
+        private boolean m_cancelled;
+
+        /**
+         * The network this race started on.
+         */
+        private final int m_raceNetwork = m_network;
+
+        private Race(final Collection<URI> candidates) {
+            this.m_pending = new LinkedList<URI>(candidates);
+        }
+
+        private void start() {
+            final int attempts;
+            synchronized (RacingProxyRegistrar.this) {
+                attempts = Math.min(m_policy.getParallelism(), 
+                    this.m_pending.size());
+                if (attempts == 0) {
+                    m_log.warn("No candidate proxies to race");
+                }
+            }
+            if (attempts == 0) {
+                scheduleRetry();
+                return;
+            }
+            launchNext();
+            for (int i = 1; i < attempts; i++) {
+                final ScheduledFuture<?> future = m_scheduler.schedule(
+                    new Runnable() {
+                        public void run() {
+                            launchNext();
+                        }
+                    }, i * m_policy.getStaggerMillis(), TimeUnit.MILLISECONDS);
+                synchronized (RacingProxyRegistrar.this) {
+                    this.m_scheduled.add(future);
+                }
+            }
+        }
+
+        /**
+         * Stops starting attempts. Called holding the registrar lock.
+         * 
+         * @return The attempts still in flight, for the caller to stop once
+         * the lock is released.
+         */
+        private List<ProxyRegistrar> cancel() {
+            this.m_cancelled = true;
+            for (final ScheduledFuture<?> future : this.m_scheduled) {
+                future.cancel(false);
+            }
+            this.m_scheduled.clear();
+            final List<ProxyRegistrar> inFlight = 
+                new ArrayList<ProxyRegistrar>(this.m_attempts.values());
+            this.m_attempts.clear();
+            return inFlight;
+        }
+
+        /**
+         * Returns whether the network changed since this race started, so
+         * events from its attempts are stale. Called holding the registrar
+         * lock.
+         */
+        private boolean isStale() {
+            return this.m_raceNetwork != m_network;
+        }
+
+        private void launchNext() {
+            final URI proxy;
+            synchronized (RacingProxyRegistrar.this) {
+                if (this.m_cancelled || 
+                    (this.m_won && !m_policy.isKeepStandbys())) {
+                    return;
+                }
+                proxy = this.m_pending.poll();
+                if (proxy == null) {
+                    return;
+                }
+                this.m_outstanding++;
+            }
+            m_log.debug("Starting registration with: {}", proxy);
+            try {
+                final ProxyRegistrar registrar = 
+                    m_registrarFactory.getRegistrar(m_client, proxy, this);
+                final boolean cancelled;
+                synchronized (RacingProxyRegistrar.this) {
+                    cancelled = this.m_cancelled;
+                    if (!cancelled) {
+                        this.m_attempts.put(proxy, registrar);
+                    }
+                }
+                if (cancelled) {
+                    return;
+                }
+                registrar.register();
+            } catch (final RuntimeException e) {
+                m_log.warn("Could not start registration with " + proxy, e);
+                registrationFailed(m_client, proxy);
+            }
+        }
+
+        public void registered(final URI client, final URI proxy) {
+            final ProxyRegistrar attempt;
+            final boolean late;
+            List<ProxyRegistrar> losers = Collections.emptyList();
+            synchronized (RacingProxyRegistrar.this) {
+                attempt = this.m_attempts.remove(proxy);
+                if (m_stopped || isStale()) {
+                    return;
+                }
+                this.m_outstanding--;
+                // Registered after the race was decided.
+                late = this.m_won && !m_policy.isKeepStandbys();
+                if (!late) {
+                    m_registered.add(proxy);
+                    if (!this.m_won) {
+                        this.m_won = true;
+                        m_reRegistration.succeeded(m_client, null);
+                        m_active = proxy;
+                        m_log.debug("Won race: {}", proxy);
+                        if (!m_policy.isKeepStandbys()) {
+                            losers = cancel();
+                        }
+                    }
+                }
+            }
+            if (late) {
+                m_log.debug("Ending late registration with: {}", proxy);
+                stopAttempt(attempt);
+                return;
+            }
+            stopAll(losers);
+            m_listener.registered(client, proxy);
+        }
+
+        public void reRegistered(final URI client, final URI proxy) {
+            synchronized (RacingProxyRegistrar.this) {
+                if (isStale()) {
+                    return;
+                }
+            }
+            m_listener.reRegistered(client, proxy);
+        }
+
+        public void registrationFailed(final URI client, final URI proxy) {
+            final boolean lost;
+            synchronized (RacingProxyRegistrar.this) {
+                this.m_attempts.remove(proxy);
+                if (isStale()) {
+                    return;
+                }
+                this.m_outstanding--;
+                lost = !this.m_won && !this.m_cancelled && 
+                    this.m_outstanding == 0 && this.m_pending.isEmpty();
+            }
+            m_listener.registrationFailed(client, proxy);
+            if (lost) {
+                scheduleRetry();
+            } else {
+                // Don't wait out the stagger after a failure.
+                launchNext();
+            }
+        }
+
+        public void unregistered(final URI client, final URI proxy) {
+            final boolean raceAgain;
+            synchronized (RacingProxyRegistrar.this) {
+                if (isStale()) {
+                    return;
+                }
+                m_registered.remove(proxy);
+                if (proxy.equals(m_active)) {
+                    if (m_registered.isEmpty()) {
+                        m_active = null;
+                        raceAgain = true;
+                    } else {
+                        m_active = m_registered.iterator().next();
+                        m_log.debug("Failing over to: {}", m_active);
+                        raceAgain = false;
+                    }
+                } else {
+                    raceAgain = false;
+                }
+            }
+            m_listener.unregistered(client, proxy);
+            if (raceAgain) {
+                m_log.debug("Lost last registration -- racing again");
+                scheduleRetry();
+            }
+        }
+    }
+}
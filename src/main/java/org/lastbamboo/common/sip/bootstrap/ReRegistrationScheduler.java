@@ -0,0 +1,222 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import java.net.URI;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides when registration attempts may start, so that a proxy that
+ * restarts is not knocked over again by every client coming back at once.
+ * <p>
+ * Attempts back off exponentially with full jitter: after <i>n</i> failures
+ * in a row, the next attempt waits a random time between 0 and the base 
+ * delay times 2<sup><i>n</i> - 1</sup>, up to the maximum delay. Failures 
+ * count against the client as well as the proxy, and an attempt waits out 
+ * whichever backoff is longer, so a client that loses its proxy doesn't 
+ * fail over to the next one at the same instant as every other client of 
+ * the lost proxy. On top of that, every attempt takes a token from a bucket
+ * shared by all registrations from the same factory, which caps the overall
+ * attempt rate.
+ */
+public final class ReRegistrationScheduler {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The default backoff after the first failure.
+     */
+    public static final long DEFAULT_BASE_DELAY_MILLIS = 1000;
+
+    /**
+     * The default longest backoff.
+     */
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 2 * 60 * 1000;
+
+    /**
+     * The default overall rate of attempts.
+     */
+    public static final double DEFAULT_ATTEMPTS_PER_SECOND = 20;
+
+    /**
+     * The default number of attempts that may start at once.
+     */
+    public static final int DEFAULT_BURST = 40;
+
+    /**
+     * Beyond this many failures the backoff is at its maximum anyway, and
+     * shifting further would overflow.
+     */
+    private static final int MAX_DOUBLINGS = 30;
+
+    private final ScheduledExecutorService m_scheduler;
+
+    private final long m_baseDelayMillis;
+
+    private final long m_maxDelayMillis;
+
+    private final TokenBucket m_tokens;
+
+    /**
+     * Consecutive failures for each client and proxy pair, and for each 
+     * client with any proxy under a <code>null</code> proxy.
+     */
+    private final ConcurrentMap<Key, AtomicInteger> m_failures =
+        new ConcurrentHashMap<Key, AtomicInteger>();
+
+    private final Random m_random = new Random();
+
+    /**
+     * Creates a new scheduler with the default settings.
+     *
+     * @param scheduler The executor to run delayed attempts on.
+     */
+    public ReRegistrationScheduler(final ScheduledExecutorService scheduler) {
+        this(scheduler, DEFAULT_BASE_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS,
+            DEFAULT_ATTEMPTS_PER_SECOND, DEFAULT_BURST);
+    }
+
+    /**
+     * Creates a new scheduler.
+     *
+     * @param scheduler The executor to run delayed attempts on.
+     * @param baseDelayMillis The backoff after the first failure.
+     * @param maxDelayMillis The longest backoff.
+     * @param attemptsPerSecond The overall rate of attempts.
+     * @param burst The number of attempts that may start at once.
+     */
+    public ReRegistrationScheduler(final ScheduledExecutorService scheduler,
+            final long baseDelayMillis, final long maxDelayMillis,
+            final double attemptsPerSecond, final int burst) {
+        this.m_scheduler = scheduler;
+        this.m_baseDelayMillis = baseDelayMillis;
+        this.m_maxDelayMillis = maxDelayMillis;
+        this.m_tokens = new TokenBucket(attemptsPerSecond, burst);
+    }
+
+    /**
+     * Runs a registration attempt once its backoff and the attempt rate
+     * allow. An attempt that may start right away runs on the calling thread.
+     *
+     * @param client The client registering.
+     * @param proxy The proxy to register with, or <code>null</code> if the
+     * attempt is not for a particular proxy.
+     * @param attempt The attempt.
+     */
+    public void schedule(final URI client, final URI proxy,
+            final Runnable attempt) {
+        final long delay = Math.max(backoffMillis(client, proxy),
+            this.m_tokens.take());
+        if (delay == 0) {
+            attempt.run();
+            return;
+        }
+        m_log.debug("Registering {} with {} in {} ms",
+            new Object[] {client, proxy, delay});
+        this.m_scheduler.schedule(attempt, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records a failed or lost registration, lengthening the next backoff.
+     *
+     * @param client The client.
+     * @param proxy The proxy, or <code>null</code>.
+     */
+    public void failed(final URI client, final URI proxy) {
+        increment(new Key(client, proxy));
+        if (proxy != null) {
+            increment(new Key(client, null));
+        }
+    }
+
+    private void increment(final Key key) {
+        AtomicInteger failures = this.m_failures.get(key);
+        if (failures == null) {
+            final AtomicInteger created = new AtomicInteger();
+            failures = this.m_failures.putIfAbsent(key, created);
+            if (failures == null) {
+                failures = created;
+            }
+        }
+        failures.incrementAndGet();
+    }
+
+    /**
+     * Records a successful registration, so the next attempt after losing
+     * it only waits the base backoff.
+     *
+     * @param client The client.
+     * @param proxy The proxy, or <code>null</code>.
+     */
+    public void succeeded(final URI client, final URI proxy) {
+        this.m_failures.remove(new Key(client, proxy));
+        if (proxy != null) {
+            this.m_failures.remove(new Key(client, null));
+        }
+    }
+
+    /**
+     * Returns the number of failures in a row for a client and proxy.
+     *
+     * @param client The client.
+     * @param proxy The proxy, or <code>null</code> for the client's failures
+     * with any proxy.
+     * @return The number of failures since the last success.
+     */
+    public int getFailures(final URI client, final URI proxy) {
+        final AtomicInteger failures =
+            this.m_failures.get(new Key(client, proxy));
+        return failures == null ? 0 : failures.get();
+    }
+
+    private long backoffMillis(final URI client, final URI proxy) {
+        final int failures = Math.max(getFailures(client, proxy), 
+            getFailures(client, null));
+        if (failures == 0) {
+            return 0L;
+        }
+        final long ceiling = Math.min(this.m_maxDelayMillis,
+            this.m_baseDelayMillis << Math.min(failures - 1, MAX_DOUBLINGS));
+        synchronized (this.m_random) {
+            return (long) (this.m_random.nextDouble() * ceiling);
+        }
+    }
+
+    /**
+     * A client and proxy pair.
+     */
+    private static final class Key {
+
+        private final URI m_client;
+
+        private final URI m_proxy;
+
+        private Key(final URI client, final URI proxy) {
+            this.m_client = client;
+            this.m_proxy = proxy;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return this.m_client.equals(other.m_client) &&
+                (this.m_proxy == null ? other.m_proxy == null :
+                    this.m_proxy.equals(other.m_proxy));
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * this.m_client.hashCode() +
+                (this.m_proxy == null ? 0 : this.m_proxy.hashCode());
+        }
+    }
+}
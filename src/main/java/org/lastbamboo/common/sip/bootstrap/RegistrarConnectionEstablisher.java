@@ -1,8 +1,11 @@
 package org.lastbamboo.common.sip.bootstrap;
 
 import java.net.URI;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -38,16 +41,34 @@ public final class RegistrarConnectionEstablisher
     private final ProxyRegistrationListener m_listener;
 
     /**
-     * The map of registrars to the connection maintainer listeners listening
-     * for events on those registrars.
+     * The current registration with each registrar. Events from any other
+     * registration with the same registrar are stale and are dropped.
      */
-    private final Map<URI,ConnectionMaintainerListener<URI>>
-        m_connectionMaintainerListeners;
+    private final ConcurrentMap<URI,Registration> m_registrations =
+        new ConcurrentHashMap<URI,Registration>();
 
     /**
-     * The listener we use to listen for registration events.
+     * Whether we have been told to stop registering.
      */
-    private final ProxyRegistrationListener m_myListener;
+    private volatile boolean m_stopped;
+
+    /**
+     * The scheduler that paces registration attempts, or <code>null</code>
+     * to register straight away.
+     */
+    private final ReRegistrationScheduler m_reRegistration;
+
+    /**
+     * The circuit breaker that skips failing registrars, or 
+     * <code>null</code> to always try them.
+     */
+    private final ProxyCircuitBreaker m_circuitBreaker;
+
+    /**
+     * The executor to tell the connection maintainer about skipped 
+     * registrars on, or <code>null</code> to tell it straight away.
+     */
+    private final Executor m_workers;
 
     /**
      * Constructs a new registrar connection establisher.
@@ -60,99 +81,226 @@ public final class RegistrarConnectionEstablisher
     public RegistrarConnectionEstablisher(final URI client,
             final ProxyRegistrarFactory registrarFactory,
             final ProxyRegistrationListener listener) {
+        this(client, registrarFactory, listener, null, null, null);
+    }
+
+    /**
+     * Constructs a new registrar connection establisher that paces its
+     * registration attempts.
+     *
+     * @param client The client to register.
+     * @param registrarFactory The registrar factory that provides registrars 
+     * for single registrations.
+     * @param listener The listener to be notified of registration events.
+     * @param reRegistration The scheduler that backs off and rate limits
+     * registration attempts, or <code>null</code> to register straight away.
+     * @param circuitBreaker The circuit breaker that skips registrars that
+     * keep failing, or <code>null</code> to always try them.
+     */
+    public RegistrarConnectionEstablisher(final URI client,
+            final ProxyRegistrarFactory registrarFactory,
+            final ProxyRegistrationListener listener,
+            final ReRegistrationScheduler reRegistration,
+            final ProxyCircuitBreaker circuitBreaker) {
+        this(client, registrarFactory, listener, reRegistration, 
+            circuitBreaker, circuitBreaker == null ? null : 
+                BootstrapScheduler.shared().getWorkers());
+    }
+
+    /**
+     * Constructs a new registrar connection establisher that paces its
+     * registration attempts and reports skipped registrars on the given
+     * executor.
+     *
+     * @param client The client to register.
+     * @param registrarFactory The registrar factory that provides registrars 
+     * for single registrations.
+     * @param listener The listener to be notified of registration events.
+     * @param reRegistration The scheduler that backs off and rate limits
+     * registration attempts, or <code>null</code> to register straight away.
+     * @param circuitBreaker The circuit breaker that skips registrars that
+     * keep failing, or <code>null</code> to always try them.
+     * @param workers The executor to report registrars skipped by the 
+     * circuit breaker on. The connection maintainer picks another registrar
+     * when it hears of the failure, so reporting it from within 
+     * {@link #establish} would recurse through every open circuit.
+     */
+    public RegistrarConnectionEstablisher(final URI client,
+            final ProxyRegistrarFactory registrarFactory,
+            final ProxyRegistrationListener listener,
+            final ReRegistrationScheduler reRegistration,
+            final ProxyCircuitBreaker circuitBreaker, final Executor workers) {
+        this.m_workers = workers;
+        this.m_reRegistration = reRegistration;
+        this.m_circuitBreaker = circuitBreaker;
         this.m_client = client;
         this.m_registrarFactory = registrarFactory;
         this.m_listener = listener;
-
-        this.m_connectionMaintainerListeners = 
-            new HashMap<URI, ConnectionMaintainerListener<URI>>();
-
-        this.m_myListener = new MyListener();
     }
 
     /**
-     * The registration listener that is notified of single registrations.
+     * A single registration with a registrar, and the listener for its
+     * events. Each registration is its own token in the registry: it only
+     * passes events on while it is the current registration for its 
+     * registrar, and it handles its events one at a time so they reach the
+     * connection maintainer in the order they were sent.
      */
-    private class MyListener implements ProxyRegistrationListener {
-        public void registered(final URI client, final URI proxy) {
-            final ConnectionMaintainerListener<URI> connectionMaintainerListener = 
-                RegistrarConnectionEstablisher.this
-                    .getConnectionMaintainerListener(proxy);
-            connectionMaintainerListener.connected(proxy);
-            RegistrarConnectionEstablisher.this.m_listener.registered(client,
-                    proxy);
+    private final class Registration implements ProxyRegistrationListener {
+
+        private final ConnectionMaintainerListener<URI> m_maintainerListener;
+
+        /**
+         * The span for the attempt, and then for the registration once it
+         * succeeds.
+         */
+        private TimelineRecorder.Span m_span;
+
+        private Registration(final URI proxy,
+                final ConnectionMaintainerListener<URI> maintainerListener) {
+            this.m_maintainerListener = maintainerListener;
+            this.m_span = Timelines.begin(TimelineRecorder.Kind.FAILOVER, 
+                "attempt", m_client, proxy);
+        }
+
+        private boolean isCurrent(final URI proxy) {
+            if (m_registrations.get(proxy) == this) {
+                return true;
+            }
+            LOG.debug("Dropping stale event from: " + proxy);
+            return false;
+        }
+
+        /**
+         * Removes this registration from the registry.
+         *
+         * @return <code>true</code> if this was the current registration.
+         */
+        private boolean end(final URI proxy) {
+            if (m_registrations.remove(proxy, this)) {
+                return true;
+            }
+            LOG.debug("Dropping stale event from: " + proxy);
+            return false;
+        }
+
+        public synchronized void registered(final URI client, 
+                final URI proxy) {
+            if (!isCurrent(proxy)) {
+                return;
+            }
+            if (m_reRegistration != null) {
+                m_reRegistration.succeeded(client, proxy);
+            }
+            if (m_circuitBreaker != null) {
+                m_circuitBreaker.recordSuccess(proxy);
+            }
+            this.m_span.end("registered");
+            this.m_span = Timelines.begin(TimelineRecorder.Kind.FAILOVER,
+                "registered", client, proxy);
+            this.m_maintainerListener.connected(proxy);
+            m_listener.registered(client, proxy);
         }
 
-        public void reRegistered(final URI client, final URI proxy) {
-            final ConnectionMaintainerListener<URI> connectionMaintainerListener = 
-                RegistrarConnectionEstablisher.this
-                    .getConnectionMaintainerListener(proxy);
-            connectionMaintainerListener.reconnected();
-            RegistrarConnectionEstablisher.this.m_listener.reRegistered(client,
-                    proxy);
+        public synchronized void reRegistered(final URI client, 
+                final URI proxy) {
+            if (!isCurrent(proxy)) {
+                return;
+            }
+            Timelines.instant(TimelineRecorder.Kind.FAILOVER, "reRegistered",
+                client, proxy, "reRegistered");
+            this.m_maintainerListener.reconnected();
+            m_listener.reRegistered(client, proxy);
         }
 
-        public void registrationFailed(final URI client, final URI proxy) {
-            final ConnectionMaintainerListener<URI> connectionMaintainerListener = 
-                RegistrarConnectionEstablisher.this
-                    .getConnectionMaintainerListener(proxy);
-            connectionMaintainerListener.connectionFailed();
-            RegistrarConnectionEstablisher.this.stopNotifying(proxy);
-            RegistrarConnectionEstablisher.this.m_listener.registrationFailed(
-                    client, proxy);
+        public synchronized void registrationFailed(final URI client, 
+                final URI proxy) {
+            if (!end(proxy)) {
+                return;
+            }
+            this.m_span.end("failed");
+            backOff(proxy);
+            trip(proxy);
+            this.m_maintainerListener.connectionFailed();
+            m_listener.registrationFailed(client, proxy);
         }
 
-        public void unregistered(final URI client, final URI proxy) {
-            final ConnectionMaintainerListener<URI> connectionMaintainerListener = 
-                RegistrarConnectionEstablisher.this
-                    .getConnectionMaintainerListener(proxy);
+        public synchronized void unregistered(final URI client, 
+                final URI proxy) {
+            if (!end(proxy)) {
+                return;
+            }
+            this.m_span.end("unregistered");
+            backOff(proxy);
+            this.m_maintainerListener.disconnected();
+            m_listener.unregistered(client, proxy);
+        }
 
-            connectionMaintainerListener.disconnected();
-            RegistrarConnectionEstablisher.this.stopNotifying(proxy);
-            RegistrarConnectionEstablisher.this.m_listener.unregistered(client,
-                    proxy);
+        /**
+         * Drops this registration because its binding went with the old
+         * network, and has the connection maintainer replace it straight
+         * away.
+         */
+        private synchronized void invalidate(final URI proxy) {
+            if (!end(proxy)) {
+                return;
+            }
+            this.m_span.end("networkChanged");
+            // The proxy did nothing wrong, so don't make the new 
+            // registration wait out a backoff.
+            if (m_reRegistration != null) {
+                m_reRegistration.succeeded(m_client, proxy);
+            }
+            this.m_maintainerListener.disconnected();
+            m_listener.unregistered(m_client, proxy);
         }
     }
 
     /**
-     * Signals us to start notifying a given connection maintainer listener of
-     * connection events related to a given registrar.
+     * Lengthens the backoff before the next attempt with a registrar.
      *
      * @param registrar The URI of the registrar.
-     * @param listener The listener to notify.
      */
-    private void startNotifying(final URI registrar,
-            final ConnectionMaintainerListener<URI> listener) {
-        synchronized (this.m_connectionMaintainerListeners) {
-            // We should not yet have a listener for the given registrar.
-            this.m_connectionMaintainerListeners.put(registrar, listener);
+    private void backOff(final URI registrar) {
+        if (this.m_reRegistration != null) {
+            this.m_reRegistration.failed(this.m_client, registrar);
         }
     }
 
     /**
-     * Signals us to stop notifying the connection maintainer listener of
-     * connection events related to a given registrar.
+     * Counts a failure against a registrar's circuit.
      *
      * @param registrar The URI of the registrar.
      */
-    private void stopNotifying(final URI registrar) {
-        synchronized (this.m_connectionMaintainerListeners) {
-            this.m_connectionMaintainerListeners.remove(registrar);
+    private void trip(final URI registrar) {
+        if (this.m_circuitBreaker != null) {
+            this.m_circuitBreaker.recordFailure(registrar);
         }
     }
 
     /**
-     * Returns the connection maintainer listener that is listening for
-     * connection events related to a given registrar.
-     *
-     * @param registrar The URI of the registrar.
-     *
-     * @return The connection maintainer listener that is listening for 
-     * connection events related to a given registrar.
+     * Stops registering. Later calls to establish do nothing, and events 
+     * from current registrations are dropped, so the connection maintainer
+     * never hears that it should replace them.
+     */
+    public void stop() {
+        this.m_stopped = true;
+        this.m_registrations.clear();
+    }
+
+    /**
+     * Drops every current registration after the local network changes.
+     * The connection maintainer replaces each one at once, so they all
+     * re-register in parallel from the new address. Events that later 
+     * arrive from the old registrations are dropped as stale.
      */
-    private ConnectionMaintainerListener<URI> getConnectionMaintainerListener(
-            final URI registrar) {
-        return this.m_connectionMaintainerListeners.get(registrar);
+    public void networkChanged() {
+        if (this.m_stopped) {
+            return;
+        }
+        for (final Map.Entry<URI, Registration> entry : 
+            this.m_registrations.entrySet()) {
+            entry.getValue().invalidate(entry.getKey());
+        }
     }
 
     /**
@@ -160,19 +308,79 @@ public final class RegistrarConnectionEstablisher
      */
     public void establish(final URI serverId,
             final ConnectionMaintainerListener<URI> listener) {
+        if (this.m_stopped) {
+            LOG.debug("Stopped -- not registering with: " + serverId);
+            return;
+        }
+        if (this.m_reRegistration == null) {
+            register(serverId, listener);
+            return;
+        }
+        this.m_reRegistration.schedule(this.m_client, serverId, 
+            new Runnable() {
+                public void run() {
+                    try {
+                        register(serverId, listener);
+                    } catch (final RuntimeException e) {
+                        // Nobody is left to throw to, so tell the 
+                        // maintainer directly.
+                        listener.connectionFailed();
+                    }
+                }
+            });
+    }
+
+    /**
+     * Tells the connection maintainer a registrar was skipped, off the 
+     * calling thread where we can.
+     */
+    private void skipped(final ConnectionMaintainerListener<URI> listener) {
+        if (this.m_workers != null) {
+            try {
+                this.m_workers.execute(new Runnable() {
+                    public void run() {
+                        listener.connectionFailed();
+                    }
+                });
+                return;
+            } catch (final RejectedExecutionException e) {
+                LOG.debug("Could not hand off skipped registrar", e);
+            }
+        }
+        listener.connectionFailed();
+    }
+
+    private void register(final URI serverId,
+            final ConnectionMaintainerListener<URI> listener) {
+        if (this.m_circuitBreaker != null && 
+            !this.m_circuitBreaker.allowRequest(serverId)) {
+            LOG.debug("Circuit open -- skipping: " + serverId);
+            skipped(listener);
+            return;
+        }
+        if (this.m_stopped) {
+            return;
+        }
         LOG.debug("Registering with: " + serverId);
 
-        this.startNotifying(serverId, listener);
+        // Any earlier registration with this registrar is superseded, and
+        // its events are dropped from now on.
+        final Registration registration = new Registration(serverId, listener);
+        this.m_registrations.put(serverId, registration);
 
         try {
             final ProxyRegistrar registrar = 
                 this.m_registrarFactory.getRegistrar(this.m_client, serverId, 
-                    this.m_myListener);
+                    registration);
 
             registrar.register();
         } catch (final RuntimeException e) {
             LOG.warn("Could not either access the registrar or register", e);
-            this.stopNotifying(serverId);
+            if (this.m_registrations.remove(serverId, registration)) {
+                registration.m_span.end("error");
+            }
+            backOff(serverId);
+            trip(serverId);
 
             throw (e);
         }
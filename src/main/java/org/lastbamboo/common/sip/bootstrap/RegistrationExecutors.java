@@ -0,0 +1,94 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factory methods for the executors that run proxy registrations off of the
+ * caller's thread.
+ */
+public final class RegistrationExecutors {
+
+    /**
+     * The default maximum number of registrations to run at once.
+     */
+    public static final int DEFAULT_THREADS = 16;
+
+    /**
+     * The default number of registrations that may wait for a thread.
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 4096;
+
+    private RegistrationExecutors() {
+        // Only static methods.
+    }
+
+    /**
+     * Creates a new executor with the default bounds.
+     * 
+     * @return A new bounded registration executor.
+     */
+    public static ExecutorService newBoundedExecutor() {
+        return newBoundedExecutor(DEFAULT_THREADS, DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * Creates a new executor that runs at most <code>threads</code>
+     * registrations at once and queues at most <code>queueSize</code> more.
+     * Registrations submitted beyond that are rejected. Idle threads time out,
+     * so the executor costs nothing while nothing is registering.
+     * 
+     * @param threads The maximum number of registration threads.
+     * @param queueSize The maximum number of queued registrations.
+     * @return A new bounded registration executor.
+     */
+    public static ExecutorService newBoundedExecutor(final int threads,
+            final int queueSize) {
+        return newBoundedExecutor(threads, queueSize,
+                new DaemonThreadFactory("SIP-Registration-Thread-"));
+    }
+
+    /**
+     * Creates a new bounded executor using the given thread factory. This
+     * allows callers to supply, for example, a factory for virtual threads
+     * on JVMs that support them.
+     * 
+     * @param threads The maximum number of registration threads.
+     * @param queueSize The maximum number of queued registrations.
+     * @param threadFactory The factory for creating registration threads.
+     * @return A new bounded registration executor.
+     */
+    public static ExecutorService newBoundedExecutor(final int threads,
+            final int queueSize, final ThreadFactory threadFactory) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads,
+                threads, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(queueSize), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Thread factory creating named daemon threads.
+     */
+    static final class DaemonThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger m_count = new AtomicInteger();
+
+        private final String m_prefix;
+
+        DaemonThreadFactory(final String prefix) {
+            this.m_prefix = prefix;
+        }
+
+        public Thread newThread(final Runnable r) {
+            final Thread thread =
+                new Thread(r, this.m_prefix + this.m_count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
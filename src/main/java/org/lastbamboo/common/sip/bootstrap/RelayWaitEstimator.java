@@ -0,0 +1,177 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import java.util.Arrays;
+
+/**
+ * Works out how long to wait for a direct connection before falling back to
+ * a relay. The wait is a high percentile of how long recent direct
+ * connection attempts took, kept within configured bounds. An attempt that
+ * ran out of time only tells us it would have taken longer than we waited,
+ * so it counts as twice the wait. That lets the estimate grow when too many
+ * attempts time out, instead of only ever shrinking. If direct connections
+ * have mostly been failing even with the longest wait, we wait the minimum
+ * time, and the estimate climbs back up from there as attempts time out.
+ */
+public final class RelayWaitEstimator {
+
+    /**
+     * The number of recent connections to base the wait on.
+     */
+    private static final int WINDOW = 256;
+
+    /**
+     * The number of outcomes we need before we trust our estimate.
+     */
+    private static final int MIN_SAMPLES = 16;
+
+    /**
+     * The percentile of direct connection times to wait for.
+     */
+    private static final double PERCENTILE = 0.95;
+
+    /**
+     * Below this fraction of direct successes, we wait the minimum time.
+     */
+    private static final double MIN_DIRECT_RATIO = 0.1;
+
+    private final int m_minWait;
+
+    private final int m_maxWait;
+
+    private final int m_initialWait;
+
+    /**
+     * Recent outcomes. Direct connections hold their setup time in
+     * milliseconds, and connections that fell back to a relay hold minus
+     * one less the time we waited.
+     */
+    private final long[] m_outcomes = new long[WINDOW];
+
+    private int m_count;
+
+    private int m_next;
+
+    private int m_wait;
+
+    private boolean m_dirty;
+
+    /**
+     * Creates an estimator that always returns the same wait time.
+     *
+     * @param relayWaitTime The wait time, in seconds.
+     */
+    public RelayWaitEstimator(final int relayWaitTime) {
+        this(relayWaitTime, relayWaitTime, relayWaitTime);
+    }
+
+    /**
+     * Creates a new estimator.
+     *
+     * @param minWait The shortest wait to use, in seconds.
+     * @param maxWait The longest wait to use, in seconds.
+     * @param initialWait The wait to use until we have seen enough
+     * connections, in seconds.
+     */
+    public RelayWaitEstimator(final int minWait, final int maxWait,
+            final int initialWait) {
+        if (minWait > maxWait) {
+            throw new IllegalArgumentException("Min wait " + minWait +
+                " is above max wait " + maxWait);
+        }
+        this.m_minWait = minWait;
+        this.m_maxWait = maxWait;
+        this.m_initialWait = clamp(initialWait);
+        this.m_wait = this.m_initialWait;
+    }
+
+    /**
+     * Records a direct connection.
+     *
+     * @param elapsedMillis How long the connection took to set up.
+     */
+    public void recordDirect(final long elapsedMillis) {
+        record(Math.max(0L, elapsedMillis));
+    }
+
+    /**
+     * Records a connection that fell back to a relay after waiting for a
+     * direct connection.
+     *
+     * @param waitedMillis How long we waited for the direct connection.
+     */
+    public void recordRelay(final long waitedMillis) {
+        record(-1L - Math.max(0L, waitedMillis));
+    }
+
+    private synchronized void record(final long outcome) {
+        this.m_outcomes[this.m_next] = outcome;
+        this.m_next = (this.m_next + 1) % WINDOW;
+        if (this.m_count < WINDOW) {
+            this.m_count++;
+        }
+        this.m_dirty = true;
+    }
+
+    /**
+     * Returns the shortest wait this estimator uses, for peers we already 
+     * expect to need a relay. It still gives a direct connection a chance 
+     * if the peer's network has improved.
+     *
+     * @return The shortest wait time, in seconds.
+     */
+    public int getMinRelayWaitTime() {
+        return this.m_minWait;
+    }
+
+    /**
+     * Returns the time to wait for a direct connection before using a relay.
+     *
+     * @return The wait time, in seconds.
+     */
+    public synchronized int getRelayWaitTime() {
+        if (this.m_dirty) {
+            this.m_wait = estimate();
+            this.m_dirty = false;
+        }
+        return this.m_wait;
+    }
+
+    private int estimate() {
+        if (this.m_count < MIN_SAMPLES) {
+            return this.m_initialWait;
+        }
+        final long[] times = new long[this.m_count];
+        int directs = 0;
+        int fullWaits = 0;
+        for (int i = 0; i < this.m_count; i++) {
+            final long outcome = this.m_outcomes[i];
+            if (outcome >= 0) {
+                directs++;
+                times[i] = outcome;
+            } else {
+                // We only know the attempt needed longer than we waited.
+                final long waited = -1L - outcome;
+                times[i] = 2 * waited;
+                if (waited >= this.m_maxWait * 1000L) {
+                    fullWaits++;
+                }
+            }
+        }
+        // Direct connections only count as failing once most of the 
+        // attempts that timed out waited as long as we ever wait. Until
+        // then they may just be slow.
+        if (directs < this.m_count * MIN_DIRECT_RATIO && 
+            fullWaits * 2 > this.m_count - directs) {
+            return this.m_minWait;
+        }
+        Arrays.sort(times);
+        final int index = Math.min(this.m_count - 1, 
+            (int) Math.ceil(this.m_count * PERCENTILE) - 1);
+        final long millis = times[Math.max(0, index)];
+        return clamp((int) ((millis + 999) / 1000));
+    }
+
+    private int clamp(final int wait) {
+        return Math.max(this.m_minWait, Math.min(this.m_maxWait, wait));
+    }
+}
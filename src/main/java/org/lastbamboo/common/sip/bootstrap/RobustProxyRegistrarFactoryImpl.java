@@ -1,16 +1,18 @@
 package org.lastbamboo.common.sip.bootstrap;
 
+import java.io.File;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.util.Collection;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
 
 import org.lastbamboo.common.sip.client.util.ProxyRegistrationListener;
 import org.lastbamboo.common.sip.stack.util.UriUtils;
 import org.littleshoot.util.CandidateProvider;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 /**
  * An implementation of the robust proxy registrar factory implementation.
@@ -18,20 +20,11 @@ import org.slf4j.LoggerFactory;
 public final class RobustProxyRegistrarFactoryImpl
     implements RobustProxyRegistrarFactory {
     
-    private final Logger m_log = LoggerFactory.getLogger(getClass());
-    
-    /**
-     * The default transport to use to connect to this host.
-     */
-    private static final String DEFAULT_TRANSPORT = "tcp";
-
-    private final UriUtils m_uriUtils;
-    
     /**
      * The candidate provider that provides candidate registrars for
      * registration.
      */
-    private final CandidateProvider<URI> m_candidateProvider;
+    private final SipUriCandidateProvider m_candidateProvider;
 
     /**
      * The registrar factory that provides registrars for single registrations.
@@ -39,7 +32,71 @@ public final class RobustProxyRegistrarFactoryImpl
     private final ProxyRegistrarFactory m_registrarFactory;
 
     /**
-     * Constructs a new robust proxy registrar factory.
+     * The settings for racing registrations against several proxies.
+     */
+    private final RacePolicy m_racePolicy;
+
+    /**
+     * The threads for all of this factory's background work.
+     */
+    private final BootstrapScheduler m_bootstrapScheduler;
+
+    /**
+     * The timer for staggering raced registrations.
+     */
+    private final ScheduledExecutorService m_scheduler;
+
+    /**
+     * The number of standby registrations to keep besides the primary one.
+     */
+    private final int m_standbys;
+
+    /**
+     * The scheduler that backs off and rate limits registration attempts
+     * from every registrar this factory creates.
+     */
+    private final ReRegistrationScheduler m_reRegistration;
+
+    /**
+     * The circuit breaker for every proxy, shared by all registrars from
+     * this factory.
+     */
+    private final ProxyCircuitBreaker m_circuitBreaker;
+
+    /**
+     * The registry to record failover gaps in.
+     */
+    private final MetricsRegistry m_metrics;
+
+    /**
+     * The tracker used to rank candidate proxies.
+     */
+    private final ProxyLatencyTracker m_latencyTracker;
+
+    /**
+     * The proxies we registered with most recently, kept across runs, or 
+     * <code>null</code> if we don't remember proxies.
+     */
+    private final KnownProxyStore m_knownProxies;
+
+    /**
+     * The registered clients the single registrations add themselves to.
+     */
+    private final StandbySipClients m_standbyClients;
+
+    /**
+     * Watches the local addresses so registrations can move to a new 
+     * network straight away, or <code>null</code> if we don't watch them.
+     * Registrars from this factory listen to it from when they start until
+     * they stop.
+     */
+    private final NetworkChangeMonitor m_networkMonitor;
+
+    /**
+     * Constructs a new robust proxy registrar factory. It doesn't remember
+     * proxies between runs, so nothing is written to disk, and it registers
+     * the way it always has: there is no circuit breaker, and a network 
+     * change is only noticed when registrations fail.
      * 
      * @param uriUtils Utilities for creating SIP URIs.
      * @param sipCandidateProvider The candidate provider that provides  
@@ -50,45 +107,275 @@ public final class RobustProxyRegistrarFactoryImpl
     public RobustProxyRegistrarFactoryImpl(final UriUtils uriUtils,
             final CandidateProvider<InetSocketAddress> sipCandidateProvider,
             final ProxyRegistrarFactory registrarFactory) {
-        this.m_uriUtils = uriUtils;
-        this.m_candidateProvider = new CandidateProvider<URI>() {
-            public URI getCandidate() {
-                final Collection<URI> candidates = getCandidates();
-                if (candidates.isEmpty())
-                    return null;
-                return candidates.iterator().next();
-            }
+        this(uriUtils, sipCandidateProvider, registrarFactory, 
+            RacePolicy.disabled(), scheduler(registrarFactory), 
+            latencyTracker(registrarFactory),
+            SipUriCandidateProvider.DEFAULT_TTL_MILLIS, 0, null, null, 
+            metrics(registrarFactory), null, false);
+    }
 
-            public Collection<URI> getCandidates() {
-                m_log.debug("Accessing SIP servers...");
-                final Collection<URI> candidates = new LinkedList<URI>();
+    private static MetricsRegistry metrics(
+            final ProxyRegistrarFactory registrarFactory) {
+        if (registrarFactory instanceof ProxyRegistrarFactoryImpl) {
+            return ((ProxyRegistrarFactoryImpl) registrarFactory)
+                .getMetrics();
+        }
+        return new MetricsRegistry();
+    }
 
-                final Collection<InetSocketAddress> addresses = 
-                    sipCandidateProvider.getCandidates();
+    private static BootstrapScheduler scheduler(
+            final ProxyRegistrarFactory registrarFactory) {
+        if (registrarFactory instanceof ProxyRegistrarFactoryImpl) {
+            return ((ProxyRegistrarFactoryImpl) registrarFactory)
+                .getScheduler();
+        }
+        return BootstrapScheduler.shared();
+    }
 
-                m_log.info("Connecting to servers: {}", addresses);
+    private static ProxyLatencyTracker latencyTracker(
+            final ProxyRegistrarFactory registrarFactory) {
+        if (registrarFactory instanceof ProxyRegistrarFactoryImpl) {
+            return ((ProxyRegistrarFactoryImpl) registrarFactory)
+                .getLatencyTracker();
+        }
+        return new ProxyLatencyTracker();
+    }
 
-                for (final InetSocketAddress isa : addresses) {
-                    m_log.info("Processing candidate address: {}", isa);
-                    final InetAddress address = isa.getAddress();
+    /**
+     * Constructs a new robust proxy registrar factory that races 
+     * registrations against several proxies according to the given policy.
+     * 
+     * @param uriUtils Utilities for creating SIP URIs.
+     * @param sipCandidateProvider The candidate provider that provides  
+     * candidate registrars for registration.
+     * @param registrarFactory The registrar factory that provides registrars 
+     * for single registrations.
+     * @param racePolicy The settings for racing registrations.
+     * @param scheduler The threads for staggering raced registrations,
+     * refreshing candidate proxies and saving known proxies. This should be
+     * the same scheduler the single registrations run on. If this is 
+     * <code>null</code>, the factory uses the shared scheduler.
+     * @param latencyTracker The tracker used to rank candidate proxies. This
+     * should be the same tracker the single registrations record their
+     * times with.
+     * @param candidateTtlMillis How long to cache the candidate proxies 
+     * before refreshing them in the background.
+     * @param standbys The number of standby registrations to keep with other
+     * proxies besides the primary one. This is ignored when racing, which 
+     * keeps standbys according to the race policy.
+     * @param reRegistration The scheduler that backs off and rate limits
+     * registration attempts across all registrars from this factory. If this
+     * is <code>null</code>, the factory creates one with the default 
+     * settings.
+     * @param circuitBreaker The circuit breaker that skips proxies that keep
+     * failing, or <code>null</code> to always try every proxy.
+     * @param metrics The registry to record failover gaps in. This should be
+     * the same registry the single registrations record in.
+     * @param knownProxiesFile The file to remember the proxies we most 
+     * recently registered with in, so they can be tried first on the next 
+     * start while discovery runs in the background. If this is 
+     * <code>null</code>, we don't remember proxies.
+     */
+    public RobustProxyRegistrarFactoryImpl(final UriUtils uriUtils,
+            final CandidateProvider<InetSocketAddress> sipCandidateProvider,
+            final ProxyRegistrarFactory registrarFactory,
+            final RacePolicy racePolicy,
+            final BootstrapScheduler scheduler,
+            final ProxyLatencyTracker latencyTracker,
+            final long candidateTtlMillis, final int standbys,
+            final ReRegistrationScheduler reRegistration,
+            final ProxyCircuitBreaker circuitBreaker,
+            final MetricsRegistry metrics, final File knownProxiesFile) {
+        this(uriUtils, sipCandidateProvider, registrarFactory, racePolicy,
+            scheduler, latencyTracker, candidateTtlMillis, standbys, 
+            reRegistration, circuitBreaker, metrics, knownProxiesFile, true);
+    }
 
-                    // The URI we are given is the public address (and SIP port)
-                    // of
-                    // this host. To convert to the URI of the proxy we are
-                    // running,
-                    // we replace the port with the proxy port.
-                    final String host = address.getHostAddress();
+    /**
+     * Constructs a new robust proxy registrar factory that may or may not
+     * watch the local addresses.
+     * 
+     * @param uriUtils Utilities for creating SIP URIs.
+     * @param sipCandidateProvider The candidate provider that provides  
+     * candidate registrars for registration.
+     * @param registrarFactory The registrar factory that provides registrars 
+     * for single registrations.
+     * @param racePolicy The settings for racing registrations.
+     * @param scheduler The threads for background work, or 
+     * <code>null</code> for the shared scheduler.
+     * @param latencyTracker The tracker used to rank candidate proxies.
+     * @param candidateTtlMillis How long to cache the candidate proxies.
+     * @param standbys The number of standby registrations to keep.
+     * @param reRegistration The scheduler that backs off and rate limits
+     * registration attempts, or <code>null</code> for the default one.
+     * @param circuitBreaker The circuit breaker that skips proxies that keep
+     * failing, or <code>null</code> to always try every proxy.
+     * @param metrics The registry to record failover gaps in.
+     * @param knownProxiesFile The file to remember proxies in, or 
+     * <code>null</code> to not remember them.
+     * @param watchNetwork Whether to watch the local addresses and move
+     * registrations to a new network as soon as it appears.
+     */
+    public RobustProxyRegistrarFactoryImpl(final UriUtils uriUtils,
+            final CandidateProvider<InetSocketAddress> sipCandidateProvider,
+            final ProxyRegistrarFactory registrarFactory,
+            final RacePolicy racePolicy,
+            final BootstrapScheduler scheduler,
+            final ProxyLatencyTracker latencyTracker,
+            final long candidateTtlMillis, final int standbys,
+            final ReRegistrationScheduler reRegistration,
+            final ProxyCircuitBreaker circuitBreaker,
+            final MetricsRegistry metrics, final File knownProxiesFile,
+            final boolean watchNetwork) {
+        this.m_latencyTracker = latencyTracker;
+        this.m_circuitBreaker = circuitBreaker;
+        this.m_metrics = metrics;
+        this.m_racePolicy = racePolicy;
+        this.m_standbys = standbys;
+        this.m_bootstrapScheduler = 
+            scheduler == null ? BootstrapScheduler.shared() : scheduler;
+        this.m_scheduler = this.m_bootstrapScheduler.getTimers();
+        if (reRegistration == null) {
+            this.m_reRegistration = 
+                new ReRegistrationScheduler(this.m_scheduler);
+        } else {
+            this.m_reRegistration = reRegistration;
+        }
+        this.m_candidateProvider = new SipUriCandidateProvider(uriUtils,
+            sipCandidateProvider, latencyTracker, circuitBreaker, 
+            this.m_bootstrapScheduler.getDiscovery(), candidateTtlMillis);
+        this.m_candidateProvider.addListener(new CandidateChangeHandler());
+        if (knownProxiesFile == null) {
+            this.m_knownProxies = null;
+        } else {
+            this.m_knownProxies = new KnownProxyStore(knownProxiesFile,
+                KnownProxyStore.DEFAULT_MAX_PROXIES, 
+                this.m_bootstrapScheduler.getWorkers());
+            seedCandidates();
+        }
 
-                    final URI uri = m_uriUtils.getSipUri(host, isa.getPort(),
-                            DEFAULT_TRANSPORT);
-                    candidates.add(uri);
-                }
+        this.m_registrarFactory = registrarFactory;
+        if (registrarFactory instanceof ProxyRegistrarFactoryImpl) {
+            this.m_standbyClients = ((ProxyRegistrarFactoryImpl) 
+                registrarFactory).getStandbyClients();
+        } else {
+            this.m_standbyClients = new StandbySipClients();
+        }
+        if (watchNetwork) {
+            this.m_networkMonitor = 
+                new NetworkChangeMonitor(this.m_bootstrapScheduler);
+            // Added first so everything tied to the old network is cleared
+            // before the registrars hear about the change.
+            this.m_networkMonitor.addListener(new NetworkChangeHandler());
+        } else {
+            this.m_networkMonitor = null;
+        }
+    }
 
-                return candidates;
+    /**
+     * Offers the proxies remembered from the last run as the first 
+     * candidates, with their remembered latencies.
+     */
+    private void seedCandidates() {
+        final Map<URI, Long> known = this.m_knownProxies.load();
+        for (final Map.Entry<URI, Long> entry : known.entrySet()) {
+            final long latency = entry.getValue().longValue();
+            if (latency >= 0) {
+                this.m_latencyTracker.seed(entry.getKey(), latency);
             }
-        };
+        }
+        this.m_candidateProvider.seed(known.keySet());
+    }
 
-        this.m_registrarFactory = registrarFactory;
+    /**
+     * Returns the threads this factory runs its background work on.
+     * 
+     * @return The scheduler.
+     */
+    public BootstrapScheduler getScheduler() {
+        return this.m_bootstrapScheduler;
+    }
+
+    /**
+     * Returns the monitor for the local addresses. It starts with the first
+     * registrar from this factory that starts.
+     * 
+     * @return The network monitor, or <code>null</code> if this factory 
+     * doesn't watch the local addresses.
+     */
+    public NetworkChangeMonitor getNetworkMonitor() {
+        return this.m_networkMonitor;
+    }
+
+    /**
+     * Returns the registered clients that can take over from the tracked
+     * client. These are the ones the single registrations from this 
+     * factory add themselves to, so launchers should fail over to them.
+     * 
+     * @return The standby clients.
+     */
+    public StandbySipClients getStandbyClients() {
+        return this.m_standbyClients;
+    }
+
+    /**
+     * Returns the store of proxies remembered across runs.
+     * 
+     * @return The store, or <code>null</code> if we don't remember proxies.
+     */
+    public KnownProxyStore getKnownProxies() {
+        return this.m_knownProxies;
+    }
+
+    /**
+     * Returns the provider of candidate proxy URIs shared by all registrars
+     * from this factory.
+     * 
+     * @return The candidate provider.
+     */
+    public SipUriCandidateProvider getCandidateProvider() {
+        return this.m_candidateProvider;
+    }
+
+    /**
+     * Returns the circuit breaker shared by all registrars from this 
+     * factory, for inspecting the state of each proxy.
+     * 
+     * @return The circuit breaker, or <code>null</code> if circuit breaking
+     * is off.
+     */
+    public ProxyCircuitBreaker getCircuitBreaker() {
+        return this.m_circuitBreaker;
+    }
+
+    /**
+     * Returns the registry registrations from this factory record their
+     * metrics in.
+     * 
+     * @return The metrics registry.
+     */
+    public MetricsRegistry getMetrics() {
+        return this.m_metrics;
+    }
+
+    /**
+     * Returns a registrar that maintains registrations for many users at
+     * once using this factory's proxies and scheduler, for gateways that 
+     * front many users.
+     * 
+     * @param listener The listener to notify of every user's registration
+     * events.
+     * @return A new registrar for many users.
+     */
+    public MultiUserRegistrar getMultiUserRegistrar(
+            final ProxyRegistrationListener listener) {
+        return new MultiUserRegistrar(this.m_registrarFactory, 
+            this.m_candidateProvider, this.m_scheduler, 
+            this.m_bootstrapScheduler.getWorkers(), listener,
+            MultiUserRegistrar.DEFAULT_BATCH_SIZE,
+            MultiUserRegistrar.DEFAULT_BATCH_INTERVAL_MILLIS,
+            MultiUserRegistrar.DEFAULT_SPREAD_MILLIS, this.m_reRegistration,
+            this.m_networkMonitor);
     }
 
     /**
@@ -96,7 +383,96 @@ public final class RobustProxyRegistrarFactoryImpl
      */
     public ProxyRegistrar getRegistrar(final URI client,
             final ProxyRegistrationListener listener) {
-        return (new RobustProxyRegistrarImpl(client, this.m_candidateProvider,
-                this.m_registrarFactory, listener));
+        ProxyRegistrationListener wrapped = 
+            new FailoverMetricsListener(listener, this.m_metrics);
+        if (this.m_knownProxies != null) {
+            wrapped = new KnownProxyRecorder(wrapped, this.m_knownProxies,
+                this.m_latencyTracker);
+        }
+        if (this.m_racePolicy.isEnabled()) {
+            return watch(new RacingProxyRegistrar(client, 
+                this.m_candidateProvider, this.m_registrarFactory, wrapped, 
+                this.m_scheduler, this.m_racePolicy, this.m_reRegistration));
+        }
+        return watch(new RobustProxyRegistrarImpl(client, 
+                this.m_candidateProvider, this.m_registrarFactory, wrapped, 
+                this.m_standbys, this.m_reRegistration, 
+                this.m_circuitBreaker, 
+                this.m_bootstrapScheduler.getWorkers()));
+    }
+
+    /**
+     * Has a registrar hear about network changes while it is running, if
+     * we watch the network.
+     */
+    private <T extends StoppableProxyRegistrar & NetworkChangeListener> 
+        ProxyRegistrar watch(final T registrar) {
+        if (this.m_networkMonitor == null) {
+            return registrar;
+        }
+        return new WatchedRegistrar<T>(registrar);
+    }
+
+    /**
+     * A registrar that listens to the network monitor from when it starts
+     * registering until it stops.
+     */
+    private final class WatchedRegistrar
+        <T extends StoppableProxyRegistrar & NetworkChangeListener> 
+        implements StoppableProxyRegistrar {
+
+        private final T m_registrar;
+
+        private WatchedRegistrar(final T registrar) {
+            this.m_registrar = registrar;
+        }
+
+        public void register() {
+            m_networkMonitor.addListener(this.m_registrar);
+            m_networkMonitor.start();
+            this.m_registrar.register();
+        }
+
+        public void stop() {
+            m_networkMonitor.removeListener(this.m_registrar);
+            this.m_registrar.stop();
+        }
+    }
+
+    /**
+     * Forgets what we learned about proxies discovery no longer offers, so
+     * the circuit breaker and latency tracker only hold current proxies.
+     */
+    private final class CandidateChangeHandler 
+        implements ProxyCandidateListener {
+
+        public void candidatesChanged(final List<URI> current,
+                final Collection<URI> added, final Collection<URI> removed) {
+            for (final URI proxy : removed) {
+                if (m_circuitBreaker != null) {
+                    m_circuitBreaker.forget(proxy);
+                }
+                m_latencyTracker.forget(proxy);
+            }
+        }
+    }
+
+    /**
+     * Clears everything tied to the old network. The running registrars 
+     * listen to the monitor themselves, and hear about the change after 
+     * this so they re-register from the new network.
+     */
+    private final class NetworkChangeHandler implements NetworkChangeListener {
+
+        public void networkChanged(final Set<InetAddress> addresses) {
+            m_metrics.counter("network.changes").increment();
+            m_candidateProvider.invalidate();
+            // Standbys are registered from the old address too.
+            m_standbyClients.clear();
+            if (m_registrarFactory instanceof ProxyRegistrarFactoryImpl) {
+                ((ProxyRegistrarFactoryImpl) m_registrarFactory)
+                    .getKeepAliveLearner().networkChanged();
+            }
+        }
     }
 }
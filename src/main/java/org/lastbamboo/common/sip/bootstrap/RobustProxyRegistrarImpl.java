@@ -1,10 +1,12 @@
 package org.lastbamboo.common.sip.bootstrap;
 
+import java.net.InetAddress;
 import java.net.URI;
+import java.util.Set;
+import java.util.concurrent.Executor;
 
 import org.lastbamboo.common.sip.client.util.ProxyRegistrationListener;
 import org.littleshoot.util.CandidateProvider;
-import org.littleshoot.util.ConnectionEstablisher;
 import org.littleshoot.util.ConnectionMaintainer;
 import org.littleshoot.util.ConnectionMaintainerImpl;
 import org.littleshoot.util.Optional;
@@ -13,7 +15,8 @@ import org.littleshoot.util.Optional;
  * A proxy registrar that attempts to be robust by maintaining registrations to
  * multiple SIP proxies.
  */
-public class RobustProxyRegistrarImpl implements ProxyRegistrar {
+public class RobustProxyRegistrarImpl implements StoppableProxyRegistrar,
+        NetworkChangeListener {
 
     /**
      * The connection maintainer used to maintain connections to multiple
@@ -21,6 +24,11 @@ public class RobustProxyRegistrarImpl implements ProxyRegistrar {
      */
     private final ConnectionMaintainer<URI> m_connectionMaintainer;
 
+    /**
+     * The establisher the connection maintainer registers through.
+     */
+    private final RegistrarConnectionEstablisher m_establisher;
+
     /**
      * Constructs a new robust proxy registrar.
      *
@@ -35,12 +43,86 @@ public class RobustProxyRegistrarImpl implements ProxyRegistrar {
             final CandidateProvider<URI> candidateProvider,
             final ProxyRegistrarFactory registrarFactory,
             final ProxyRegistrationListener listener) {
-        final ConnectionEstablisher<URI, URI> establisher = 
+        this(client, candidateProvider, registrarFactory, listener, 0);
+    }
+
+    /**
+     * Constructs a new robust proxy registrar that keeps registrations with
+     * standby proxies in addition to the primary one.
+     *
+     * @param client The client to register.
+     * @param candidateProvider The candidate provider that provides candidate 
+     *  registrars for registration.
+     * @param registrarFactory The registrar factory that provides registrars 
+     *  for single registrations.
+     * @param listener The listener to be notified of registration events.
+     * @param standbys The number of standby registrations to maintain.
+     */
+    public RobustProxyRegistrarImpl(final URI client,
+            final CandidateProvider<URI> candidateProvider,
+            final ProxyRegistrarFactory registrarFactory,
+            final ProxyRegistrationListener listener, final int standbys) {
+        this(client, candidateProvider, registrarFactory, listener, standbys,
+            null, null);
+    }
+
+    /**
+     * Constructs a new robust proxy registrar that keeps registrations with
+     * standby proxies and paces its registration attempts.
+     *
+     * @param client The client to register.
+     * @param candidateProvider The candidate provider that provides candidate 
+     *  registrars for registration.
+     * @param registrarFactory The registrar factory that provides registrars 
+     *  for single registrations.
+     * @param listener The listener to be notified of registration events.
+     * @param standbys The number of standby registrations to maintain.
+     * @param reRegistration The scheduler that backs off and rate limits
+     *  registration attempts, or <code>null</code> to register straight away.
+     * @param circuitBreaker The circuit breaker that skips proxies that keep
+     *  failing, or <code>null</code> to always try them.
+     */
+    public RobustProxyRegistrarImpl(final URI client,
+            final CandidateProvider<URI> candidateProvider,
+            final ProxyRegistrarFactory registrarFactory,
+            final ProxyRegistrationListener listener, final int standbys,
+            final ReRegistrationScheduler reRegistration,
+            final ProxyCircuitBreaker circuitBreaker) {
+        this(client, candidateProvider, registrarFactory, listener, standbys,
+            reRegistration, circuitBreaker, circuitBreaker == null ? null :
+                BootstrapScheduler.shared().getWorkers());
+    }
+
+    /**
+     * Constructs a new robust proxy registrar that keeps registrations with
+     * standby proxies, paces its registration attempts and reports proxies
+     * skipped by the circuit breaker on the given executor.
+     *
+     * @param client The client to register.
+     * @param candidateProvider The candidate provider that provides candidate 
+     *  registrars for registration.
+     * @param registrarFactory The registrar factory that provides registrars 
+     *  for single registrations.
+     * @param listener The listener to be notified of registration events.
+     * @param standbys The number of standby registrations to maintain.
+     * @param reRegistration The scheduler that backs off and rate limits
+     *  registration attempts, or <code>null</code> to register straight away.
+     * @param circuitBreaker The circuit breaker that skips proxies that keep
+     *  failing, or <code>null</code> to always try them.
+     * @param workers The executor to report skipped proxies on.
+     */
+    public RobustProxyRegistrarImpl(final URI client,
+            final CandidateProvider<URI> candidateProvider,
+            final ProxyRegistrarFactory registrarFactory,
+            final ProxyRegistrationListener listener, final int standbys,
+            final ReRegistrationScheduler reRegistration,
+            final ProxyCircuitBreaker circuitBreaker, final Executor workers) {
+        this.m_establisher = 
             new RegistrarConnectionEstablisher(client, registrarFactory, 
-                    listener);
+                    listener, reRegistration, circuitBreaker, workers);
 
         this.m_connectionMaintainer = new ConnectionMaintainerImpl<URI, URI>(
-                establisher, candidateProvider, 1);
+                this.m_establisher, candidateProvider, 1 + standbys);
     }
 
     /**
@@ -50,6 +132,23 @@ public class RobustProxyRegistrarImpl implements ProxyRegistrar {
         this.m_connectionMaintainer.start();
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The connection maintainer has no way to stop, so we stop its
+     * establisher instead, which leaves the maintainer idle.
+     */
+    public void stop() {
+        this.m_establisher.stop();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void networkChanged(final Set<InetAddress> addresses) {
+        this.m_establisher.networkChanged();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -0,0 +1,31 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import java.io.IOException;
+
+import org.lastbamboo.common.sip.client.SipClient;
+
+/**
+ * Ends a SIP client's registration and closes its connection, for 
+ * registrations we no longer want, such as the losers of a race or every
+ * registration when the user logs out. See {@link SipClientClosers} for the
+ * closer in use.
+ */
+public interface SipClientCloser {
+
+    /**
+     * Sends a REGISTER with <code>Expires: 0</code> so the proxy drops the
+     * client's binding, and waits for the answer.
+     *
+     * @param client The client to unregister.
+     * @throws IOException If the REGISTER could not be sent or was refused.
+     */
+    void unregister(SipClient client) throws IOException;
+
+    /**
+     * Closes the client's connection to its proxy, which also stops its 
+     * keepalives.
+     *
+     * @param client The client to close.
+     */
+    void close(SipClient client);
+}
@@ -0,0 +1,111 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import org.lastbamboo.common.sip.client.SipClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link SipClientCloser} for the process. The {@link SipClient} 
+ * interface has no way to unregister or close, so by default we call public
+ * <code>unregister()</code> and <code>close()</code> methods on the client
+ * if its class has them, and otherwise leave the registration to expire 
+ * and the connection open. SIP stacks that end registrations some other 
+ * way can install their own closer.
+ */
+public final class SipClientClosers {
+
+    private static final Logger LOG = 
+        LoggerFactory.getLogger(SipClientClosers.class);
+
+    /**
+     * The closer that calls the client's own methods where it has them.
+     */
+    public static final SipClientCloser DEFAULT = new SipClientCloser() {
+        public void unregister(final SipClient client) throws IOException {
+            invoke(client, "unregister");
+        }
+
+        public void close(final SipClient client) {
+            try {
+                invoke(client, "close");
+            } catch (final IOException e) {
+                LOG.debug("Error closing SIP client", e);
+            }
+        }
+    };
+
+    private static volatile SipClientCloser s_closer = DEFAULT;
+
+    private SipClientClosers() {
+        // Only static methods.
+    }
+
+    /**
+     * Returns the closer in use.
+     *
+     * @return The closer.
+     */
+    public static SipClientCloser getCloser() {
+        return s_closer;
+    }
+
+    /**
+     * Replaces the closer in use.
+     *
+     * @param closer The new closer, or <code>null</code> for the default.
+     */
+    public static void setCloser(final SipClientCloser closer) {
+        s_closer = closer == null ? DEFAULT : closer;
+    }
+
+    /**
+     * Unregisters a client with the closer in use, then closes it whether
+     * or not the proxy answered.
+     *
+     * @param client The client to end.
+     */
+    public static void end(final SipClient client) {
+        final SipClientCloser closer = s_closer;
+        try {
+            closer.unregister(client);
+        } catch (final IOException e) {
+            LOG.debug("Could not unregister SIP client", e);
+        } catch (final RuntimeException e) {
+            LOG.warn("Error unregistering SIP client", e);
+        }
+        try {
+            closer.close(client);
+        } catch (final RuntimeException e) {
+            LOG.warn("Error closing SIP client", e);
+        }
+    }
+
+    private static void invoke(final SipClient client, final String name)
+            throws IOException {
+        final Method method;
+        try {
+            method = client.getClass().getMethod(name);
+        } catch (final NoSuchMethodException e) {
+            LOG.debug("SIP client has no {}()", name);
+            return;
+        }
+        try {
+            method.invoke(client);
+        } catch (final IllegalAccessException e) {
+            LOG.debug("Could not call " + name + "()", e);
+        } catch (final InvocationTargetException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Error calling " + name + "()", cause);
+        }
+    }
+}
@@ -1,14 +1,27 @@
 package org.lastbamboo.common.sip.bootstrap;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.Socket;
 import java.net.URI;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.lastbamboo.common.offer.answer.IceMediaStreamDesc;
 import org.lastbamboo.common.offer.answer.NoAnswerException;
 import org.lastbamboo.common.offer.answer.OfferAnswerFactory;
+import org.lastbamboo.common.offer.answer.OfferAnswerMessage;
 import org.lastbamboo.common.offer.answer.OfferAnswerTransactionListener;
-import org.lastbamboo.common.p2p.DefaultTcpUdpSocket;
 import org.lastbamboo.common.p2p.P2PClient;
 import org.lastbamboo.common.p2p.P2PConnectionListener;
 import org.lastbamboo.common.p2p.TcpUdpSocket;
@@ -31,6 +44,38 @@ public final class SipClientLauncher implements P2PClient {
     private static final Logger LOG = 
         LoggerFactory.getLogger (SipClientLauncher.class);
 
+    /**
+     * The stream description for reliable sockets. Descriptions are 
+     * immutable, so every socket shares the same one.
+     */
+    private static final IceMediaStreamDesc RELIABLE_STREAM = 
+        IceMediaStreamDesc.newReliable();
+
+    /**
+     * The most offers we have outstanding on the SIP connection at once.
+     */
+    public static final int MAX_OUTSTANDING_OFFERS = 256;
+
+    /**
+     * How long we wait for an answer before failing an offer, a little 
+     * longer than the SIP stack takes to time out the transaction itself.
+     */
+    public static final long OFFER_TIMEOUT_MILLIS = 40 * 1000;
+
+    /**
+     * How long logging out waits for proxies to answer our unregisters
+     * before closing the clients anyway.
+     */
+    public static final long UNREGISTER_TIMEOUT_MILLIS = 5 * 1000;
+
+    /**
+     * The stream description for unreliable sockets.
+     */
+    private static final IceMediaStreamDesc UNRELIABLE_STREAM =
+        new IceMediaStreamDesc(true, true, "application", "udp", 1, true, 
+            true);
+        //IceMediaStreamDesc.newUnreliableUdpStream();
+
     /**
      * The object for maintaining a registration with a SIP proxy.
      */
@@ -40,10 +85,101 @@ public final class SipClientLauncher implements P2PClient {
 
     private final OfferAnswerFactory m_offerAnswerFactory;
 
-    private final int m_relayWaitTime;
+    /**
+     * Works out how long to wait for direct connections before using a 
+     * relay.
+     */
+    private final RelayWaitEstimator m_relayWait;
+
+    /**
+     * Registered clients that can take over when the tracker has none.
+     */
+    private final StandbySipClients m_standbys;
+
+    /**
+     * Idle reliable sockets to reuse per peer, or <code>null</code> if
+     * sockets are not pooled.
+     */
+    private final PeerSocketPool m_socketPool;
+
+    /**
+     * The paths our recent connections to each peer took.
+     */
+    private final PeerRouteCache m_routeCache;
+
+    /**
+     * The registrar for all users when running as a gateway, or 
+     * <code>null</code> when running for a single user.
+     */
+    private final MultiUserRegistrar m_gateway;
+
+    /**
+     * The registry for socket setup times.
+     */
+    private final MetricsRegistry m_metrics;
+
+    /**
+     * Limits how many connections we set up at once.
+     */
+    private final ConnectionAdmission m_admission;
+
+    /**
+     * A permit for each offer awaiting its answer.
+     */
+    private final Semaphore m_offers = new Semaphore(MAX_OUTSTANDING_OFFERS);
+
+    /**
+     * The threads that time out offers nobody answers.
+     */
+    private final BootstrapScheduler m_scheduler;
+
+    /**
+     * Delivers connectivity events to our connection listeners.
+     */
+    private final ConnectionEventDispatcher m_connectionEvents =
+        new ConnectionEventDispatcher();
+
+    /**
+     * The number of sockets we created to each peer that are still open, 
+     * so peers are only reported disconnected once the last one closes.
+     * Guarded by its own lock.
+     */
+    private final Map<URI, Integer> m_openSockets = 
+        new HashMap<URI, Integer>();
+
+    /**
+     * The registrar for the logged in user, or <code>null</code> if we are
+     * not logged in.
+     */
+    private ProxyRegistrar m_registrar;
+
+    /**
+     * The listener for the logged in user's registrations, or 
+     * <code>null</code> if we are not logged in.
+     */
+    private RegistrationStateListener m_registrationListener;
+
+    /**
+     * The URI of the user this launcher connects as, which is the first
+     * user to log in, or <code>null</code> if we are not logged in.
+     */
+    private volatile URI m_sipUri;
 
     private volatile boolean loggedIn;
 
+    /**
+     * The tracked client we ended when logging out. The tracker has no way
+     * to drop a client, so it holds this one until a new registration 
+     * replaces it, and we skip it until then.
+     */
+    private volatile SipClient m_endedClient;
+
+    /**
+     * Creates the offer/answer exchange for each new socket.
+     */
+    private volatile TcpUdpSocketFactory m_socketFactory = 
+        TcpUdpSocketFactory.DEFAULT;
+
     /**
      * Launches a SIP client.
      * 
@@ -51,24 +187,121 @@ public final class SipClientLauncher implements P2PClient {
      * @param registrarFactory The object for maintaining a registration with a 
      * SIP proxy.
      * @param offerAnswerFactory Factory for creating offers and answers.
-     * @param relayWaitTime The time to wait before using a relay.
+     * @param relayWaitTime The longest time to wait before using a relay, in 
+     * seconds. The actual wait adapts to how long direct connections take.
      */
     public SipClientLauncher(final SipClientTracker sipClientTracker,
             final RobustProxyRegistrarFactory registrarFactory,
             final OfferAnswerFactory offerAnswerFactory, 
             final int relayWaitTime) {
+        this(sipClientTracker, registrarFactory, offerAnswerFactory, 
+            new RelayWaitEstimator(Math.min(1, relayWaitTime), relayWaitTime,
+                relayWaitTime), 
+            standbys(registrarFactory), null, 
+            new PeerRouteCache(), null, metrics(registrarFactory),
+            new ConnectionAdmission());
+    }
+
+    private static StandbySipClients standbys(
+            final RobustProxyRegistrarFactory registrarFactory) {
+        if (registrarFactory instanceof RobustProxyRegistrarFactoryImpl) {
+            return ((RobustProxyRegistrarFactoryImpl) registrarFactory)
+                .getStandbyClients();
+        }
+        return new StandbySipClients();
+    }
+
+    private static MetricsRegistry metrics(
+            final RobustProxyRegistrarFactory registrarFactory) {
+        if (registrarFactory instanceof RobustProxyRegistrarFactoryImpl) {
+            return ((RobustProxyRegistrarFactoryImpl) registrarFactory)
+                .getMetrics();
+        }
+        return new MetricsRegistry();
+    }
+
+    /**
+     * Launches a SIP client that fails over to standby registrations.
+     * 
+     * @param sipClientTracker Keeps track of SIP clients.
+     * @param registrarFactory The object for maintaining a registration with a 
+     * SIP proxy.
+     * @param offerAnswerFactory Factory for creating offers and answers.
+     * @param relayWait Works out how long to wait for a direct connection
+     * before using a relay.
+     * @param standbys The registered clients to fail over to when the 
+     * tracker has none. This should be the same instance the proxy 
+     * registrar factory adds registered clients to.
+     * @param socketPool The pool of idle sockets to reuse for repeated
+     * connections to the same peer, or <code>null</code> to always create
+     * new sockets. Callers return sockets to the pool with 
+     * {@link #releaseSocket(URI, Socket)}.
+     * @param routeCache The cache of the paths recent connections to each
+     * peer took.
+     * @param gateway The registrar to register every logged in user with 
+     * when this launcher fronts many users, or <code>null</code> for a 
+     * single user.
+     * @param metrics The registry to record socket setup times in.
+     * @param admission The limiter for connection setups.
+     */
+    public SipClientLauncher(final SipClientTracker sipClientTracker,
+            final RobustProxyRegistrarFactory registrarFactory,
+            final OfferAnswerFactory offerAnswerFactory, 
+            final RelayWaitEstimator relayWait,
+            final StandbySipClients standbys,
+            final PeerSocketPool socketPool, final PeerRouteCache routeCache,
+            final MultiUserRegistrar gateway, final MetricsRegistry metrics,
+            final ConnectionAdmission admission) {
+        this.m_admission = admission;
+        this.m_gateway = gateway;
+        this.m_metrics = metrics;
+        this.m_standbys = standbys;
+        this.m_socketPool = socketPool;
+        this.m_routeCache = routeCache;
         this.m_sipClientTracker = sipClientTracker;
         this.m_registrarFactory = registrarFactory;
         this.m_offerAnswerFactory = offerAnswerFactory;
-        this.m_relayWaitTime = relayWaitTime;
+        this.m_relayWait = relayWait;
+        this.m_scheduler = 
+            registrarFactory instanceof RobustProxyRegistrarFactoryImpl ? 
+                ((RobustProxyRegistrarFactoryImpl) registrarFactory)
+                    .getScheduler() : BootstrapScheduler.shared();
+        final NetworkChangeMonitor networkMonitor = 
+            registrarFactory instanceof RobustProxyRegistrarFactoryImpl ? 
+                ((RobustProxyRegistrarFactoryImpl) registrarFactory)
+                    .getNetworkMonitor() : null;
+        if (networkMonitor != null) {
+            networkMonitor.addListener(new NetworkChangeListener() {
+                public void networkChanged(final Set<InetAddress> addresses) {
+                    forgetNetwork();
+                }
+            });
+        }
+    }
+
+    /**
+     * Drops pooled sockets and remembered routes after the local network
+     * changes, since both belong to the old network.
+     */
+    private void forgetNetwork() {
+        LOG.debug("Network changed -- forgetting sockets and routes");
+        if (this.m_socketPool != null) {
+            this.m_socketPool.clear();
+        }
+        this.m_routeCache.clear();
     }
     
-    public String login(final String user, final String password) {
+    public synchronized String login(final String user, 
+        final String password) {
         LOG.debug("Registering...");
         // Set up the URI used as the 'From' for SIP messages.
         final URI sipUri = SipUriFactory.createSipUri(user);
         register(sipUri);
+        if (this.m_sipUri == null) {
+            this.m_sipUri = sipUri;
+        }
         this.loggedIn = true;
+        this.m_connectionEvents.start();
         return sipUri.toASCIIString();
     }
 
@@ -84,26 +317,64 @@ public final class SipClientLauncher implements P2PClient {
      * @param userId The identifier of the user to register.
      */
     private void register(final URI sipUri) {
+        if (this.m_gateway != null) {
+            // Gateways register any number of users, all sharing the 
+            // gateway's pacing rather than a maintainer each.
+            this.m_gateway.add(sipUri);
+            return;
+        }
         if (loggedIn) {
             LOG.info("Already logged in -- not logging in again.");
             return;
         }
         // Register with the SIP network.
+        final RegistrationStateListener listener = 
+            new RegistrationStateListener();
         final ProxyRegistrar registrar = m_registrarFactory.getRegistrar(
-                sipUri, new NoOpRegistrationListener());
+                sipUri, listener);
 
         registrar.register();
+        this.m_registrar = registrar;
+        this.m_registrationListener = listener;
     }
 
-    private static final class NoOpRegistrationListener implements
+    /**
+     * Tells connection listeners when the user goes from having no 
+     * registrations to having one, and back, until the user logs out.
+     */
+    private final class RegistrationStateListener implements
             ProxyRegistrationListener {
 
+        private final Set<URI> m_registered = new HashSet<URI>();
+
+        private volatile boolean m_loggedOut;
+
+        /**
+         * Stops passing on events, since the registrations they come from
+         * are being abandoned.
+         */
+        private void loggedOut() {
+            this.m_loggedOut = true;
+        }
+
         public void reRegistered(URI client, URI proxy) {
             LOG.debug("Got re-registered");
         }
 
         public void registered(URI client, URI proxy) {
             LOG.debug("Got registered");
+            if (this.m_loggedOut) {
+                return;
+            }
+            final boolean first;
+            synchronized (this) {
+                first = this.m_registered.isEmpty();
+                this.m_registered.add(proxy);
+            }
+            if (first) {
+                m_connectionEvents.dispatch(client.toASCIIString(), false, 
+                    true);
+            }
         }
 
         public void registrationFailed(URI client, URI proxy) {
@@ -112,49 +383,513 @@ public final class SipClientLauncher implements P2PClient {
 
         public void unregistered(URI client, URI proxy) {
             LOG.debug("Got unregistered");
+            if (this.m_loggedOut) {
+                return;
+            }
+            final boolean last;
+            synchronized (this) {
+                last = this.m_registered.remove(proxy) && 
+                    this.m_registered.isEmpty();
+            }
+            if (last) {
+                m_connectionEvents.dispatch(client.toASCIIString(), false, 
+                    false);
+            }
         }
     }
 
-    public void offer(URI uri, byte[] offer,
-            OfferAnswerTransactionListener transactionListener,
-            KeyStorage keyStore) throws IOException {
-        LOG.error("Offer not supported");
-        throw new UnsupportedOperationException("Offer not supported");
+    /**
+     * Sends an offer to a peer over the registered SIP client without 
+     * setting up a socket. This returns as soon as the offer is sent, and 
+     * the listener hears the outcome from the SIP stack, so any number of 
+     * callers can have offers in flight on the one proxy connection. Once 
+     * {@link #MAX_OUTSTANDING_OFFERS} are awaiting answers, further offers 
+     * fail straight away rather than queueing. An offer that gets no answer
+     * within {@link #OFFER_TIMEOUT_MILLIS} fails with a <code>null</code>
+     * message, and any answer after that is dropped.
+     * 
+     * @param uri The URI of the peer.
+     * @param offer The offer.
+     * @param transactionListener The listener for the answer.
+     * @param keyStore The keys for the exchange.
+     * @throws IOException If we have no registered client, are too busy, 
+     * or could not send the offer.
+     */
+    public void offer(final URI uri, final byte[] offer,
+            final OfferAnswerTransactionListener transactionListener,
+            final KeyStorage keyStore) throws IOException {
+        offer(this.m_sipUri, uri, offer, transactionListener, keyStore);
+    }
+
+    /**
+     * Sends an offer to a peer on behalf of one of the users logged in 
+     * through this launcher, as {@link #offer(URI, byte[], 
+     * OfferAnswerTransactionListener, KeyStorage)} does for the first.
+     * Gateways use this to offer over the client registered for the user 
+     * the connection is for.
+     * 
+     * @param user The URI of the user to offer as.
+     * @param uri The URI of the peer.
+     * @param offer The offer.
+     * @param transactionListener The listener for the answer.
+     * @param keyStore The keys for the exchange.
+     * @throws IOException If the user isn't logged in here or has no 
+     * registered client, if we are too busy, or if we could not send the 
+     * offer.
+     */
+    public void offer(final URI user, final URI uri, final byte[] offer,
+            final OfferAnswerTransactionListener transactionListener,
+            final KeyStorage keyStore) throws IOException {
+        if (!this.m_offers.tryAcquire()) {
+            LOG.info("Too many outstanding offers -- not offering to {}", 
+                uri);
+            this.m_metrics.counter("offer.rejected").increment();
+            throw new IOException("Too many offers in progress -- busy");
+        }
+        final OfferListener listener = new OfferListener(transactionListener);
+        try {
+            sipClient(user).offer(uri, offer, listener, keyStore);
+        } catch (final IOException e) {
+            listener.done("offer.failures");
+            throw e;
+        } catch (final RuntimeException e) {
+            listener.done("offer.failures");
+            throw e;
+        }
+        this.m_metrics.counter("offer.sent").increment();
+        listener.startTimeout();
+    }
+
+    /**
+     * Frees an offer's permit and records how it went, whichever way the 
+     * transaction ends, before passing the outcome on.
+     */
+    private final class OfferListener implements 
+            OfferAnswerTransactionListener {
+
+        private final OfferAnswerTransactionListener m_delegate;
+
+        private final long m_start = System.nanoTime();
+
+        private final AtomicBoolean m_done = new AtomicBoolean();
+
+        private volatile ScheduledFuture<?> m_timeout;
+
+        private OfferListener(final OfferAnswerTransactionListener delegate) {
+            this.m_delegate = delegate;
+        }
+
+        public void onTransactionSucceeded(final OfferAnswerMessage message) {
+            if (!done("offer.successes")) {
+                return;
+            }
+            m_metrics.timer("offer.answer").updateSince(this.m_start);
+            this.m_delegate.onTransactionSucceeded(message);
+        }
+
+        public void onTransactionFailed(final OfferAnswerMessage message) {
+            if (done("offer.failures")) {
+                this.m_delegate.onTransactionFailed(message);
+            }
+        }
+
+        /**
+         * Fails the offer if it is still unanswered after 
+         * {@link #OFFER_TIMEOUT_MILLIS}, telling the listener on a worker 
+         * so the timer thread is never held up.
+         */
+        private void startTimeout() {
+            final Runnable fail = new Runnable() {
+                public void run() {
+                    m_delegate.onTransactionFailed(null);
+                }
+            };
+            try {
+                this.m_timeout = m_scheduler.getTimers().schedule(
+                    new Runnable() {
+                        public void run() {
+                            if (!done("offer.timeouts")) {
+                                return;
+                            }
+                            LOG.debug("Offer timed out");
+                            try {
+                                m_scheduler.getWorkers().execute(fail);
+                            } catch (final RejectedExecutionException e) {
+                                fail.run();
+                            }
+                        }
+                    }, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (final RejectedExecutionException e) {
+                LOG.debug("Could not schedule offer timeout", e);
+            }
+            if (this.m_done.get()) {
+                // Answered before the timeout was set up.
+                cancelTimeout();
+            }
+        }
+
+        private void cancelTimeout() {
+            final ScheduledFuture<?> timeout = this.m_timeout;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+        }
+
+        /**
+         * Frees the permit and stops the timeout the first time the 
+         * transaction ends.
+         * 
+         * @param metric The counter to count the outcome in.
+         * @return Whether this was the first time.
+         */
+        private boolean done(final String metric) {
+            if (!this.m_done.compareAndSet(false, true)) {
+                return false;
+            }
+            m_offers.release();
+            cancelTimeout();
+            m_metrics.counter(metric).increment();
+            return true;
+        }
     }
     
     public Socket newSocket(final URI sipUri) throws IOException,
             NoAnswerException {
+        return newSocket(this.m_sipUri, sipUri);
+    }
+
+    /**
+     * Creates a reliable socket to a peer on behalf of one of the users 
+     * logged in through this launcher, as {@link #newSocket(URI)} does for 
+     * the first. Only the first user's sockets are pooled, since the pool 
+     * keeps sockets by peer alone.
+     * 
+     * @param user The URI of the user to connect as.
+     * @param sipUri The URI of the peer.
+     * @return The new socket.
+     * @throws IOException If the user isn't logged in here or has no 
+     * registered client, or if we could not create the socket.
+     * @throws NoAnswerException If the peer did not answer.
+     */
+    public Socket newSocket(final URI user, final URI sipUri) 
+        throws IOException, NoAnswerException {
         LOG.trace("Creating SIP socket for URI: {}", sipUri);
-        final SipClient client = this.m_sipClientTracker.getSipClient();
-        if (client == null) {
-            LOG.warn("No available SIP clients!!");
-            throw new IOException("No available connections to SIP proxies!!");
+        final boolean pooled = pools(user);
+        if (pooled) {
+            final Socket idle = borrow(sipUri);
+            if (idle != null) {
+                return idle;
+            }
+        }
+        final String key = "reliable:" + user + ">" + sipUri;
+        // Only a pool lets one setup to a peer serve the callers waiting on
+        // it, so without one, setups to the same peer run side by side.
+        final boolean holdsPeer = admit(key, sipUri, pooled);
+        try {
+            // We may have waited for another setup to this peer, whose 
+            // socket may have been released to the pool since.
+            final Socket released = pooled ? borrow(sipUri) : null;
+            if (released != null) {
+                return released;
+            }
+            return connect(user, sipUri, RELIABLE_STREAM, "socket.reliable");
+        } finally {
+            this.m_admission.release(key, holdsPeer);
         }
+    }
+
+    /**
+     * Returns whether sockets for a user go through the pool.
+     */
+    private boolean pools(final URI user) {
+        return this.m_socketPool != null && user != null && 
+            user.equals(this.m_sipUri);
+    }
 
-        final IceMediaStreamDesc stream = IceMediaStreamDesc.newReliable();
-        final TcpUdpSocket<Socket> tcpUdpSocket = new DefaultTcpUdpSocket(client,
-                this.m_offerAnswerFactory, this.m_relayWaitTime, stream);
+    /**
+     * Takes an idle socket to a peer from the pool.
+     * 
+     * @param sipUri The URI of the peer.
+     * @return The socket, or <code>null</code> if there is none.
+     */
+    private Socket borrow(final URI sipUri) {
+        final Socket pooled = this.m_socketPool.borrow(sipUri);
+        if (pooled != null) {
+            this.m_metrics.counter("socket.reliable.pooled").increment();
+            Timelines.begin(TimelineRecorder.Kind.SOCKET, "pool", null, 
+                sipUri).end("pooled");
+        }
+        return pooled;
+    }
 
-        return tcpUdpSocket.newSocket(sipUri);
+    /**
+     * Waits for our turn to set up a connection.
+     * 
+     * @param key The peer and kind of connection.
+     * @param sipUri The URI of the peer.
+     * @param coalesce Whether to wait for a setup already in progress to 
+     * the same peer.
+     * @return Whether our setup holds the peer, to pass back on release.
+     * @throws IOException If we are too busy.
+     */
+    private boolean admit(final String key, final URI sipUri,
+        final boolean coalesce) throws IOException {
+        final TimelineRecorder.Span span = Timelines.begin(
+            TimelineRecorder.Kind.SOCKET, "admission", null, sipUri);
+        final boolean holdsPeer;
+        try {
+            holdsPeer = this.m_admission.acquire(key, coalesce);
+        } catch (final IOException e) {
+            span.end("busy");
+            this.m_metrics.counter("socket.rejected").increment();
+            throw e;
+        }
+        span.end("admitted");
+        return holdsPeer;
     }
 
     public Socket newUnreliableSocket(final URI sipUri) throws IOException,
             NoAnswerException {
+        return newUnreliableSocket(this.m_sipUri, sipUri);
+    }
+
+    /**
+     * Creates an unreliable socket to a peer on behalf of one of the users
+     * logged in through this launcher, as {@link #newUnreliableSocket(URI)}
+     * does for the first.
+     * 
+     * @param user The URI of the user to connect as.
+     * @param sipUri The URI of the peer.
+     * @return The new socket.
+     * @throws IOException If the user isn't logged in here or has no 
+     * registered client, or if we could not create the socket.
+     * @throws NoAnswerException If the peer did not answer.
+     */
+    public Socket newUnreliableSocket(final URI user, final URI sipUri) 
+        throws IOException, NoAnswerException {
         LOG.trace("Creating SIP socket for URI: {}", sipUri);
+        final String key = "unreliable:" + user + ">" + sipUri;
+        // Unreliable sockets aren't pooled, so nothing is gained by waiting
+        // for another setup to the same peer.
+        final boolean holdsPeer = admit(key, sipUri, false);
+        try {
+            return connect(user, sipUri, UNRELIABLE_STREAM, 
+                "socket.unreliable");
+        } finally {
+            this.m_admission.release(key, holdsPeer);
+        }
+    }
+
+    /**
+     * Runs the offer/answer exchange for a new socket to a peer. Peers whose
+     * last connection needed a relay only get the shortest relay wait, and
+     * the route this connection takes is remembered for next time.
+     * <p>
+     * Setup times are recorded by the route the socket took. The offer, ICE
+     * checks and relay allocation all happen inside the socket factory, so
+     * they can't be timed separately from here.
+     * 
+     * @param user The URI of the user to connect as.
+     * @param sipUri The URI of the peer.
+     * @param desc The description of the media stream to create.
+     * @param metric The prefix of the metrics to record.
+     * @return The new socket.
+     * @throws IOException If we could not create the socket.
+     * @throws NoAnswerException If the peer did not answer.
+     */
+    private Socket connect(final URI user, final URI sipUri, 
+            final IceMediaStreamDesc desc, final String metric) 
+            throws IOException, NoAnswerException {
+        final SipClient client = sipClient(user);
+        final boolean relayed = 
+            this.m_routeCache.getRoute(sipUri) == PeerRouteCache.Route.RELAY;
+        final int relayWaitTime = relayed ? 
+            this.m_relayWait.getMinRelayWaitTime() :
+            this.m_relayWait.getRelayWaitTime();
+        final TcpUdpSocket<Socket> tcpUdpSocket = 
+            this.m_socketFactory.newTcpUdpSocket(client, 
+                this.m_offerAnswerFactory, relayWaitTime, desc);
+
+        final long start = System.currentTimeMillis();
+        final TimelineRecorder.Span span = Timelines.begin(
+            TimelineRecorder.Kind.SOCKET, metric, null, sipUri);
+        final Socket sock;
+        try {
+            sock = tcpUdpSocket.newSocket(sipUri);
+        } catch (final IOException e) {
+            span.end("failed");
+            this.m_routeCache.forget(sipUri);
+            this.m_metrics.counter(metric + ".failures").increment();
+            throw e;
+        } catch (final NoAnswerException e) {
+            span.end("noAnswer");
+            this.m_routeCache.forget(sipUri);
+            this.m_metrics.counter(metric + ".failures").increment();
+            throw e;
+        }
+        final long elapsed = System.currentTimeMillis() - start;
+
+        // Anything that took longer than the relay wait went through the
+        // relay. Without a wait we learn nothing about the route, since the
+        // relay may simply have answered first.
+        final boolean waited = relayWaitTime > 0;
+        final PeerRouteCache.Route route = 
+            !waited || elapsed >= relayWaitTime * 1000L ? 
+                PeerRouteCache.Route.RELAY : PeerRouteCache.Route.DIRECT;
+        LOG.debug("Connected to {} via {} in " + elapsed + "ms", sipUri, 
+            route);
+        span.end(route.name().toLowerCase(Locale.US));
+        this.m_metrics.timer(metric + "." + 
+            route.name().toLowerCase(Locale.US)).update(elapsed, 
+                TimeUnit.MILLISECONDS);
+        final Socket tracked = track(sipUri, sock);
+        if (!waited) {
+            // Don't refresh a cached relay route we didn't test, so it 
+            // expires and the peer gets another direct attempt.
+            return tracked;
+        }
+        this.m_routeCache.record(sipUri, route);
+        if (route == PeerRouteCache.Route.DIRECT) {
+            this.m_relayWait.recordDirect(elapsed);
+        } else if (!relayed) {
+            // The short wait for a peer we expected to need a relay says 
+            // nothing about how long direct connections take.
+            this.m_relayWait.recordRelay(relayWaitTime * 1000L);
+        }
+        return tracked;
+    }
+
+    /**
+     * Reports a peer connected, and wraps a new socket to it so the peer is
+     * reported disconnected once it and every other socket to the peer are
+     * closed. Events are queued holding the count's lock so they reach 
+     * listeners in the order the counts changed.
+     * 
+     * @param sipUri The URI of the peer.
+     * @param sock The new socket.
+     * @return The socket to hand to the caller.
+     */
+    private Socket track(final URI sipUri, final Socket sock) {
+        synchronized (this.m_openSockets) {
+            final Integer open = this.m_openSockets.get(sipUri);
+            this.m_openSockets.put(sipUri, 
+                Integer.valueOf(open == null ? 1 : open.intValue() + 1));
+            this.m_connectionEvents.dispatch(sipUri.toASCIIString(), false, 
+                true);
+        }
+        return new NotifyingSocket(sock, new Runnable() {
+            public void run() {
+                closed(sipUri);
+            }
+        });
+    }
+
+    private void closed(final URI sipUri) {
+        synchronized (this.m_openSockets) {
+            final Integer open = this.m_openSockets.get(sipUri);
+            if (open == null) {
+                return;
+            }
+            if (open.intValue() > 1) {
+                this.m_openSockets.put(sipUri, 
+                    Integer.valueOf(open.intValue() - 1));
+                return;
+            }
+            this.m_openSockets.remove(sipUri);
+            this.m_connectionEvents.dispatch(sipUri.toASCIIString(), false, 
+                false);
+        }
+    }
+
+    /**
+     * Hands a socket from {@link #newSocket(URI)} back for reuse by later
+     * calls for the same peer. If sockets aren't pooled, or the pool doesn't
+     * want this one, the socket is closed.
+     * 
+     * @param sipUri The URI the socket was created for.
+     * @param socket The socket the caller is done with.
+     */
+    public void releaseSocket(final URI sipUri, final Socket socket) {
+        releaseSocket(this.m_sipUri, sipUri, socket);
+    }
+
+    /**
+     * Hands a socket from {@link #newSocket(URI, URI)} back. Sockets for 
+     * the first user to log in go back to the pool as with 
+     * {@link #releaseSocket(URI, Socket)}, and any other user's socket is
+     * closed.
+     * 
+     * @param user The URI of the user the socket was created for.
+     * @param sipUri The URI of the peer the socket was created for.
+     * @param socket The socket the caller is done with.
+     */
+    public void releaseSocket(final URI user, final URI sipUri, 
+            final Socket socket) {
+        if (pools(user)) {
+            this.m_socketPool.release(sipUri, socket);
+            return;
+        }
+        try {
+            socket.close();
+        } catch (final IOException e) {
+            LOG.debug("Error closing socket", e);
+        }
+    }
+
+    /**
+     * Returns a registered SIP client for a user. For a single user this is
+     * the tracked client, failing over to a standby registration if the 
+     * tracker has lost its client. Gateways register many users, and the 
+     * tracker holds whichever registered last, so they use a client 
+     * registered for the given user.
+     * 
+     * @param user The user to get a client for.
+     * @return A registered SIP client.
+     * @throws IOException If we don't serve the user or no client is 
+     * registered for them.
+     */
+    private SipClient sipClient(final URI user) throws IOException {
+        final URI primary = this.m_sipUri;
+        if (user == null || primary == null) {
+            // The tracker has no way to drop a client, so it may still hold
+            // the one from before we logged out.
+            throw new IOException("Not logged in");
+        }
+        if (this.m_gateway != null) {
+            if (!this.m_gateway.isRegistering(user)) {
+                throw new IOException("Not logged in as " + user);
+            }
+            final SipClient client = this.m_standbys.get(user);
+            if (client == null) {
+                LOG.warn("No SIP client registered for {}", user);
+                throw new IOException("No registered SIP client for " + user);
+            }
+            return client;
+        }
+        if (!user.equals(primary)) {
+            throw new IOException("Not logged in as " + user);
+        }
         final SipClient client = this.m_sipClientTracker.getSipClient();
-        if (client == null) {
+        if (client != null && client != this.m_endedClient) {
+            return client;
+        }
+        final SipClient standby = 
+            this.m_standbys.promote(this.m_sipClientTracker, user);
+        if (standby == null) {
             LOG.warn("No available SIP clients!!");
             throw new IOException("No available connections to SIP proxies!!");
         }
+        return standby;
+    }
 
-        final IceMediaStreamDesc desc =
-            new IceMediaStreamDesc(true, true, "application", "udp", 1, true, 
-                    true);
-            //IceMediaStreamDesc.newUnreliableUdpStream();
-        final TcpUdpSocket<Socket> tcpUdpSocket = new DefaultTcpUdpSocket(client,
-                this.m_offerAnswerFactory, this.m_relayWaitTime, desc);
-
-        return tcpUdpSocket.newSocket(sipUri);
+    /**
+     * Replaces the factory for offer/answer exchanges. This is for tests and
+     * benchmarks that can't reach a live peer.
+     * 
+     * @param socketFactory The new factory.
+     */
+    public void setSocketFactory(final TcpUdpSocketFactory socketFactory) {
+        this.m_socketFactory = socketFactory;
     }
 
     public Socket newRawSocket(final URI uri) throws IOException, 
@@ -167,14 +902,121 @@ public final class SipClientLauncher implements P2PClient {
         return newUnreliableSocket(uri);
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This stops maintaining registrations, so lost registrations are no 
+     * longer replaced, drops pooled sockets and remembered routes, and tells
+     * connection listeners the user is disconnected. Every registered 
+     * client, tracked or standby, is unregistered in parallel through the
+     * {@link SipClientClosers closer} in use, and once they all answer or
+     * {@link #UNREGISTER_TIMEOUT_MILLIS} passes, each client is closed. The
+     * client tracker has no way to drop a client, so we stop using the 
+     * tracked client instead. Finally the connection event thread exits
+     * once it has delivered the disconnect.
+     */
     @Override
-    public void logout() {
-        // TODO Does nothing for now -- we need to implement this!!
+    public synchronized void logout() {
+        LOG.debug("Logging out...");
+        final URI sipUri = this.m_sipUri;
+        this.m_sipUri = null;
+        final ProxyRegistrar registrar = this.m_registrar;
+        this.m_registrar = null;
+        if (this.m_registrationListener != null) {
+            this.m_registrationListener.loggedOut();
+            this.m_registrationListener = null;
+        }
+        if (registrar instanceof StoppableProxyRegistrar) {
+            ((StoppableProxyRegistrar) registrar).stop();
+        }
+        if (this.m_gateway != null) {
+            this.m_gateway.removeAll();
+        }
+        if (this.m_socketPool != null) {
+            this.m_socketPool.clear();
+        }
+        final Map<SipClient, Boolean> clients = 
+            new IdentityHashMap<SipClient, Boolean>();
+        for (final SipClient client : this.m_standbys.clear()) {
+            clients.put(client, Boolean.TRUE);
+        }
+        final SipClient tracked = this.m_sipClientTracker.getSipClient();
+        if (tracked != null && tracked != this.m_endedClient) {
+            clients.put(tracked, Boolean.TRUE);
+            this.m_endedClient = tracked;
+        }
+        end(clients.keySet());
+        this.m_routeCache.clear();
+        this.loggedIn = false;
+        if (sipUri != null) {
+            this.m_connectionEvents.dispatch(sipUri.toASCIIString(), false, 
+                false);
+        }
+        this.m_connectionEvents.stop();
     }
 
+    /**
+     * Unregisters clients in parallel, waits a bounded time for the 
+     * answers, then closes every client.
+     * 
+     * @param clients The clients to end.
+     */
+    private void end(final Set<SipClient> clients) {
+        if (clients.isEmpty()) {
+            return;
+        }
+        final SipClientCloser closer = SipClientClosers.getCloser();
+        final CountDownLatch unregistered = 
+            new CountDownLatch(clients.size());
+        for (final SipClient client : clients) {
+            final Runnable unregister = new Runnable() {
+                public void run() {
+                    try {
+                        closer.unregister(client);
+                    } catch (final IOException e) {
+                        LOG.debug("Could not unregister SIP client", e);
+                    } catch (final RuntimeException e) {
+                        LOG.warn("Error unregistering SIP client", e);
+                    } finally {
+                        unregistered.countDown();
+                    }
+                }
+            };
+            try {
+                this.m_scheduler.getWorkers().execute(unregister);
+            } catch (final RejectedExecutionException e) {
+                unregister.run();
+            }
+        }
+        try {
+            if (!unregistered.await(UNREGISTER_TIMEOUT_MILLIS, 
+                TimeUnit.MILLISECONDS)) {
+                LOG.info("Closing SIP clients before every unregister " +
+                    "was answered");
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (final SipClient client : clients) {
+            try {
+                closer.close(client);
+            } catch (final RuntimeException e) {
+                LOG.warn("Error closing SIP client", e);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Listeners hear when the logged in user gains its first registration
+     * and loses its last one, and when an outgoing socket to a peer is
+     * created. Events are delivered on a dedicated thread, and bursts are
+     * coalesced to the latest state.
+     */
     @Override
-    public void addConnectionListener(P2PConnectionListener listener) {
-        // TODO Not supported for now.
+    public void addConnectionListener(final P2PConnectionListener listener) {
+        this.m_connectionEvents.addListener(listener);
     }
 
 }
@@ -0,0 +1,416 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.lastbamboo.common.sip.stack.util.UriUtils;
+import org.littleshoot.util.CandidateProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Provides SIP URIs for the proxies an address provider knows about. The
+ * URIs are cached in an immutable snapshot for a configurable time to live.
+ * Once the snapshot expires, callers keep getting it while a background 
+ * refresh runs, so only the very first call ever waits on the address 
+ * provider. Listeners hear about a refresh only when the set of proxies
+ * actually changes. A refresh that fails or finds no proxies keeps the last
+ * proxies we found, since an empty list leaves nothing to register with.
+ * Proxies whose circuit is open are left out of the candidates until they 
+ * are due for a probe.
+ */
+public final class SipUriCandidateProvider implements CandidateProvider<URI> {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * The default transport to use to connect to this host.
+     */
+    private static final String DEFAULT_TRANSPORT = "tcp";
+
+    /**
+     * The default time to live for a snapshot.
+     */
+    public static final long DEFAULT_TTL_MILLIS = 60 * 1000;
+
+    private final UriUtils m_uriUtils;
+
+    private final CandidateProvider<InetSocketAddress> m_addressProvider;
+
+    private final ProxyLatencyTracker m_latencyTracker;
+
+    private final ProxyCircuitBreaker m_circuitBreaker;
+
+    private final Executor m_refreshExecutor;
+
+    private final long m_ttlMillis;
+
+    /**
+     * Guarded by this provider's lock.
+     */
+    private final List<ProxyCandidateListener> m_listeners =
+        new ArrayList<ProxyCandidateListener>();
+
+    private final AtomicBoolean m_refreshing = new AtomicBoolean();
+
+    private volatile Snapshot m_snapshot;
+
+    /**
+     * Creates a new candidate provider.
+     * 
+     * @param uriUtils Utilities for creating SIP URIs.
+     * @param addressProvider The provider of proxy addresses.
+     * @param latencyTracker The tracker used to rank the proxies.
+     * @param refreshExecutor The executor to refresh expired snapshots on.
+     * @param ttlMillis How long a snapshot stays fresh.
+     */
+    public SipUriCandidateProvider(final UriUtils uriUtils,
+            final CandidateProvider<InetSocketAddress> addressProvider,
+            final ProxyLatencyTracker latencyTracker,
+            final Executor refreshExecutor, final long ttlMillis) {
+        this(uriUtils, addressProvider, latencyTracker, null, 
+            refreshExecutor, ttlMillis);
+    }
+
+    /**
+     * Creates a new candidate provider that skips proxies whose circuit is
+     * open.
+     * 
+     * @param uriUtils Utilities for creating SIP URIs.
+     * @param addressProvider The provider of proxy addresses.
+     * @param latencyTracker The tracker used to rank the proxies.
+     * @param circuitBreaker The circuit breaker to filter the proxies with,
+     * or <code>null</code> to offer every proxy.
+     * @param refreshExecutor The executor to refresh expired snapshots on.
+     * @param ttlMillis How long a snapshot stays fresh.
+     */
+    public SipUriCandidateProvider(final UriUtils uriUtils,
+            final CandidateProvider<InetSocketAddress> addressProvider,
+            final ProxyLatencyTracker latencyTracker,
+            final ProxyCircuitBreaker circuitBreaker,
+            final Executor refreshExecutor, final long ttlMillis) {
+        this.m_circuitBreaker = circuitBreaker;
+        this.m_uriUtils = uriUtils;
+        this.m_addressProvider = addressProvider;
+        this.m_latencyTracker = latencyTracker;
+        this.m_refreshExecutor = refreshExecutor;
+        this.m_ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Adds a listener for changes to the set of proxies. Listeners are 
+     * called on whichever thread ran the refresh, without this provider's
+     * lock held.
+     * 
+     * @param listener The listener to add.
+     */
+    public synchronized void addListener(
+            final ProxyCandidateListener listener) {
+        this.m_listeners.add(listener);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public URI getCandidate() {
+        final List<URI> candidates = getCandidates();
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        return candidates.get(0);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The returned list is ranked by the latency tracker and is unmodifiable.
+     */
+    public List<URI> getCandidates() {
+        Snapshot snapshot = this.m_snapshot;
+        if (snapshot == null) {
+            snapshot = refresh();
+        } else if (snapshot.isExpired()) {
+            refreshInBackground();
+        }
+        final List<URI> ranked = snapshot.ranked();
+        if (this.m_circuitBreaker == null || 
+            !this.m_circuitBreaker.isAnyTripped()) {
+            return ranked;
+        }
+        final List<URI> available = new ArrayList<URI>(ranked.size());
+        for (final URI uri : ranked) {
+            if (this.m_circuitBreaker.isAvailable(uri)) {
+                available.add(uri);
+            }
+        }
+        if (available.isEmpty()) {
+            m_log.debug("Every SIP proxy circuit is open");
+        }
+        return Collections.unmodifiableList(available);
+    }
+
+    /**
+     * Offers the given proxies as candidates until the first refresh 
+     * completes, such as proxies remembered from an earlier run. The first
+     * call for candidates then refreshes in the background instead of 
+     * waiting on the address provider. This does nothing once we have
+     * candidates.
+     * 
+     * @param proxies The proxies to offer, best first.
+     */
+    public synchronized void seed(final Collection<URI> proxies) {
+        if (this.m_snapshot != null || proxies.isEmpty()) {
+            return;
+        }
+        m_log.debug("Seeding SIP servers with {}", proxies);
+        this.m_snapshot = new Snapshot(
+            Collections.<InetSocketAddress>emptyList(),
+            Collections.<InetSocketAddress, URI>emptyMap(),
+            Collections.unmodifiableList(new ArrayList<URI>(proxies)), 0L);
+    }
+
+    /**
+     * Forces the next call for candidates to refresh in the background.
+     */
+    public void invalidate() {
+        final Snapshot snapshot = this.m_snapshot;
+        if (snapshot != null) {
+            this.m_snapshot = snapshot.expire();
+        }
+    }
+
+    private void refreshInBackground() {
+        if (!this.m_refreshing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            this.m_refreshExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        refresh();
+                    } catch (final RuntimeException e) {
+                        m_log.warn("Could not refresh SIP proxies", e);
+                    } finally {
+                        m_refreshing.set(false);
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            m_log.debug("Could not schedule refresh", e);
+            this.m_refreshing.set(false);
+        }
+    }
+
+    /**
+     * Fetches the proxies, then tells listeners if they changed.
+     */
+    private Snapshot refresh() {
+        final TimelineRecorder.Span span = Timelines.begin(
+            TimelineRecorder.Kind.CANDIDATES, "refresh", null, null);
+        String outcome = "failed";
+        final Change change;
+        final Snapshot snapshot;
+        synchronized (this) {
+            try {
+                snapshot = fetch();
+                outcome = snapshot.m_candidates.size() + " proxies";
+            } finally {
+                span.end(outcome);
+            }
+            // A renewed snapshot has the same proxies, so this finds no 
+            // change.
+            final Snapshot old = this.m_snapshot;
+            this.m_snapshot = snapshot;
+            change = change(old, snapshot);
+        }
+        if (change != null) {
+            m_log.info("SIP servers changed to {}", change.m_current);
+            for (final ProxyCandidateListener listener : change.m_listeners) {
+                listener.candidatesChanged(change.m_current, change.m_added, 
+                    change.m_removed);
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Returns the change from one snapshot to the next, with a copy of the
+     * listeners to tell about it, or <code>null</code> if the snapshots 
+     * have the same proxies. Called holding this provider's lock.
+     */
+    private Change change(final Snapshot old, final Snapshot snapshot) {
+        final List<URI> previous = old == null ? 
+            Collections.<URI>emptyList() : old.m_candidates;
+        final Set<URI> added = new LinkedHashSet<URI>(snapshot.m_candidates);
+        added.removeAll(previous);
+        final Set<URI> removed = new LinkedHashSet<URI>(previous);
+        removed.removeAll(snapshot.m_candidates);
+        if (added.isEmpty() && removed.isEmpty()) {
+            return null;
+        }
+        return new Change(snapshot.m_candidates, added, removed,
+            new ArrayList<ProxyCandidateListener>(this.m_listeners));
+    }
+
+    /**
+     * Fetches the proxies. A fetch that fails or finds nothing renews the 
+     * last proxies we found, if we found any. Called holding this 
+     * provider's lock.
+     */
+    private Snapshot fetch() {
+        m_log.debug("Accessing SIP servers...");
+        final Snapshot old = this.m_snapshot;
+        final Collection<InetSocketAddress> addresses;
+        try {
+            addresses = this.m_addressProvider.getCandidates();
+        } catch (final RuntimeException e) {
+            if (old == null || old.m_candidates.isEmpty()) {
+                throw e;
+            }
+            m_log.warn("Could not access SIP servers, keeping " + 
+                old.m_candidates, e);
+            return old.renew();
+        }
+        if (addresses == null || addresses.isEmpty()) {
+            if (old != null && !old.m_candidates.isEmpty()) {
+                m_log.warn("Found no SIP servers, keeping {}", 
+                    old.m_candidates);
+                return old.renew();
+            }
+            return new Snapshot(Collections.<InetSocketAddress>emptyList(),
+                Collections.<InetSocketAddress, URI>emptyMap(),
+                Collections.<URI>emptyList(), System.currentTimeMillis());
+        }
+        if (old != null && old.m_addresses.equals(
+            new ArrayList<InetSocketAddress>(addresses))) {
+            return old.renew();
+        }
+
+        final Map<InetSocketAddress, URI> uris = 
+            new HashMap<InetSocketAddress, URI>();
+        final List<URI> candidates = new ArrayList<URI>(addresses.size());
+        for (final InetSocketAddress isa : addresses) {
+            URI uri = old == null ? null : old.m_uris.get(isa);
+            if (uri == null) {
+                // The URI we are given is the public address (and SIP port)
+                // of the proxy.
+                final String host = isa.getAddress().getHostAddress();
+                uri = this.m_uriUtils.getSipUri(host, isa.getPort(),
+                    DEFAULT_TRANSPORT);
+            }
+            uris.put(isa, uri);
+            candidates.add(uri);
+        }
+        return new Snapshot(new ArrayList<InetSocketAddress>(addresses), 
+            uris, Collections.unmodifiableList(candidates), 
+            System.currentTimeMillis());
+    }
+
+    /**
+     * A change to the set of proxies, along with the listeners to tell 
+     * about it as they were when the change happened.
+     */
+    private static final class Change {
+
+        private final List<URI> m_current;
+
+        private final Set<URI> m_added;
+
+        private final Set<URI> m_removed;
+
+        private final List<ProxyCandidateListener> m_listeners;
+
+        private Change(final List<URI> current, final Set<URI> added,
+                final Set<URI> removed, 
+                final List<ProxyCandidateListener> listeners) {
+            this.m_current = current;
+            this.m_added = added;
+            this.m_removed = removed;
+            this.m_listeners = listeners;
+        }
+    }
+
+    /**
+     * An immutable view of the proxies at a point in time, along with the 
+     * most recent ranking of them.
+     */
+    private final class Snapshot {
+
+        private final List<InetSocketAddress> m_addresses;
+
+        private final Map<InetSocketAddress, URI> m_uris;
+
+        private final List<URI> m_candidates;
+
+        private final long m_fetched;
+
+        /**
+         * The ranked candidates and the tracker version they were ranked at.
+         * These are replaced together.
+         */
+        private volatile Ranking m_ranking;
+
+        private Snapshot(final List<InetSocketAddress> addresses,
+                final Map<InetSocketAddress, URI> uris,
+                final List<URI> candidates, final long fetched) {
+            this.m_addresses = addresses;
+            this.m_uris = uris;
+            this.m_candidates = candidates;
+            this.m_fetched = fetched;
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() - this.m_fetched > m_ttlMillis;
+        }
+
+        private Snapshot renew() {
+            final Snapshot renewed = new Snapshot(this.m_addresses, 
+                this.m_uris, this.m_candidates, System.currentTimeMillis());
+            renewed.m_ranking = this.m_ranking;
+            return renewed;
+        }
+
+        private Snapshot expire() {
+            final Snapshot expired = new Snapshot(this.m_addresses, 
+                this.m_uris, this.m_candidates, 0L);
+            expired.m_ranking = this.m_ranking;
+            return expired;
+        }
+
+        private List<URI> ranked() {
+            final long version = m_latencyTracker.getVersion();
+            final Ranking ranking = this.m_ranking;
+            if (ranking != null && ranking.m_version == version) {
+                return ranking.m_ranked;
+            }
+            final Ranking updated = new Ranking(version, 
+                Collections.unmodifiableList(
+                    m_latencyTracker.rank(this.m_candidates)));
+            this.m_ranking = updated;
+            return updated.m_ranked;
+        }
+    }
+
+    private static final class Ranking {
+
+        private final long m_version;
+
+        private final List<URI> m_ranked;
+
+        private Ranking(final long version, final List<URI> ranked) {
+            this.m_version = version;
+            this.m_ranked = ranked;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.lastbamboo.common.sip.client.SipClient;
+import org.lastbamboo.common.sip.client.SipClientTracker;
+import org.lastbamboo.common.sip.client.util.ProxyRegistrationListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps track of every SIP client that is currently registered with a proxy,
+ * so that when the client in the {@link SipClientTracker} goes away another
+ * registered client can take its place without waiting for a new connect and
+ * REGISTER. Clients are kept per user as well as per proxy, since a gateway
+ * registers many users with the same proxies and each must keep using its
+ * own client.
+ */
+public final class StandbySipClients {
+
+    private final Logger m_log = LoggerFactory.getLogger(getClass());
+
+    /**
+     * Registered clients and the listeners for their registrations, keyed by
+     * user and then by proxy, in registration order.
+     */
+    private final Map<URI, Map<URI, Entry>> m_clients = 
+        new LinkedHashMap<URI, Map<URI, Entry>>();
+
+    /**
+     * Adds a newly registered client.
+     *
+     * @param user The URI of the user the client is registered for.
+     * @param proxy The proxy the client is registered with.
+     * @param client The registered client.
+     * @param listener The listener for the client's registration events.
+     * This should be the listener returned from {@link #track}.
+     */
+    public synchronized void add(final URI user, final URI proxy, 
+            final SipClient client, final ProxyRegistrationListener listener) {
+        Map<URI, Entry> proxies = this.m_clients.get(user);
+        if (proxies == null) {
+            proxies = new LinkedHashMap<URI, Entry>();
+            this.m_clients.put(user, proxies);
+        }
+        proxies.put(proxy, new Entry(client, listener));
+    }
+
+    /**
+     * Removes the client registered for a user with a proxy.
+     *
+     * @param user The URI of the user the client was registered for.
+     * @param proxy The proxy the client was registered with.
+     */
+    public synchronized void remove(final URI user, final URI proxy) {
+        final Map<URI, Entry> proxies = this.m_clients.get(user);
+        if (proxies == null) {
+            return;
+        }
+        proxies.remove(proxy);
+        if (proxies.isEmpty()) {
+            this.m_clients.remove(user);
+        }
+    }
+
+    /**
+     * Removes every client registered for a user.
+     *
+     * @param user The URI of the user.
+     */
+    public synchronized void removeAll(final URI user) {
+        this.m_clients.remove(user);
+    }
+
+    /**
+     * Returns the number of registered clients.
+     *
+     * @return The number of registered clients.
+     */
+    public synchronized int size() {
+        int size = 0;
+        for (final Map<URI, Entry> proxies : this.m_clients.values()) {
+            size += proxies.size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the longest registered client for a user, without handing it
+     * to the tracker.
+     *
+     * @param user The URI of the user.
+     * @return The client, or <code>null</code> if none is registered for 
+     * the user.
+     */
+    public synchronized SipClient get(final URI user) {
+        final Entry entry = first(user);
+        return entry == null ? null : entry.m_client;
+    }
+
+    /**
+     * Forgets every standby client.
+     *
+     * @return The clients forgotten, so the caller can end them.
+     */
+    public synchronized List<SipClient> clear() {
+        final List<SipClient> clients = new ArrayList<SipClient>();
+        for (final Map<URI, Entry> proxies : this.m_clients.values()) {
+            for (final Entry entry : proxies.values()) {
+                clients.add(entry.m_client);
+            }
+        }
+        this.m_clients.clear();
+        return clients;
+    }
+
+    /**
+     * Hands the longest registered client for a user to the tracker. This
+     * is for when the tracker has no client.
+     *
+     * @param tracker The tracker to add the client to.
+     * @param user The URI of the user whose client to promote.
+     * @return The promoted client, or <code>null</code> if no client is
+     * registered for the user.
+     */
+    public SipClient promote(final SipClientTracker tracker, final URI user) {
+        final Entry entry;
+        synchronized (this) {
+            entry = first(user);
+        }
+        if (entry == null) {
+            return null;
+        }
+        m_log.info("Failing over to standby SIP client for {}", user);
+        tracker.addSipClient(entry.m_client, entry.m_listener);
+        return entry.m_client;
+    }
+
+    private Entry first(final URI user) {
+        final Map<URI, Entry> proxies = this.m_clients.get(user);
+        if (proxies == null) {
+            return null;
+        }
+        final Iterator<Entry> iter = proxies.values().iterator();
+        return iter.hasNext() ? iter.next() : null;
+    }
+
+    /**
+     * Wraps a registration listener so that clients are dropped from the
+     * standbys as soon as they are unregistered.
+     *
+     * @param listener The listener to wrap.
+     * @return The wrapping listener.
+     */
+    public ProxyRegistrationListener track(
+            final ProxyRegistrationListener listener) {
+        return new ProxyRegistrationListener() {
+            public void registered(final URI client, final URI proxy) {
+                listener.registered(client, proxy);
+            }
+
+            public void reRegistered(final URI client, final URI proxy) {
+                listener.reRegistered(client, proxy);
+            }
+
+            public void registrationFailed(final URI client,
+                    final URI proxy) {
+                remove(client, proxy);
+                listener.registrationFailed(client, proxy);
+            }
+
+            public void unregistered(final URI client, final URI proxy) {
+                remove(client, proxy);
+                listener.unregistered(client, proxy);
+            }
+        };
+    }
+
+    private static final class Entry {
+
+        private final SipClient m_client;
+
+        private final ProxyRegistrationListener m_listener;
+
+        private Entry(final SipClient client,
+                final ProxyRegistrationListener listener) {
+            this.m_client = client;
+            this.m_listener = listener;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+/**
+ * A proxy registrar that can be told to stop maintaining its registrations.
+ */
+public interface StoppableProxyRegistrar extends ProxyRegistrar {
+
+    /**
+     * Stops maintaining registrations. No new registrations are started, 
+     * and registrations that are lost are not replaced. This does not 
+     * block.
+     */
+    void stop();
+}
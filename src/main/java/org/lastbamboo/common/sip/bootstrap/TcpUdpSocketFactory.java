@@ -0,0 +1,43 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import java.net.Socket;
+
+import org.lastbamboo.common.offer.answer.IceMediaStreamDesc;
+import org.lastbamboo.common.offer.answer.OfferAnswerFactory;
+import org.lastbamboo.common.offer.answer.Offerer;
+import org.lastbamboo.common.p2p.DefaultTcpUdpSocket;
+import org.lastbamboo.common.p2p.TcpUdpSocket;
+
+/**
+ * Creates the socket factories that run the offer/answer exchange for a 
+ * new socket to a peer. This lets tests and benchmarks stand in for the 
+ * exchange, which otherwise needs a live peer.
+ */
+public interface TcpUdpSocketFactory {
+
+    /**
+     * The factory for the real offer/answer exchange.
+     */
+    TcpUdpSocketFactory DEFAULT = new TcpUdpSocketFactory() {
+        public TcpUdpSocket<Socket> newTcpUdpSocket(final Offerer offerer,
+                final OfferAnswerFactory offerAnswerFactory,
+                final int relayWaitTime, final IceMediaStreamDesc desc) {
+            return new DefaultTcpUdpSocket(offerer, offerAnswerFactory, 
+                relayWaitTime, desc);
+        }
+    };
+
+    /**
+     * Creates a socket factory for one connection.
+     * 
+     * @param offerer The client to send the offer through.
+     * @param offerAnswerFactory The factory for offers and answers.
+     * @param relayWaitTime How long to wait before using a relay, in 
+     * seconds.
+     * @param desc The description of the stream.
+     * @return The socket factory.
+     */
+    TcpUdpSocket<Socket> newTcpUdpSocket(Offerer offerer, 
+        OfferAnswerFactory offerAnswerFactory, int relayWaitTime, 
+        IceMediaStreamDesc desc);
+}
@@ -0,0 +1,77 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import java.net.URI;
+
+/**
+ * Records the timeline of registrations, failover and socket setup as
+ * timed spans, for correlating slow bootstraps with what else the process
+ * was doing at the time. See {@link Timelines} for the recorder in use.
+ */
+public interface TimelineRecorder {
+
+    /**
+     * What a span is part of.
+     */
+    enum Kind {
+
+        /**
+         * Connecting and registering with a single proxy.
+         */
+        REGISTRATION,
+
+        /**
+         * A registration as the connection maintainer sees it, from the
+         * attempt through to losing it.
+         */
+        FAILOVER,
+
+        /**
+         * Refreshing the candidate proxies.
+         */
+        CANDIDATES,
+
+        /**
+         * Setting up a socket to a peer.
+         */
+        SOCKET
+    }
+
+    /**
+     * A span of time that has begun.
+     */
+    interface Span {
+
+        /**
+         * Ends the span.
+         *
+         * @param outcome How the span ended.
+         */
+        void end(String outcome);
+    }
+
+    /**
+     * Begins a span.
+     *
+     * @param kind What the span is part of.
+     * @param phase The step within it.
+     * @param client Our URI, or <code>null</code> if it doesn't apply.
+     * @param remote The URI of the proxy or peer, or <code>null</code> if it
+     * doesn't apply.
+     * @return The span, to end when the phase is done.
+     */
+    Span begin(Kind kind, String phase, URI client, URI remote);
+
+    /**
+     * Records something that happened at a single moment, such as a 
+     * registration being refreshed, which has no span of its own.
+     *
+     * @param kind What the event is part of.
+     * @param phase The step within it.
+     * @param client Our URI, or <code>null</code> if it doesn't apply.
+     * @param remote The URI of the proxy or peer, or <code>null</code> if it
+     * doesn't apply.
+     * @param outcome What happened.
+     */
+    void instant(Kind kind, String phase, URI client, URI remote, 
+        String outcome);
+}
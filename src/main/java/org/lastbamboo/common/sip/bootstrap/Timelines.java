@@ -0,0 +1,137 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import java.lang.reflect.InvocationTargetException;
+import java.net.URI;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link TimelineRecorder} for the process. On JVMs with Java Flight
+ * Recorder, and when this library was built with the JFR recorder, spans
+ * become JFR events that cost next to nothing unless a recording has them
+ * enabled. Otherwise spans do nothing at all. Setting the system property
+ * <code>org.lastbamboo.sip.timeline</code> to <code>false</code> turns
+ * recording off.
+ */
+public final class Timelines {
+
+    private static final Logger LOG = LoggerFactory.getLogger(Timelines.class);
+
+    /**
+     * The name of the recorder built against JFR, which isn't available to
+     * the rest of this library.
+     */
+    private static final String JFR_RECORDER =
+        "org.lastbamboo.common.sip.bootstrap.JfrTimelineRecorder";
+
+    /**
+     * A span that does nothing.
+     */
+    private static final TimelineRecorder.Span NO_OP_SPAN =
+        new TimelineRecorder.Span() {
+            public void end(final String outcome) {
+            }
+        };
+
+    /**
+     * A recorder that does nothing.
+     */
+    public static final TimelineRecorder NO_OP = new TimelineRecorder() {
+        public TimelineRecorder.Span begin(final TimelineRecorder.Kind kind,
+                final String phase, final URI client, final URI remote) {
+            return NO_OP_SPAN;
+        }
+
+        public void instant(final TimelineRecorder.Kind kind,
+                final String phase, final URI client, final URI remote,
+                final String outcome) {
+        }
+    };
+
+    private static volatile TimelineRecorder s_recorder = load();
+
+    private Timelines() {
+        // Only static methods.
+    }
+
+    private static TimelineRecorder load() {
+        if ("false".equals(System.getProperty("org.lastbamboo.sip.timeline"))) {
+            return NO_OP;
+        }
+        try {
+            Class.forName("jdk.jfr.FlightRecorder");
+            final TimelineRecorder recorder = (TimelineRecorder)
+                Class.forName(JFR_RECORDER).getDeclaredConstructor()
+                    .newInstance();
+            LOG.debug("Recording timelines with JFR");
+            return recorder;
+        } catch (final ClassNotFoundException e) {
+            LOG.debug("No JFR -- not recording timelines");
+        } catch (final NoSuchMethodException e) {
+            LOG.debug("JFR recorder has no default constructor", e);
+        } catch (final InstantiationException e) {
+            LOG.debug("Could not create JFR recorder", e);
+        } catch (final IllegalAccessException e) {
+            LOG.debug("Could not access JFR recorder", e);
+        } catch (final InvocationTargetException e) {
+            LOG.debug("JFR recorder failed to start", e.getCause());
+        } catch (final RuntimeException e) {
+            LOG.debug("Could not create JFR recorder", e);
+        } catch (final LinkageError e) {
+            LOG.debug("Could not load JFR recorder", e);
+        }
+        return NO_OP;
+    }
+
+    /**
+     * Returns the recorder in use.
+     *
+     * @return The recorder.
+     */
+    public static TimelineRecorder getRecorder() {
+        return s_recorder;
+    }
+
+    /**
+     * Replaces the recorder in use, for example to feed spans to another
+     * tracing system.
+     *
+     * @param recorder The new recorder.
+     */
+    public static void setRecorder(final TimelineRecorder recorder) {
+        s_recorder = recorder == null ? NO_OP : recorder;
+    }
+
+    /**
+     * Begins a span with the recorder in use.
+     *
+     * @param kind What the span is part of.
+     * @param phase The step within it.
+     * @param client Our URI, or <code>null</code> if it doesn't apply.
+     * @param remote The URI of the proxy or peer, or <code>null</code> if it
+     * doesn't apply.
+     * @return The span, to end when the phase is done.
+     */
+    public static TimelineRecorder.Span begin(final TimelineRecorder.Kind kind,
+            final String phase, final URI client, final URI remote) {
+        return s_recorder.begin(kind, phase, client, remote);
+    }
+
+    /**
+     * Records something that happened at a single moment with the recorder
+     * in use.
+     *
+     * @param kind What the event is part of.
+     * @param phase The step within it.
+     * @param client Our URI, or <code>null</code> if it doesn't apply.
+     * @param remote The URI of the proxy or peer, or <code>null</code> if it
+     * doesn't apply.
+     * @param outcome What happened.
+     */
+    public static void instant(final TimelineRecorder.Kind kind,
+            final String phase, final URI client, final URI remote,
+            final String outcome) {
+        s_recorder.instant(kind, phase, client, remote, outcome);
+    }
+}
@@ -0,0 +1,57 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+/**
+ * A token bucket that hands out reservations rather than refusals. Taking a
+ * token always succeeds, but once the bucket is empty each taker is told how
+ * long to wait before using its token, so takers end up spaced out at the
+ * bucket's rate.
+ */
+public final class TokenBucket {
+
+    private final double m_tokensPerMilli;
+
+    private final double m_capacity;
+
+    private double m_tokens;
+
+    private long m_lastRefill;
+
+    /**
+     * Creates a new, full token bucket.
+     *
+     * @param tokensPerSecond The rate the bucket refills at.
+     * @param capacity The most tokens the bucket holds, which is the largest
+     * burst allowed without waiting.
+     */
+    public TokenBucket(final double tokensPerSecond, final int capacity) {
+        if (tokensPerSecond <= 0) {
+            throw new IllegalArgumentException("Rate must be positive: " +
+                tokensPerSecond);
+        }
+        this.m_tokensPerMilli = tokensPerSecond / 1000;
+        this.m_capacity = Math.max(1, capacity);
+        this.m_tokens = this.m_capacity;
+        this.m_lastRefill = System.currentTimeMillis();
+    }
+
+    /**
+     * Takes a token.
+     *
+     * @return How long to wait before using the token, in milliseconds. This
+     * is 0 if the bucket had a token to spare.
+     */
+    public synchronized long take() {
+        final long now = System.currentTimeMillis();
+        final long elapsed = now - this.m_lastRefill;
+        if (elapsed > 0) {
+            this.m_tokens = Math.min(this.m_capacity,
+                this.m_tokens + elapsed * this.m_tokensPerMilli);
+            this.m_lastRefill = now;
+        }
+        this.m_tokens--;
+        if (this.m_tokens >= 0) {
+            return 0L;
+        }
+        return (long) Math.ceil(-this.m_tokens / this.m_tokensPerMilli);
+    }
+}
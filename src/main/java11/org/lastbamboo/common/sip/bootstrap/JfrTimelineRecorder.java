@@ -0,0 +1,110 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import java.net.URI;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Records timeline spans as Java Flight Recorder events. This is built only
+ * on JDK 11 and later, and {@link Timelines} loads it by name.
+ */
+final class JfrTimelineRecorder implements TimelineRecorder {
+
+    public Span begin(final Kind kind, final String phase, final URI client,
+            final URI remote) {
+        final TimelineEvent event = newEvent(kind);
+        if (!event.isEnabled()) {
+            return Timelines.NO_OP.begin(kind, phase, client, remote);
+        }
+        event.phase = phase;
+        event.client = client == null ? null : client.toString();
+        event.remote = remote == null ? null : remote.toString();
+        event.begin();
+        return event;
+    }
+
+    public void instant(final Kind kind, final String phase, 
+            final URI client, final URI remote, final String outcome) {
+        final TimelineEvent event = newEvent(kind);
+        if (!event.isEnabled()) {
+            return;
+        }
+        event.phase = phase;
+        event.client = client == null ? null : client.toString();
+        event.remote = remote == null ? null : remote.toString();
+        event.outcome = outcome;
+        // Committing without beginning gives an event with no duration.
+        event.commit();
+    }
+
+    private static TimelineEvent newEvent(final Kind kind) {
+        switch (kind) {
+        case REGISTRATION:
+            return new RegistrationEvent();
+        case FAILOVER:
+            return new FailoverEvent();
+        case CANDIDATES:
+            return new CandidateRefreshEvent();
+        default:
+            return new SocketSetupEvent();
+        }
+    }
+
+    /**
+     * The fields every timeline event has. The event's duration is the
+     * length of the span.
+     */
+    @Category({"LittleShoot", "SIP Bootstrap"})
+    @StackTrace(false)
+    abstract static class TimelineEvent extends Event implements Span {
+
+        @Label("Phase")
+        String phase;
+
+        @Label("Client")
+        @Description("Our SIP URI")
+        String client;
+
+        @Label("Remote")
+        @Description("The SIP URI of the proxy or peer")
+        String remote;
+
+        @Label("Outcome")
+        String outcome;
+
+        public void end(final String outcome) {
+            this.outcome = outcome;
+            end();
+            commit();
+        }
+    }
+
+    @Name("org.lastbamboo.sip.Registration")
+    @Label("SIP Registration")
+    @Description("Connecting and registering with a single proxy")
+    static final class RegistrationEvent extends TimelineEvent {
+    }
+
+    @Name("org.lastbamboo.sip.Failover")
+    @Label("SIP Registration Lifetime")
+    @Description("A registration as the connection maintainer sees it")
+    static final class FailoverEvent extends TimelineEvent {
+    }
+
+    @Name("org.lastbamboo.sip.CandidateRefresh")
+    @Label("SIP Candidate Refresh")
+    @Description("Refreshing the candidate proxies")
+    static final class CandidateRefreshEvent extends TimelineEvent {
+    }
+
+    @Name("org.lastbamboo.sip.SocketSetup")
+    @Label("P2P Socket Setup")
+    @Description("A step in setting up a socket to a peer")
+    static final class SocketSetupEvent extends TimelineEvent {
+    }
+}
@@ -0,0 +1,102 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Tests for {@link BootstrapScheduler}.
+ */
+public class BootstrapSchedulerTest {
+
+    @Test
+    public void testSharedSchedulerRefusesShutdown() throws Exception {
+        final BootstrapScheduler shared = BootstrapScheduler.shared();
+        try {
+            shared.shutdown();
+            fail("Shut down the shared scheduler");
+        } catch (final IllegalStateException e) {
+            // Expected.
+        }
+        final CountDownLatch ran = new CountDownLatch(1);
+        shared.getWorkers().execute(new Runnable() {
+            public void run() {
+                ran.countDown();
+            }
+        });
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testOwnSchedulerShutsDown() {
+        final BootstrapScheduler scheduler = new BootstrapScheduler();
+        scheduler.shutdown();
+        assertTrue(scheduler.getTimers().isShutdown());
+        assertTrue(scheduler.getWorkers().isShutdown());
+        assertTrue(scheduler.getDiscovery().isShutdown());
+    }
+
+    @Test
+    public void testBlockedDiscoveryLeavesWorkersFree() throws Exception {
+        final BootstrapScheduler scheduler = 
+            new BootstrapScheduler(1, 1, false);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch ran = new CountDownLatch(1);
+        try {
+            scheduler.getDiscovery().execute(new Runnable() {
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (final InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            scheduler.getWorkers().execute(new Runnable() {
+                public void run() {
+                    ran.countDown();
+                }
+            });
+            assertTrue("Discovery held the only worker", 
+                ran.await(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void testVirtualWorkersAreNotCapped() throws Exception {
+        if (BootstrapScheduler.virtualThreadFactory("test-") == null) {
+            // Nothing to test without virtual threads.
+            return;
+        }
+        final BootstrapScheduler scheduler = new BootstrapScheduler(2, 2, true);
+        final int tasks = 100;
+        final CountDownLatch started = new CountDownLatch(tasks);
+        final CountDownLatch release = new CountDownLatch(1);
+        try {
+            for (int i = 0; i < tasks; i++) {
+                scheduler.getWorkers().execute(new Runnable() {
+                    public void run() {
+                        started.countDown();
+                        try {
+                            release.await();
+                        } catch (final InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+            }
+            assertTrue("Tasks waited for workers", 
+                started.await(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            scheduler.shutdown();
+        }
+    }
+}
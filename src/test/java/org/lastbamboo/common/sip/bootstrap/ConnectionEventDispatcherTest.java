@@ -0,0 +1,80 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.lastbamboo.common.p2p.P2PConnectionEvent;
+import org.lastbamboo.common.p2p.P2PConnectionListener;
+
+/**
+ * Tests for {@link ConnectionEventDispatcher}.
+ */
+public class ConnectionEventDispatcherTest {
+
+    @Test(timeout = 10000)
+    public void testBurstIsCoalesced() throws Exception {
+        final ConnectionEventDispatcher dispatcher =
+            new ConnectionEventDispatcher();
+        final CountDownLatch first = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger events = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(2);
+        dispatcher.addListener(new P2PConnectionListener() {
+            public void onConnectivityEvent(final P2PConnectionEvent event) {
+                events.incrementAndGet();
+                first.countDown();
+                done.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        dispatcher.dispatch("peer", false, true);
+        assertTrue(first.await(5, TimeUnit.SECONDS));
+        // Queued while the listener is busy, so only the last is delivered.
+        for (int i = 0; i < 10; i++) {
+            dispatcher.dispatch("peer", false, i % 2 == 0);
+        }
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        dispatcher.stop();
+        waitForExit(dispatcher);
+        assertEquals(2, events.get());
+    }
+
+    @Test(timeout = 10000)
+    public void testStoppedDispatcherStillDeliversLateEvents()
+        throws Exception {
+        final ConnectionEventDispatcher dispatcher =
+            new ConnectionEventDispatcher();
+        final CountDownLatch delivered = new CountDownLatch(1);
+        dispatcher.addListener(new P2PConnectionListener() {
+            public void onConnectivityEvent(final P2PConnectionEvent event) {
+                delivered.countDown();
+            }
+        });
+        dispatcher.stop();
+        waitForExit(dispatcher);
+
+        dispatcher.dispatch("peer", false, false);
+        assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        // The late event doesn't undo the stop.
+        waitForExit(dispatcher);
+    }
+
+    private static void waitForExit(final ConnectionEventDispatcher dispatcher)
+        throws InterruptedException {
+        while (dispatcher.isRunning()) {
+            Thread.sleep(10);
+        }
+        assertFalse(dispatcher.isRunning());
+    }
+}
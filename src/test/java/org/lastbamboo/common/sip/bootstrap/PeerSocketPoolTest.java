@@ -0,0 +1,81 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link PeerSocketPool}.
+ */
+public class PeerSocketPoolTest {
+
+    private static final URI PEER = URI.create("sip:2@lastbamboo.org");
+
+    private ServerSocket m_server;
+
+    private final List<Socket> m_sockets = new ArrayList<Socket>();
+
+    @Before
+    public void setUp() throws Exception {
+        this.m_server = 
+            new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (final Socket sock : this.m_sockets) {
+            sock.close();
+        }
+        this.m_server.close();
+    }
+
+    @Test
+    public void testBorrowingLastSocketDropsPeer() throws Exception {
+        final PeerSocketPool pool = new PeerSocketPool();
+        final Socket sock = connect();
+        assertTrue(pool.release(PEER, sock));
+        assertEquals(1, pool.getPeerCount());
+
+        assertSame(sock, pool.borrow(PEER));
+        assertEquals(0, pool.getPeerCount());
+        assertNull(pool.borrow(PEER));
+
+        // The peer comes back the next time a socket is released.
+        assertTrue(pool.release(PEER, sock));
+        assertSame(sock, pool.borrow(PEER));
+    }
+
+    @Test
+    public void testEvictingAndClearingDropPeers() throws Exception {
+        final PeerSocketPool pool = new PeerSocketPool(2, 0);
+        pool.release(PEER, connect());
+        Thread.sleep(5);
+        pool.evictIdle();
+        assertEquals(0, pool.getPeerCount());
+
+        final PeerSocketPool cleared = new PeerSocketPool();
+        cleared.release(PEER, connect());
+        cleared.clear();
+        assertEquals(0, cleared.getPeerCount());
+    }
+
+    private Socket connect() throws Exception {
+        final Socket sock = new Socket(this.m_server.getInetAddress(),
+            this.m_server.getLocalPort());
+        this.m_sockets.add(sock);
+        this.m_sockets.add(this.m_server.accept());
+        return sock;
+    }
+}
@@ -0,0 +1,188 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.lastbamboo.common.sip.client.util.ProxyRegistrationListener;
+import org.littleshoot.util.CandidateProvider;
+
+/**
+ * Tests for {@link RacingProxyRegistrar}.
+ */
+public class RacingProxyRegistrarTest {
+
+    private static final URI CLIENT = URI.create("sip:1@lastbamboo.org");
+
+    private static final URI FIRST = URI.create("sip:10.0.0.1:5061");
+
+    private static final URI SECOND = URI.create("sip:10.0.0.2:5061");
+
+    private ScheduledExecutorService m_scheduler;
+
+    private FakeRegistrarFactory m_factory;
+
+    private CountingListener m_listener;
+
+    @Before
+    public void setUp() {
+        this.m_scheduler = Executors.newSingleThreadScheduledExecutor();
+        this.m_factory = new FakeRegistrarFactory();
+        this.m_listener = new CountingListener();
+    }
+
+    @After
+    public void tearDown() {
+        this.m_scheduler.shutdownNow();
+    }
+
+    @Test(timeout = 10000)
+    public void testOnlyWinnerSurvivesWithoutStandbys() throws Exception {
+        final RacingProxyRegistrar registrar = race(false);
+        registrar.register();
+        assertTrue(this.m_factory.m_started.await(5, TimeUnit.SECONDS));
+
+        final FakeRegistrar winner = this.m_factory.m_registrars.get(0);
+        final FakeRegistrar loser = this.m_factory.m_registrars.get(1);
+        winner.succeed();
+        assertTrue("In flight attempt not stopped", loser.isStopped());
+        assertFalse(winner.isStopped());
+
+        // The loser registers anyway before it sees the stop.
+        loser.succeed();
+        assertEquals(1, this.m_listener.m_registered.get());
+        assertEquals(winner.m_proxy, registrar.getActiveProxy());
+    }
+
+    @Test(timeout = 10000)
+    public void testStandbysAreKept() throws Exception {
+        final RacingProxyRegistrar registrar = race(true);
+        registrar.register();
+        assertTrue(this.m_factory.m_started.await(5, TimeUnit.SECONDS));
+
+        final FakeRegistrar winner = this.m_factory.m_registrars.get(0);
+        final FakeRegistrar standby = this.m_factory.m_registrars.get(1);
+        winner.succeed();
+        standby.succeed();
+        assertFalse(standby.isStopped());
+        assertEquals(2, this.m_listener.m_registered.get());
+    }
+
+    @Test(timeout = 10000)
+    public void testStopStopsAttemptsInFlight() throws Exception {
+        final RacingProxyRegistrar registrar = race(false);
+        registrar.register();
+        assertTrue(this.m_factory.m_started.await(5, TimeUnit.SECONDS));
+
+        registrar.stop();
+        for (final FakeRegistrar attempt : this.m_factory.m_registrars) {
+            assertTrue(attempt.isStopped());
+        }
+    }
+
+    private RacingProxyRegistrar race(final boolean keepStandbys) {
+        final CandidateProvider<URI> candidates =
+            new CandidateProvider<URI>() {
+            public URI getCandidate() {
+                return FIRST;
+            }
+            public Collection<URI> getCandidates() {
+                return Arrays.asList(FIRST, SECOND);
+            }
+        };
+        return new RacingProxyRegistrar(CLIENT, candidates, this.m_factory,
+            this.m_listener, this.m_scheduler,
+            new RacePolicy(2, 0, keepStandbys));
+    }
+
+    private static final class FakeRegistrarFactory
+        implements ProxyRegistrarFactory {
+
+        private final List<FakeRegistrar> m_registrars =
+            new CopyOnWriteArrayList<FakeRegistrar>();
+
+        private final CountDownLatch m_started = new CountDownLatch(2);
+
+        public ProxyRegistrar getRegistrar(final URI client, final URI proxy,
+                final ProxyRegistrationListener listener) {
+            return new FakeRegistrar(this, client, proxy, listener);
+        }
+    }
+
+    /**
+     * A registration that completes when the test says so, and that reports
+     * success even once stopped, the way a REGISTER already answered does.
+     */
+    private static final class FakeRegistrar
+        implements StoppableProxyRegistrar {
+
+        private final FakeRegistrarFactory m_factory;
+
+        private final URI m_client;
+
+        private final URI m_proxy;
+
+        private final ProxyRegistrationListener m_listener;
+
+        private volatile boolean m_stopped;
+
+        private FakeRegistrar(final FakeRegistrarFactory factory,
+                final URI client, final URI proxy,
+                final ProxyRegistrationListener listener) {
+            this.m_factory = factory;
+            this.m_client = client;
+            this.m_proxy = proxy;
+            this.m_listener = listener;
+        }
+
+        public void register() {
+            this.m_factory.m_registrars.add(this);
+            this.m_factory.m_started.countDown();
+        }
+
+        public void stop() {
+            this.m_stopped = true;
+        }
+
+        private boolean isStopped() {
+            return this.m_stopped;
+        }
+
+        private void succeed() {
+            this.m_listener.registered(this.m_client, this.m_proxy);
+        }
+    }
+
+    private static final class CountingListener
+        implements ProxyRegistrationListener {
+
+        private final AtomicInteger m_registered = new AtomicInteger();
+
+        public void registered(final URI client, final URI proxy) {
+            this.m_registered.incrementAndGet();
+        }
+
+        public void reRegistered(final URI client, final URI proxy) {
+        }
+
+        public void registrationFailed(final URI client, final URI proxy) {
+        }
+
+        public void unregistered(final URI client, final URI proxy) {
+        }
+    }
+}
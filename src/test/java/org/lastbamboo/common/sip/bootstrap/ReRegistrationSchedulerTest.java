@@ -0,0 +1,83 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for {@link ReRegistrationScheduler}.
+ */
+public class ReRegistrationSchedulerTest {
+
+    private static final URI CLIENT = URI.create("sip:1@lastbamboo.org");
+
+    private static final URI FIRST = URI.create("sip:10.0.0.1:5061");
+
+    private static final URI SECOND = URI.create("sip:10.0.0.2:5061");
+
+    /**
+     * Long enough that a jittered wait is never short enough to run at once.
+     */
+    private static final long BASE_DELAY_MILLIS = 1000 * 1000;
+
+    private ScheduledExecutorService m_executor;
+
+    private ReRegistrationScheduler m_scheduler;
+
+    @Before
+    public void setUp() {
+        this.m_executor = Executors.newSingleThreadScheduledExecutor();
+        this.m_scheduler = new ReRegistrationScheduler(this.m_executor,
+            BASE_DELAY_MILLIS, 10 * BASE_DELAY_MILLIS, 100, 100);
+    }
+
+    @After
+    public void tearDown() {
+        this.m_executor.shutdownNow();
+    }
+
+    @Test
+    public void testFirstAttemptRunsAtOnce() {
+        final AtomicBoolean ran = new AtomicBoolean();
+        this.m_scheduler.schedule(CLIENT, FIRST, flag(ran));
+        assertTrue(ran.get());
+    }
+
+    @Test
+    public void testFailoverToAnotherProxyIsDelayed() {
+        this.m_scheduler.failed(CLIENT, FIRST);
+        assertEquals(0, this.m_scheduler.getFailures(CLIENT, SECOND));
+
+        final AtomicBoolean ran = new AtomicBoolean();
+        this.m_scheduler.schedule(CLIENT, SECOND, flag(ran));
+        assertFalse("Failed over without a backoff", ran.get());
+    }
+
+    @Test
+    public void testSuccessClearsClientBackoff() {
+        this.m_scheduler.failed(CLIENT, FIRST);
+        this.m_scheduler.succeeded(CLIENT, SECOND);
+
+        final AtomicBoolean ran = new AtomicBoolean();
+        this.m_scheduler.schedule(CLIENT, SECOND, flag(ran));
+        assertTrue(ran.get());
+        assertEquals(1, this.m_scheduler.getFailures(CLIENT, FIRST));
+    }
+
+    private static Runnable flag(final AtomicBoolean ran) {
+        return new Runnable() {
+            public void run() {
+                ran.set(true);
+            }
+        };
+    }
+}
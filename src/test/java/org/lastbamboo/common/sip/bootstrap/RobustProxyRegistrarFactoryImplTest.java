@@ -0,0 +1,65 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Collection;
+import java.util.Collections;
+
+import org.junit.Test;
+import org.lastbamboo.common.sip.client.util.ProxyRegistrationListener;
+import org.lastbamboo.common.sip.stack.util.UriUtilsImpl;
+import org.littleshoot.util.CandidateProvider;
+
+/**
+ * Tests for {@link RobustProxyRegistrarFactoryImpl}.
+ */
+public class RobustProxyRegistrarFactoryImplTest {
+
+    @Test
+    public void testLegacyFactoryAddsNothing() {
+        final RobustProxyRegistrarFactoryImpl factory =
+            new RobustProxyRegistrarFactoryImpl(new UriUtilsImpl(),
+                new NoAddresses(), new NoOpRegistrarFactory());
+        assertNull(factory.getCircuitBreaker());
+        assertNull(factory.getNetworkMonitor());
+    }
+
+    @Test
+    public void testFullFactoryWatchesNetwork() {
+        final RobustProxyRegistrarFactoryImpl factory =
+            new RobustProxyRegistrarFactoryImpl(new UriUtilsImpl(),
+                new NoAddresses(), new NoOpRegistrarFactory(),
+                RacePolicy.disabled(), null, new ProxyLatencyTracker(),
+                SipUriCandidateProvider.DEFAULT_TTL_MILLIS, 0, null,
+                new ProxyCircuitBreaker(), new MetricsRegistry(), null);
+        assertNotNull(factory.getCircuitBreaker());
+        assertNotNull(factory.getNetworkMonitor());
+    }
+
+    private static final class NoAddresses
+        implements CandidateProvider<InetSocketAddress> {
+
+        public InetSocketAddress getCandidate() {
+            return null;
+        }
+
+        public Collection<InetSocketAddress> getCandidates() {
+            return Collections.emptyList();
+        }
+    }
+
+    private static final class NoOpRegistrarFactory
+        implements ProxyRegistrarFactory {
+
+        public ProxyRegistrar getRegistrar(final URI client, final URI proxy,
+                final ProxyRegistrationListener listener) {
+            return new ProxyRegistrar() {
+                public void register() {
+                }
+            };
+        }
+    }
+}
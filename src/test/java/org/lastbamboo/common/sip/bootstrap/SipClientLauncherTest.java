@@ -0,0 +1,303 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.lastbamboo.common.offer.answer.IceMediaStreamDesc;
+import org.lastbamboo.common.offer.answer.OfferAnswerFactory;
+import org.lastbamboo.common.offer.answer.OfferAnswerTransactionListener;
+import org.lastbamboo.common.offer.answer.Offerer;
+import org.lastbamboo.common.p2p.P2PConnectionEvent;
+import org.lastbamboo.common.p2p.P2PConnectionListener;
+import org.lastbamboo.common.p2p.TcpUdpSocket;
+import org.lastbamboo.common.sip.client.SipClient;
+import org.lastbamboo.common.sip.client.SipClientTracker;
+import org.lastbamboo.common.sip.client.util.ProxyRegistrationListener;
+import org.littleshoot.util.KeyStorage;
+
+/**
+ * Tests for {@link SipClientLauncher}.
+ */
+public class SipClientLauncherTest {
+
+    private static final URI FIRST = URI.create("sip:10.0.0.1:5061");
+
+    private static final URI SECOND = URI.create("sip:10.0.0.2:5061");
+
+    private RecordingCloser m_closer;
+
+    private StandbySipClients m_standbys;
+
+    private FakeTracker m_tracker;
+
+    private PeerRouteCache m_routes;
+
+    private SipClientLauncher m_launcher;
+
+    @Before
+    public void setUp() {
+        this.m_closer = new RecordingCloser(3);
+        SipClientClosers.setCloser(this.m_closer);
+        this.m_standbys = new StandbySipClients();
+        this.m_tracker = new FakeTracker();
+        this.m_routes = new PeerRouteCache();
+        this.m_launcher = new SipClientLauncher(this.m_tracker,
+            new FakeRegistrarFactory(), new OfferAnswerFactory() {},
+            new RelayWaitEstimator(1, 10, 10), this.m_standbys, null,
+            this.m_routes, null, new MetricsRegistry(),
+            new ConnectionAdmission());
+    }
+
+    @After
+    public void tearDown() {
+        SipClientClosers.setCloser(null);
+    }
+
+    @Test(timeout = 10000)
+    public void testLogoutUnregistersAndClosesEveryClient() throws Exception {
+        final String user = this.m_launcher.login("1", "password");
+        final URI sipUri = URI.create(user);
+        final FakeSipClient tracked = new FakeSipClient();
+        final FakeSipClient standby = new FakeSipClient();
+        final FakeSipClient other = new FakeSipClient();
+        this.m_tracker.addSipClient(tracked, null);
+        this.m_standbys.add(sipUri, FIRST, tracked, null);
+        this.m_standbys.add(sipUri, SECOND, standby, null);
+        this.m_standbys.add(URI.create("sip:2@lastbamboo.org"), FIRST,
+            other, null);
+
+        this.m_launcher.logout();
+
+        // Each unregister waits for the others to start, so they only all
+        // finish if they were sent in parallel.
+        assertTrue("Unregisters not sent in parallel",
+            this.m_closer.m_allStarted.await(0, TimeUnit.MILLISECONDS));
+        assertEquals(3, this.m_closer.m_unregistered.size());
+        assertEquals(3, this.m_closer.m_closed.size());
+        for (final SipClient client : this.m_closer.m_unregistered) {
+            assertTrue(this.m_closer.m_closed.contains(client));
+        }
+        assertEquals(0, this.m_standbys.size());
+    }
+
+    @Test(timeout = 10000)
+    public void testEndedClientIsNotReused() throws Exception {
+        this.m_launcher.login("1", "password");
+        this.m_tracker.addSipClient(new FakeSipClient(), null);
+        this.m_launcher.logout();
+        this.m_launcher.login("1", "password");
+        try {
+            this.m_launcher.offer(FIRST, new byte[0], null, null);
+            fail("Offered through a client ended at logout");
+        } catch (final IOException e) {
+            // Expected.
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testRequestsForOtherUsersAreRejected() throws Exception {
+        this.m_launcher.login("1", "password");
+        this.m_tracker.addSipClient(new FakeSipClient(), null);
+        try {
+            this.m_launcher.newSocket(URI.create("sip:2@lastbamboo.org"),
+                FIRST);
+            fail("Connected as a user that never logged in");
+        } catch (final IOException e) {
+            // Expected.
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testSamePeerSetupsRunTogetherWithoutPool() throws Exception {
+        this.m_launcher.login("1", "password");
+        this.m_tracker.addSipClient(new FakeSipClient(), null);
+        // Each setup only finishes once both have started.
+        final CountDownLatch started = new CountDownLatch(2);
+        this.m_launcher.setSocketFactory(new TcpUdpSocketFactory() {
+            public TcpUdpSocket<Socket> newTcpUdpSocket(final Offerer offerer,
+                    final OfferAnswerFactory offerAnswerFactory,
+                    final int relayWaitTime, final IceMediaStreamDesc desc) {
+                return new TcpUdpSocket<Socket>() {
+                    public Socket newSocket(final URI uri) throws IOException {
+                        started.countDown();
+                        try {
+                            if (!started.await(2, TimeUnit.SECONDS)) {
+                                throw new IOException("Setups serialized");
+                            }
+                        } catch (final InterruptedException e) {
+                            throw new IOException("Interrupted");
+                        }
+                        return new Socket();
+                    }
+                };
+            }
+        });
+        final ExecutorService threads = Executors.newFixedThreadPool(2);
+        try {
+            final List<Future<Socket>> sockets = threads.invokeAll(
+                Arrays.asList(newSocket(), newSocket()));
+            for (final Future<Socket> socket : sockets) {
+                assertTrue(socket.get() != null);
+            }
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testClosingLastSocketReportsDisconnect() throws Exception {
+        this.m_launcher.login("1", "password");
+        this.m_tracker.addSipClient(new FakeSipClient(), null);
+        this.m_launcher.setSocketFactory(new TcpUdpSocketFactory() {
+            public TcpUdpSocket<Socket> newTcpUdpSocket(final Offerer offerer,
+                    final OfferAnswerFactory offerAnswerFactory,
+                    final int relayWaitTime, final IceMediaStreamDesc desc) {
+                return new TcpUdpSocket<Socket>() {
+                    public Socket newSocket(final URI uri) {
+                        return new Socket();
+                    }
+                };
+            }
+        });
+        final Socket first = this.m_launcher.newSocket(FIRST);
+        final Socket second = this.m_launcher.newSocket(FIRST);
+        // Listening from here on, so only the closes are heard.
+        final CountDownLatch disconnected = new CountDownLatch(1);
+        this.m_launcher.addConnectionListener(new P2PConnectionListener() {
+            public void onConnectivityEvent(final P2PConnectionEvent event) {
+                disconnected.countDown();
+            }
+        });
+        first.close();
+        assertTrue(first.isClosed());
+        assertFalse("Disconnected with a socket still open",
+            disconnected.await(200, TimeUnit.MILLISECONDS));
+        second.close();
+        assertTrue(disconnected.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 10000)
+    public void testKnownRelayPeerWaitsTheMinimum() throws Exception {
+        this.m_launcher.login("1", "password");
+        this.m_tracker.addSipClient(new FakeSipClient(), null);
+        final List<Integer> waits = new CopyOnWriteArrayList<Integer>();
+        this.m_launcher.setSocketFactory(new TcpUdpSocketFactory() {
+            public TcpUdpSocket<Socket> newTcpUdpSocket(final Offerer offerer,
+                    final OfferAnswerFactory offerAnswerFactory,
+                    final int relayWaitTime, final IceMediaStreamDesc desc) {
+                waits.add(Integer.valueOf(relayWaitTime));
+                return new TcpUdpSocket<Socket>() {
+                    public Socket newSocket(final URI uri) {
+                        return new Socket();
+                    }
+                };
+            }
+        });
+        this.m_routes.record(FIRST, PeerRouteCache.Route.RELAY);
+        this.m_launcher.newSocket(FIRST).close();
+        // Connecting quickly shows the peer no longer needs the relay.
+        assertEquals(PeerRouteCache.Route.DIRECT, 
+            this.m_routes.getRoute(FIRST));
+        this.m_launcher.newSocket(FIRST).close();
+        assertEquals(Arrays.asList(Integer.valueOf(1), Integer.valueOf(10)),
+            waits);
+    }
+
+    private Callable<Socket> newSocket() {
+        return new Callable<Socket>() {
+            public Socket call() throws Exception {
+                return m_launcher.newSocket(FIRST);
+            }
+        };
+    }
+
+    private static final class RecordingCloser implements SipClientCloser {
+
+        private final List<SipClient> m_unregistered =
+            new CopyOnWriteArrayList<SipClient>();
+
+        private final List<SipClient> m_closed =
+            new CopyOnWriteArrayList<SipClient>();
+
+        private final CountDownLatch m_allStarted;
+
+        private RecordingCloser(final int clients) {
+            this.m_allStarted = new CountDownLatch(clients);
+        }
+
+        public void unregister(final SipClient client) throws IOException {
+            this.m_allStarted.countDown();
+            try {
+                this.m_allStarted.await(2, TimeUnit.SECONDS);
+            } catch (final InterruptedException e) {
+                throw new IOException("Interrupted");
+            }
+            this.m_unregistered.add(client);
+        }
+
+        public void close(final SipClient client) {
+            this.m_closed.add(client);
+        }
+    }
+
+    private static final class FakeTracker implements SipClientTracker {
+
+        private volatile SipClient m_client;
+
+        public void addSipClient(final SipClient client,
+                final ProxyRegistrationListener listener) {
+            this.m_client = client;
+        }
+
+        public SipClient getSipClient() {
+            return this.m_client;
+        }
+    }
+
+    private static final class FakeRegistrarFactory
+        implements RobustProxyRegistrarFactory {
+
+        public ProxyRegistrar getRegistrar(final URI client,
+                final ProxyRegistrationListener listener) {
+            return new StoppableProxyRegistrar() {
+                public void register() {
+                }
+
+                public void stop() {
+                }
+            };
+        }
+    }
+
+    private static final class FakeSipClient implements SipClient {
+
+        public void connect() {
+        }
+
+        public void register() {
+        }
+
+        public void offer(final URI uri, final byte[] offer,
+                final OfferAnswerTransactionListener listener,
+                final KeyStorage keyStorage) {
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package org.lastbamboo.common.sip.bootstrap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.lastbamboo.common.sip.stack.util.UriUtilsImpl;
+import org.littleshoot.util.CandidateProvider;
+
+/**
+ * Tests for {@link SipUriCandidateProvider}.
+ */
+public class SipUriCandidateProviderTest {
+
+    private static final InetSocketAddress FIRST =
+        new InetSocketAddress("10.0.0.1", 5061);
+
+    private static final InetSocketAddress SECOND =
+        new InetSocketAddress("10.0.0.2", 5061);
+
+    /**
+     * Runs refreshes on the calling thread.
+     */
+    private static final Executor INLINE = new Executor() {
+        public void execute(final Runnable command) {
+            command.run();
+        }
+    };
+
+    @Test
+    public void testEmptyRefreshKeepsLastProxies() {
+        final FakeAddressProvider addresses =
+            new FakeAddressProvider(FIRST, SECOND);
+        final SipUriCandidateProvider provider = provider(addresses);
+        final List<URI> found = provider.getCandidates();
+        assertEquals(2, found.size());
+
+        addresses.set();
+        provider.invalidate();
+        provider.getCandidates();
+        assertEquals(found, provider.getCandidates());
+        // The renewed proxies stay fresh for the time to live.
+        assertEquals(2, addresses.m_fetches.get());
+    }
+
+    @Test
+    public void testFailedRefreshKeepsLastProxies() {
+        final FakeAddressProvider addresses =
+            new FakeAddressProvider(FIRST, SECOND);
+        final SipUriCandidateProvider provider = provider(addresses);
+        final List<URI> found = provider.getCandidates();
+
+        addresses.m_fail = true;
+        provider.invalidate();
+        provider.getCandidates();
+        assertEquals(found, provider.getCandidates());
+        assertEquals(2, addresses.m_fetches.get());
+    }
+
+    @Test
+    public void testListenersAreToldWithoutLock() {
+        final FakeAddressProvider addresses =
+            new FakeAddressProvider(FIRST, SECOND);
+        final SipUriCandidateProvider provider = provider(addresses);
+        final AtomicInteger changes = new AtomicInteger();
+        final AtomicBoolean locked = new AtomicBoolean();
+        provider.addListener(new ProxyCandidateListener() {
+            public void candidatesChanged(final List<URI> current,
+                    final Collection<URI> added,
+                    final Collection<URI> removed) {
+                changes.incrementAndGet();
+                locked.set(Thread.holdsLock(provider));
+                if (changes.get() == 2) {
+                    assertEquals(1, current.size());
+                    assertEquals(1, removed.size());
+                    assertTrue(added.isEmpty());
+                }
+            }
+        });
+        provider.getCandidates();
+        assertEquals(1, changes.get());
+
+        addresses.set(FIRST);
+        provider.invalidate();
+        provider.getCandidates();
+        assertEquals(2, changes.get());
+        assertFalse("Listener called holding the lock", locked.get());
+
+        // The same proxies again are not a change.
+        provider.invalidate();
+        provider.getCandidates();
+        assertEquals(2, changes.get());
+    }
+
+    private static SipUriCandidateProvider provider(
+            final FakeAddressProvider addresses) {
+        return new SipUriCandidateProvider(new UriUtilsImpl(), addresses,
+            new ProxyLatencyTracker(), INLINE, 60 * 1000);
+    }
+
+    private static final class FakeAddressProvider
+        implements CandidateProvider<InetSocketAddress> {
+
+        private final AtomicInteger m_fetches = new AtomicInteger();
+
+        private volatile List<InetSocketAddress> m_addresses;
+
+        private volatile boolean m_fail;
+
+        private FakeAddressProvider(final InetSocketAddress... addresses) {
+            set(addresses);
+        }
+
+        private void set(final InetSocketAddress... addresses) {
+            this.m_addresses =
+                Collections.unmodifiableList(Arrays.asList(addresses));
+        }
+
+        public InetSocketAddress getCandidate() {
+            return this.m_addresses.isEmpty() ? null : this.m_addresses.get(0);
+        }
+
+        public Collection<InetSocketAddress> getCandidates() {
+            this.m_fetches.incrementAndGet();
+            if (this.m_fail) {
+                throw new IllegalStateException("Discovery failed");
+            }
+            return this.m_addresses;
+        }
+    }
+}